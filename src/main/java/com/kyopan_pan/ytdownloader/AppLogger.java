@@ -1,95 +1,141 @@
 package com.kyopan_pan.ytdownloader;
 
-import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
-
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * アプリ内で表示できるよう、セッション中のログをメモリに保持するロガー。
- * 以前の挙動を保つため標準出力にも同時に出力する。
+ * 呼び出し元では {@link LogEvent} を作って待ち行列へ入れるだけにし、文字列への整形と
+ * {@link LogStore}・標準出力への書き出しは専用スレッドで行う。
+ * しきい値未満のレベル(子プロセスの1行ごとの出力など)は、イベントを作る前に捨てる。
  */
 public final class AppLogger {
 
-    private static final int MAX_ENTRIES = 1000;
-    private static final ObservableList<String> LOGS = FXCollections.observableArrayList();
-    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final LogStore STORE = new LogStore();
+    private static final BlockingQueue<LogEvent> QUEUE = new LinkedBlockingQueue<>();
+    private static final Object[] NO_ARGS = new Object[0];
+    private static volatile Level threshold = Level.INFO;
+
+    static {
+        Thread writer = new Thread(AppLogger::drain, "app-logger");
+        writer.setDaemon(true);
+        writer.start();
+        // 終了直前のログが書き出されずに失われないよう、残りを同期的に書き出す
+        Runtime.getRuntime().addShutdownHook(new Thread(AppLogger::flush, "app-logger-flush"));
+    }
 
     private AppLogger() {
     }
 
-    public static ObservableList<String> getLogs() {
-        return LOGS;
+    static LogStore getStore() {
+        return STORE;
     }
 
     public static void clear() {
-        runOnFxThread(LOGS::clear);
+        STORE.clear();
+    }
+
+    /**
+     * 詳細ログを有効にすると、子プロセスの出力(DEBUG)も記録する。
+     */
+    static void setVerbose(boolean verbose) {
+        threshold = verbose ? Level.DEBUG : Level.INFO;
+    }
+
+    /**
+     * メモリに保持するログの上限(MB)。1MBに約1万行が入る。
+     */
+    static void setMaxMegabytes(int megabytes) {
+        STORE.setMaxSegments(megabytes);
+    }
+
+    static int getMaxMegabytes() {
+        return STORE.maxSegments();
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
     }
 
     public static void log(String message) {
         if (message == null) {
             return;
         }
-        String entry = "[" + LocalTime.now().format(TIME_FORMAT) + "] " + message;
-        runOnFxThread(() -> append(entry));
-        System.out.println(entry);
+        event(Level.INFO, null, null, message);
     }
 
     public static void logError(String message, Throwable throwable) {
-        if (throwable == null) {
-            log(message);
+        if (!isEnabled(Level.ERROR)) {
             return;
         }
-        StringBuilder builder = new StringBuilder();
-        if (message != null && !message.isBlank()) {
-            builder.append(message);
-        } else {
-            builder.append("想定外の例外");
-        }
-        builder.append(" (").append(throwable.getClass().getSimpleName()).append(')');
-        String errorMessage = throwable.getMessage();
-        if (errorMessage != null && !errorMessage.isBlank()) {
-            builder.append(": ").append(errorMessage);
-        }
-        log(builder.toString());
-        logStackTrace(throwable);
+        QUEUE.add(new LogEvent(Level.ERROR, System.nanoTime(), null, null, message, NO_ARGS, throwable));
     }
 
-    private static void logStackTrace(Throwable throwable) {
-        logThrowable(throwable, "");
+    static void event(Level level, String source, String jobId, String template) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        QUEUE.add(new LogEvent(level, System.nanoTime(), source, jobId, template, NO_ARGS, null));
     }
 
-    private static void logThrowable(Throwable throwable, String prefix) {
-        log(prefix + throwable);
-        for (StackTraceElement element : throwable.getStackTrace()) {
-            log(prefix + "\tat " + element);
+    static void event(Level level, String source, String jobId, String template, Object arg) {
+        if (!isEnabled(level)) {
+            return;
         }
-        for (Throwable suppressed : throwable.getSuppressed()) {
-            log(prefix + "Suppressed: " + suppressed);
-            logThrowable(suppressed, prefix + "\t");
+        QUEUE.add(new LogEvent(level, System.nanoTime(), source, jobId, template, new Object[]{arg}, null));
+    }
+
+    static void event(Level level, String source, String jobId, String template, Object arg1, Object arg2) {
+        if (!isEnabled(level)) {
+            return;
         }
-        Throwable cause = throwable.getCause();
-        if (cause != null && cause != throwable) {
-            log(prefix + "Caused by: " + cause);
-            logThrowable(cause, prefix + "\t");
+        QUEUE.add(new LogEvent(level, System.nanoTime(), source, jobId, template, new Object[]{arg1, arg2}, null));
+    }
+
+    static void event(Level level, String source, String jobId, String template, Object... args) {
+        if (!isEnabled(level)) {
+            return;
         }
+        QUEUE.add(new LogEvent(level, System.nanoTime(), source, jobId, template, args, null));
     }
 
-    private static void append(String entry) {
-        LOGS.add(entry);
-        int overflow = LOGS.size() - MAX_ENTRIES;
-        if (overflow > 0) {
-            LOGS.remove(0, overflow);
+    /**
+     * 子プロセスの1行分の出力を記録する。警告やエラーの行は詳細ログが無効でも残し、それ以外はDEBUGとして扱う。
+     */
+    static void childOutput(String source, String jobId, String line) {
+        Level level = line.startsWith("ERROR") || line.startsWith("WARNING") ? Level.WARN : Level.DEBUG;
+        event(level, source, jobId, line);
+    }
+
+    private static void drain() {
+        while (true) {
+            LogEvent event;
+            try {
+                event = QUEUE.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            write(event);
         }
     }
 
-    private static void runOnFxThread(Runnable task) {
-        if (Platform.isFxApplicationThread()) {
-            task.run();
-        } else {
-            Platform.runLater(task);
+    private static void flush() {
+        List<LogEvent> pending = new ArrayList<>();
+        QUEUE.drainTo(pending);
+        pending.forEach(AppLogger::write);
+    }
+
+    private static void write(LogEvent event) {
+        String source = event.resolvedSource();
+        for (String line : event.render()) {
+            STORE.append(line, source);
+            System.out.println(line);
         }
     }
 }
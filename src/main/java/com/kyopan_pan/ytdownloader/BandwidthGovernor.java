@@ -0,0 +1,255 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 同時に動くダウンロード全体で共有する帯域予算。予算をジョブの重みで按分し(重み付き公平配分)、
+ * 実測スループットから需要を推定して使い切れない分を他のジョブへ回す。
+ * 割り当てはプロセス起動時の `--limit-rate` として適用し、大きく変わった場合はプロセスを再起動して反映する。
+ */
+final class BandwidthGovernor {
+
+    // 割り当てがこの割合以上変わった場合のみ再起動する
+    private static final double RESTART_CHANGE_RATIO = 0.25;
+    private static final long MIN_RESTART_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(20);
+    private static final long MIN_LIMIT_BYTES = 64 * 1024;
+    // 割り当ての8割未満しか使っていないジョブは、回線や配信元側で頭打ちになっているとみなす
+    private static final double DEMAND_BOUND_RATIO = 0.8;
+    private static final double DEMAND_HEADROOM = 1.2;
+    // 頭打ちとみなしたジョブは、割り当てをほぼ使い切るまで頭打ちのまま扱う。
+    // 需要×1.2の割り当てに対する使用率は約0.83で、0.8を少し上回るだけのため、同じ閾値で戻すと2つの割り当ての間を往復する
+    private static final double DEMAND_RELEASE_RATIO = 0.95;
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+    private static final long REBALANCE_INTERVAL_SECONDS = 5;
+
+    private final Object lock = new Object();
+    private final List<Lease> leases = new ArrayList<>();
+    private final LongSupplier budgetSource;
+    // yt-dlpの制限値と実測値のずれを補正する係数
+    private double correction = 1.0;
+
+    BandwidthGovernor() {
+        this(DownloadConfig::getRateLimitBytesPerSecond);
+    }
+
+    /**
+     * @param budgetSource 全体の予算(bytes/s、0以下は無制限)。再計算のたびに読む
+     */
+    BandwidthGovernor(LongSupplier budgetSource) {
+        this.budgetSource = budgetSource;
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bandwidth-governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(this::rebalance, REBALANCE_INTERVAL_SECONDS, REBALANCE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * ジョブを登録して割り当てを受け取る。
+     *
+     * @param weight      予算の取り分の重み(ジョブの優先度から決める)
+     * @param restartable 再起動で途中から再開できるプロセスか。falseの場合は起動時の割り当てのみ適用する
+     */
+    Lease acquire(String label, double weight, boolean restartable) {
+        Lease lease = new Lease(label, weight, restartable);
+        synchronized (lock) {
+            leases.add(lease);
+        }
+        rebalance();
+        return lease;
+    }
+
+    /**
+     * 予算と実測値から各ジョブの割り当てを計算し直し、大きく変わったジョブに再起動を要求する。
+     */
+    void rebalance() {
+        long budget = budgetSource.getAsLong();
+        List<Lease> toRestart = new ArrayList<>();
+        synchronized (lock) {
+            if (leases.isEmpty()) {
+                correction = 1.0;
+                return;
+            }
+            if (budget <= 0) {
+                correction = 1.0;
+                leases.forEach(lease -> lease.limit = 0);
+            } else {
+                updateCorrection(budget);
+                allocate(budget * correction);
+            }
+            long now = System.nanoTime();
+            for (Lease lease : leases) {
+                if (lease.restartable && lease.restartHandler != null && lease.needsRestart(now)) {
+                    toRestart.add(lease);
+                }
+            }
+        }
+        for (Lease lease : toRestart) {
+            AppLogger.log("[BandwidthGovernor] " + lease.label + " の帯域割り当てを " + formatRate(lease.appliedLimit)
+                    + " → " + formatRate(lease.limit) + " に変更するため再起動します。");
+            lease.lastRestartNanos = System.nanoTime();
+            lease.restartHandler.run();
+        }
+    }
+
+    /**
+     * 重み付きのウォーターフィリング。需要が取り分を下回るジョブには需要分だけを与え、残りを他のジョブで再分配する。
+     */
+    private void allocate(double effectiveBudget) {
+        List<Lease> open = new ArrayList<>(leases);
+        double remaining = effectiveBudget;
+        boolean changed = true;
+        while (changed && !open.isEmpty()) {
+            changed = false;
+            double totalWeight = open.stream().mapToDouble(lease -> lease.weight).sum();
+            for (Lease lease : new ArrayList<>(open)) {
+                double share = remaining * lease.weight / totalWeight;
+                double demand = lease.estimatedDemand();
+                if (demand < share) {
+                    lease.limit = Math.max(MIN_LIMIT_BYTES, (long) demand);
+                    // 下限まで切り上げた分も他のジョブの取り分から引く
+                    remaining -= lease.limit;
+                    open.remove(lease);
+                    changed = true;
+                }
+            }
+        }
+        double totalWeight = open.stream().mapToDouble(lease -> lease.weight).sum();
+        for (Lease lease : open) {
+            lease.limit = Math.max(MIN_LIMIT_BYTES, (long) (Math.max(0, remaining) * lease.weight / totalWeight));
+        }
+    }
+
+    /**
+     * 全ジョブが割り当てで頭打ちになっているのに合計が予算とずれている場合、制限値を補正して実際の使用量を予算に近づける。
+     */
+    private void updateCorrection(long budget) {
+        double measuredTotal = 0;
+        for (Lease lease : leases) {
+            if (lease.appliedLimit <= 0 || lease.measured <= 0 || lease.measured < lease.appliedLimit * DEMAND_BOUND_RATIO) {
+                return;
+            }
+            measuredTotal += lease.measured;
+        }
+        double ratio = budget / measuredTotal;
+        correction = Math.max(0.5, Math.min(2.0, correction * Math.sqrt(ratio)));
+    }
+
+    private void release(Lease lease) {
+        synchronized (lock) {
+            leases.remove(lease);
+        }
+        rebalance();
+    }
+
+    static String formatRate(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return "無制限";
+        }
+        return String.format("%.2f MB/s", bytesPerSecond / 1_000_000.0);
+    }
+
+    final class Lease implements AutoCloseable {
+        private final String label;
+        private final double weight;
+        private final boolean restartable;
+        private volatile Runnable restartHandler;
+        private volatile long limit;
+        private volatile long appliedLimit;
+        private volatile double measured;
+        // 頭打ちとみなしている間の需要。再起動直後で実測値がない間もこの値を使う
+        private boolean demandBound;
+        private double boundDemand;
+        private volatile long lastRestartNanos = System.nanoTime();
+
+        private Lease(String label, double weight, boolean restartable) {
+            this.label = label;
+            this.weight = weight > 0 ? weight : 1.0;
+            this.restartable = restartable;
+        }
+
+        /**
+         * プロセス起動直前に呼び出し、今回適用する制限値(bytes/s、0は無制限)を返す。
+         */
+        long limitForStart() {
+            appliedLimit = limit;
+            measured = 0;
+            return appliedLimit;
+        }
+
+        /**
+         * 転送中に制限値を変えられる呼び出し元(Javaによる直接の取得)向けに、現在の割り当てを返す。
+         * 取得側が常に最新の値を使うため、割り当てが変わっても再起動は要求されない。
+         */
+        long currentLimit() {
+            appliedLimit = limit;
+            return appliedLimit;
+        }
+
+        /**
+         * 割り当て変更時に呼ばれる処理。通常は実行中のプロセスを停止して再起動させる。
+         */
+        void setRestartHandler(Runnable restartHandler) {
+            this.restartHandler = restartHandler;
+        }
+
+        void reportThroughput(double bytesPerSecond) {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            double previous = measured;
+            measured = previous <= 0 ? bytesPerSecond : previous + THROUGHPUT_SMOOTHING * (bytesPerSecond - previous);
+        }
+
+        /**
+         * 頭打ちのジョブは実測値×1.2、それ以外は上限なし。使用率が0.8を下回ると頭打ちとし、0.95以上に戻るまで解除しない。
+         * 呼び出しは {@code lock} の中で行う。
+         */
+        double estimatedDemand() {
+            double current = measured;
+            if (appliedLimit <= 0) {
+                demandBound = false;
+            } else if (current > 0) {
+                double usage = current / appliedLimit;
+                if (usage < DEMAND_BOUND_RATIO) {
+                    demandBound = true;
+                } else if (usage >= DEMAND_RELEASE_RATIO) {
+                    demandBound = false;
+                }
+                if (demandBound) {
+                    boundDemand = current * DEMAND_HEADROOM;
+                }
+            }
+            return demandBound ? boundDemand : Double.MAX_VALUE;
+        }
+
+        /**
+         * 直近の計算で決まった割り当て(bytes/s、0は無制限)。適用済みの値は変えない。
+         */
+        long assignedLimit() {
+            return limit;
+        }
+
+        private boolean needsRestart(long now) {
+            if (now - lastRestartNanos < MIN_RESTART_INTERVAL_NANOS || limit == appliedLimit) {
+                return false;
+            }
+            if (limit <= 0 || appliedLimit <= 0) {
+                return true;
+            }
+            return Math.abs(limit - appliedLimit) > appliedLimit * RESTART_CHANGE_RATIO;
+        }
+
+        @Override
+        public void close() {
+            restartHandler = null;
+            release(this);
+        }
+    }
+}
@@ -1,16 +1,46 @@
 package com.kyopan_pan.ytdownloader;
 
 import java.io.*;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.JarEntry;
 
 public class DependencyManager {
 
-    public void ensureBinaries() {
+    private static final String FFMPEG_RESOURCE = "/bin/ffmpeg";
+    private static final String FFMPEG_STAMP_FILE = "ffmpeg.stamp";
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    private final ExecutorService provisioningExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "binary-provisioning");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile CompletableFuture<Void> ytDlpReady = new CompletableFuture<>();
+    private volatile CompletableFuture<Void> ffmpegReady = new CompletableFuture<>();
+
+    /**
+     * yt-dlpとffmpegの準備を並列に開始し、両方が使用可能になった時点で完了するFutureを返す。
+     * バイナリは一時ファイルに書き出してから置き換えるため、完了前に中途半端なファイルが見えることはない。
+     */
+    public CompletableFuture<Void> ensureBinaries() {
         AppLogger.log("[DependencyManager] Initial setup: ensureBinaries started");
         File binDir = new File(DownloadConfig.BIN_DIR);
         if (!binDir.exists()) {
@@ -20,37 +50,113 @@ public class DependencyManager {
             AppLogger.log("[DependencyManager] bin dir already exists: " + binDir.getAbsolutePath());
         }
 
-        try {
-            // 1. yt-dlp の準備
-            File ytDlp = new File(DownloadConfig.getYtDlpPath());
-            if (!ytDlp.exists()) {
-                AppLogger.log("[DependencyManager] yt-dlp not found. Downloading to " + ytDlp.getAbsolutePath());
-                downloadYtDlp(ytDlp);
-            } else if (!ytDlp.canExecute()) {
-                AppLogger.log("[DependencyManager] yt-dlp found but not executable. Re-applying permission...");
-                makeExecutable(ytDlp.toPath());
-                AppLogger.log("[DependencyManager] yt-dlp permission refreshed.");
-            } else {
-                AppLogger.log("[DependencyManager] yt-dlp already present: " + ytDlp.getAbsolutePath());
+        CompletableFuture<Void> ytDlpTask = CompletableFuture.runAsync(() -> provision("yt-dlp", this::provisionYtDlp), provisioningExecutor);
+        CompletableFuture<Void> ffmpegTask = CompletableFuture.runAsync(() -> provision("ffmpeg", this::provisionFfmpeg), provisioningExecutor);
+        propagate(ytDlpTask, ytDlpReady);
+        propagate(ffmpegTask, ffmpegReady);
+
+        CompletableFuture<Void> all = binariesReady();
+        all.whenComplete((ignored, error) -> {
+            if (error != null) {
+                AppLogger.logError("[DependencyManager] ensureBinaries failed", unwrap(error));
             }
+            AppLogger.log("[DependencyManager] Initial setup: ensureBinaries finished");
+        });
+        return all;
+    }
 
-            // 2. ffmpeg の準備 (リソースからコピー)
-            File ffmpeg = new File(DownloadConfig.getFfmpegPath());
-            if (!ffmpeg.exists()) {
-                AppLogger.log("[DependencyManager] ffmpeg not found. Extracting to " + ffmpeg.getAbsolutePath());
-                copyFfmpegFromResources(ffmpeg);
-            } else if (!ffmpeg.canExecute()) {
+    /**
+     * yt-dlpが実行可能になった時点で完了する。準備に失敗した場合は例外で完了する。
+     */
+    public CompletableFuture<Void> ytDlpReadiness() {
+        return ytDlpReady;
+    }
+
+    /**
+     * ダウンロードに必要なyt-dlpとffmpegの両方が揃った時点で完了する。
+     */
+    public CompletableFuture<Void> binariesReady() {
+        return CompletableFuture.allOf(ytDlpReady, ffmpegReady);
+    }
+
+    public boolean isYtDlpSetupFailed() {
+        return ytDlpReady.isCompletedExceptionally();
+    }
+
+    private void provisionYtDlp() throws IOException {
+        File ytDlp = new File(DownloadConfig.getYtDlpPath());
+        if (!ytDlp.exists()) {
+            AppLogger.log("[DependencyManager] yt-dlp not found. Downloading to " + ytDlp.getAbsolutePath());
+            downloadYtDlp(ytDlp);
+        } else if (!ytDlp.canExecute()) {
+            AppLogger.log("[DependencyManager] yt-dlp found but not executable. Re-applying permission...");
+            makeExecutable(ytDlp.toPath());
+            AppLogger.log("[DependencyManager] yt-dlp permission refreshed.");
+        } else {
+            AppLogger.log("[DependencyManager] yt-dlp already present: " + ytDlp.getAbsolutePath());
+        }
+    }
+
+    private void provisionFfmpeg() throws IOException {
+        File ffmpeg = new File(DownloadConfig.getFfmpegPath());
+        String resourceStamp = ffmpegResourceStamp();
+        if (ffmpeg.exists() && resourceStamp.equals(readStoredFfmpegStamp())) {
+            if (!ffmpeg.canExecute()) {
                 AppLogger.log("[DependencyManager] ffmpeg found but not executable. Re-applying permission...");
                 makeExecutable(ffmpeg.toPath());
-                AppLogger.log("[DependencyManager] ffmpeg permission refreshed.");
+            }
+            AppLogger.log("[DependencyManager] ffmpeg already present and stamp matches: " + ffmpeg.getAbsolutePath());
+            return;
+        }
+        AppLogger.log("[DependencyManager] ffmpeg missing or outdated. Extracting to " + ffmpeg.getAbsolutePath());
+        copyFfmpegFromResources(ffmpeg);
+        writeStoredFfmpegStamp(resourceStamp);
+    }
+
+    private void provision(String name, IoTask task) {
+        try {
+            task.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(name + " provisioning failed", e);
+        }
+    }
+
+    private static void propagate(CompletableFuture<Void> source, CompletableFuture<Void> target) {
+        source.whenComplete((ignored, error) -> {
+            if (error != null) {
+                target.completeExceptionally(unwrap(error));
             } else {
-                AppLogger.log("[DependencyManager] ffmpeg already present: " + ffmpeg.getAbsolutePath());
+                target.complete(null);
             }
+        });
+    }
 
-        } catch (Exception e) {
-            AppLogger.logError("[DependencyManager] ensureBinaries failed", e);
+    private static Throwable unwrap(Throwable error) {
+        Throwable current = error;
+        while ((current instanceof CompletionException || current instanceof UncheckedIOException) && current.getCause() != null) {
+            current = current.getCause();
+        }
+        return current;
+    }
+
+    /**
+     * 更新などで準備が完了した際、失敗済みのFutureを成功済みのものに差し替える。
+     */
+    private void markReady(boolean ytDlp) {
+        CompletableFuture<Void> current = ytDlp ? ytDlpReady : ffmpegReady;
+        if (current.complete(null) || !current.isCompletedExceptionally()) {
+            return;
+        }
+        if (ytDlp) {
+            ytDlpReady = CompletableFuture.completedFuture(null);
+        } else {
+            ffmpegReady = CompletableFuture.completedFuture(null);
         }
-        AppLogger.log("[DependencyManager] Initial setup: ensureBinaries finished");
+    }
+
+    @FunctionalInterface
+    private interface IoTask {
+        void run() throws IOException;
     }
 
     public YtDlpVersionResult getYtDlpVersion() {
@@ -95,13 +201,15 @@ public class DependencyManager {
         try {
             AppLogger.log("[DependencyManager] Updating yt-dlp to latest...");
             downloadYtDlp(ytDlp);
+            markReady(true);
 
             // === ffmpeg も同時にチェックして復元する ===
             File ffmpeg = new File(DownloadConfig.getFfmpegPath());
             if (!ffmpeg.exists() || !ffmpeg.canExecute()) {
                 AppLogger.log("[DependencyManager] ffmpeg missing or invalid during update. Restoring...");
-                copyFfmpegFromResources(ffmpeg);
+                provisionFfmpeg();
             }
+            markReady(false);
             // ============================================
 
             return new YtDlpUpdateResult(true, "yt-dlpを更新しました。");
@@ -123,8 +231,11 @@ public class DependencyManager {
 
         AppLogger.log("[DependencyManager] Downloading yt-dlp via curl from " + downloadUrl);
 
+        // 取得途中のファイルを実行しないよう、一時ファイルに落としてから置き換える
+        Path temp = destination.toPath().resolveSibling(destination.getName() + ".download");
+
         // JavaのSSL機能を使わず、macOS標準のcurlコマンドに委譲する
-        ProcessBuilder pb = new ProcessBuilder("curl", "-L", "-o", destination.getAbsolutePath(), downloadUrl);
+        ProcessBuilder pb = new ProcessBuilder("curl", "-L", "-o", temp.toString(), downloadUrl);
         pb.redirectErrorStream(true);
 
         try {
@@ -136,10 +247,12 @@ public class DependencyManager {
             }
             int exitCode = process.waitFor();
             if (exitCode != 0) {
+                Files.deleteIfExists(temp);
                 throw new IOException("curlによるダウンロードに失敗しました。Exit code: " + exitCode);
             }
 
-            makeExecutable(destination.toPath());
+            makeExecutable(temp);
+            moveIntoPlace(temp, destination.toPath());
             AppLogger.log("[DependencyManager] yt-dlp ready: " + destination.getAbsolutePath());
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -150,13 +263,63 @@ public class DependencyManager {
     private void copyFfmpegFromResources(File destination) throws IOException {
         // src/main/resources/bin/ffmpeg を参照します
         AppLogger.log("[DependencyManager] Copying bundled ffmpeg to " + destination.getAbsolutePath());
-        try (InputStream in = getClass().getResourceAsStream("/bin/ffmpeg")) {
+        Path temp = destination.toPath().resolveSibling(destination.getName() + ".extract");
+        try (InputStream in = getClass().getResourceAsStream(FFMPEG_RESOURCE)) {
             if (in == null) {
                 throw new FileNotFoundException("FFmpeg binary not found in resources! Please put 'ffmpeg' in src/main/resources/bin/");
             }
-            Files.copy(in, destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            makeExecutable(destination.toPath());
+            try (ReadableByteChannel source = Channels.newChannel(in);
+                 FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                long transferred;
+                while ((transferred = target.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                    position += transferred;
+                }
+            }
+            makeExecutable(temp);
+            moveIntoPlace(temp, destination.toPath());
             AppLogger.log("[DependencyManager] ffmpeg ready: " + destination.getAbsolutePath());
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 同梱のffmpegを識別する値。jarから読む場合はエントリのサイズとCRC32(jarの目次に記録済みで、展開せずに得られる)、
+     * それ以外(開発時のクラスフォルダやjlinkのイメージ)はサイズと更新日時を使う。中身を読まずに済むため、起動のたびに
+     * 数十MBを展開してハッシュを計算することはない。
+     */
+    private String ffmpegResourceStamp() throws IOException {
+        URL url = getClass().getResource(FFMPEG_RESOURCE);
+        if (url == null) {
+            throw new FileNotFoundException("FFmpeg binary not found in resources! Please put 'ffmpeg' in src/main/resources/bin/");
+        }
+        URLConnection connection = url.openConnection();
+        if (connection instanceof JarURLConnection jar) {
+            JarEntry entry = jar.getJarEntry();
+            return "jar:" + entry.getSize() + ":" + Long.toHexString(entry.getCrc());
+        }
+        return url.getProtocol() + ":" + connection.getContentLengthLong() + ":" + connection.getLastModified();
+    }
+
+    private String readStoredFfmpegStamp() {
+        Path stampFile = Paths.get(DownloadConfig.BIN_DIR, FFMPEG_STAMP_FILE);
+        try {
+            return Files.exists(stampFile) ? Files.readString(stampFile, StandardCharsets.UTF_8).trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeStoredFfmpegStamp(String stamp) throws IOException {
+        Files.writeString(Paths.get(DownloadConfig.BIN_DIR, FFMPEG_STAMP_FILE), stamp, StandardCharsets.UTF_8);
+    }
+
+    private void moveIntoPlace(Path source, Path destination) throws IOException {
+        try {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
@@ -0,0 +1,142 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * 保存先ボリュームの空き容量に対して、実行中ジョブの予約分を差し引いた上でダウンロードの開始可否を判定する。
+ * 容量が足りない間は失敗させずに待機し、他のジョブの予約解放やファイル削除で空きができた時点で開始させる。
+ */
+final class DiskSpaceGuard {
+
+    // 空き容量を使い切らないよう常に残しておく量
+    private static final long SAFETY_MARGIN_BYTES = 512L * 1024 * 1024;
+    // 予約解放の通知がなくても、ユーザーによる削除などを拾うため定期的に空き容量を確認し直す
+    private static final long RECHECK_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    private final Object lock = new Object();
+    private final Map<FileStore, Long> reserved = new HashMap<>();
+
+    /**
+     * 予約を差し引いた空き容量が指定量以上あるかを返す。サイズの事前調査を省略してよいかの判定に使う。
+     */
+    boolean hasHeadroom(Path directory, long bytes) {
+        try {
+            FileStore store = Files.getFileStore(directory);
+            long usable = usableSpace(store);
+            synchronized (lock) {
+                return available(store, usable) >= bytes;
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 指定量の容量を予約する。空きが足りない場合は確保できるまで待機する。
+     * 見積もりが余裕分を除いたボリュームの容量を超える場合は、その容量まで切り詰めて予約する。
+     *
+     * @param onWaiting 待機を始めた時点で、待機理由を受け取る
+     * @throws IOException 指定量がボリューム全体の容量を超えている場合
+     */
+    Reservation reserve(Path directory, long bytes, BooleanSupplier cancelled, Consumer<String> onWaiting)
+            throws IOException, InterruptedException {
+        FileStore store;
+        long total;
+        try {
+            store = Files.getFileStore(directory);
+            total = store.getTotalSpace();
+        } catch (IOException e) {
+            AppLogger.logError("[DiskSpaceGuard] 保存先のボリュームを特定できないため容量確認を省略します: " + directory, e);
+            return new Reservation(null, 0);
+        }
+        if (total > 0 && bytes > total) {
+            throw new IOException("必要な容量 " + formatBytes(bytes) + " が保存先ボリュームの容量 " + formatBytes(total) + " を超えています");
+        }
+        // 余裕分を残すと決して収まらない見積もりは、空にしたボリュームに収まる量まで切り詰める
+        long needed = total > 0 ? Math.min(bytes, Math.max(0, total - SAFETY_MARGIN_BYTES)) : bytes;
+        boolean notified = false;
+        while (true) {
+            if (cancelled.getAsBoolean()) {
+                throw new InterruptedException("容量待機中にキャンセルされました");
+            }
+            // NASなどでは問い合わせに時間がかかるため、ロックの外で空き容量を取得する
+            long usable = usableSpace(store);
+            String waitMessage = null;
+            synchronized (lock) {
+                long free = available(store, usable);
+                if (free >= needed) {
+                    reserved.merge(store, needed, Long::sum);
+                    AppLogger.log("[DiskSpaceGuard] " + formatBytes(needed) + " を予約 (予約後の空き " + formatBytes(free - needed) + ")");
+                    return new Reservation(store, needed);
+                }
+                if (!notified) {
+                    waitMessage = "必要 " + formatBytes(needed) + " / 空き " + formatBytes(Math.max(0, free));
+                    notified = true;
+                } else {
+                    lock.wait(RECHECK_INTERVAL_MILLIS);
+                }
+            }
+            if (waitMessage != null) {
+                AppLogger.log("[DiskSpaceGuard] 空き容量不足のため待機します: " + waitMessage);
+                onWaiting.accept(waitMessage);
+            }
+        }
+    }
+
+    private static long usableSpace(FileStore store) {
+        try {
+            return store.getUsableSpace();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private long available(FileStore store, long usable) {
+        if (usable == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return usable - reserved.getOrDefault(store, 0L) - SAFETY_MARGIN_BYTES;
+    }
+
+    private void release(FileStore store, long bytes) {
+        synchronized (lock) {
+            reserved.computeIfPresent(store, (key, value) -> value - bytes > 0 ? value - bytes : null);
+            lock.notifyAll();
+        }
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes >= 1024L * 1024 * 1024) {
+            return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    final class Reservation implements AutoCloseable {
+        private final FileStore store;
+        private final long bytes;
+        private boolean released;
+
+        private Reservation(FileStore store, long bytes) {
+            this.store = store;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (released || store == null) {
+                return;
+            }
+            released = true;
+            release(store, bytes);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * ダウンロード済みの動画を「抽出器名 動画ID」の行で記録するアーカイブ。
+ * yt-dlpの `--download-archive` と同じ書式・同じファイルを共有し、メモリ上のハッシュセットでURLから即座に重複を判定する。
+ * yt-dlpが追記した行は、ファイルの伸びた分だけを読み直して取り込む。
+ */
+final class DownloadArchive {
+
+    private static final String FILE_NAME = "archive.txt";
+    private static final Pattern YOUTUBE_ID = Pattern.compile("[A-Za-z0-9_-]{11}");
+    private static final Set<String> YOUTUBE_PATH_PREFIXES = Set.of("shorts", "embed", "live", "v", "e");
+
+    private final Path file;
+    private final Set<String> entries = new HashSet<>();
+    private long loadedBytes;
+
+    DownloadArchive(Path file) {
+        this.file = file;
+    }
+
+    static DownloadArchive openDefault() {
+        return new DownloadArchive(Paths.get(DownloadConfig.APP_DATA_DIR, FILE_NAME));
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * URLから判定できる範囲でアーカイブ済みかを返す。ネットワークアクセスやプロセス起動は行わない。
+     */
+    boolean isArchived(String url) {
+        String key = canonicalKey(url);
+        return key != null && contains(key);
+    }
+
+    synchronized boolean contains(String key) {
+        refresh();
+        return entries.contains(key);
+    }
+
+    /**
+     * yt-dlpを介さずに完了したダウンロード(AnimeThemesのパイプラインなど)を記録する。
+     */
+    synchronized void record(String key) {
+        refresh();
+        if (!entries.add(key)) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(key);
+                writer.write('\n');
+            }
+            loadedBytes = Files.size(file);
+        } catch (IOException e) {
+            AppLogger.logError("[DownloadArchive] アーカイブへの追記に失敗しました: " + file, e);
+        }
+    }
+
+    /**
+     * 前回読み込んだ位置以降に追記された完全な行だけを取り込む。
+     */
+    private void refresh() {
+        try {
+            if (!Files.exists(file)) {
+                return;
+            }
+            long size = Files.size(file);
+            if (size < loadedBytes) {
+                // 外部で切り詰められた場合は読み直す
+                entries.clear();
+                loadedBytes = 0;
+            }
+            if (size == loadedBytes) {
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, size - loadedBytes));
+                channel.read(buffer, loadedBytes);
+                buffer.flip();
+                int lastNewline = -1;
+                for (int i = buffer.limit() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        lastNewline = i;
+                        break;
+                    }
+                }
+                if (lastNewline < 0) {
+                    return;
+                }
+                String chunk = new String(buffer.array(), 0, lastNewline, StandardCharsets.UTF_8);
+                for (String line : chunk.split("\n")) {
+                    String trimmed = line.trim();
+                    if (!trimmed.isEmpty()) {
+                        entries.add(trimmed);
+                    }
+                }
+                loadedBytes += lastNewline + 1;
+            }
+        } catch (IOException e) {
+            AppLogger.logError("[DownloadArchive] アーカイブの読み込みに失敗しました: " + file, e);
+        }
+    }
+
+    /**
+     * URLからyt-dlpのアーカイブ行と同じ「抽出器名 動画ID」を求める。判定できないサイトの場合はnullを返す。
+     */
+    static String canonicalKey(String url) {
+        if (url == null || url.isBlank()) {
+            return null;
+        }
+        URI uri;
+        try {
+            uri = new URI(url.trim());
+        } catch (Exception e) {
+            return null;
+        }
+        String host = uri.getHost();
+        if (host == null) {
+            return null;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        if (host.startsWith("www.") || host.startsWith("m.")) {
+            host = host.substring(host.indexOf('.') + 1);
+        }
+        List<String> segments = pathSegments(uri.getPath());
+
+        if (host.equals("youtu.be")) {
+            return youtubeKey(segments.isEmpty() ? null : segments.getFirst());
+        }
+        if (host.equals("youtube.com") || host.equals("music.youtube.com") || host.equals("youtube-nocookie.com")) {
+            if (!segments.isEmpty() && segments.getFirst().equals("watch")) {
+                return youtubeKey(queryParameter(uri.getRawQuery(), "v"));
+            }
+            if (segments.size() >= 2 && YOUTUBE_PATH_PREFIXES.contains(segments.getFirst())) {
+                return youtubeKey(segments.get(1));
+            }
+            return null;
+        }
+        if (host.endsWith("animethemes.moe") && !segments.isEmpty()) {
+            // ページURLは anime/<作品>/<テーマ>、動画URLは <ファイル名>.webm
+            String id = host.startsWith("v.") || host.startsWith("a.")
+                    ? stripExtension(segments.getLast())
+                    : String.join("/", segments);
+            return "animethemes " + id;
+        }
+        return null;
+    }
+
+    private static String youtubeKey(String id) {
+        if (id == null || !YOUTUBE_ID.matcher(id).matches()) {
+            return null;
+        }
+        return "youtube " + id;
+    }
+
+    private static List<String> pathSegments(String path) {
+        List<String> segments = new ArrayList<>();
+        if (path == null) {
+            return segments;
+        }
+        for (String segment : path.split("/")) {
+            if (!segment.isBlank()) {
+                segments.add(segment.trim());
+            }
+        }
+        return segments;
+    }
+
+    private static String queryParameter(String rawQuery, String name) {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return pair.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
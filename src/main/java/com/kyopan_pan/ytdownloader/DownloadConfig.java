@@ -10,6 +10,26 @@ public final class DownloadConfig {
 
     private static final String DEFAULT_DOWNLOAD_DIR = System.getProperty("user.home") + "/Movies/YtDlpDownloads";
     private static String downloadDir = DEFAULT_DOWNLOAD_DIR;
+    // 全ダウンロードで共有する帯域上限(bytes/s)。0以下は無制限
+    private static long rateLimitBytesPerSecond;
+    // ダウンロード済みの動画をアーカイブで判定してスキップするか
+    private static boolean archiveEnabled = true;
+    // 停止時に子プロセスへ終了要求を送ってから強制終了するまでの猶予(ミリ秒)
+    private static long terminationGraceMillis = 3000;
+    // AnimeThemesのパイプラインで、yt-dlpの標準出力の代わりにアプリ内の中継からffmpegへ流し込むか
+    private static boolean streamRelayEnabled = true;
+    // フォーマット選択の上限。いずれも0以下は無制限
+    private static int maxVideoHeight;
+    private static long maxBitrateKbps;
+    private static long maxFileSizeBytes;
+    // 1本あたりの目標時間(秒)。帯域の見積もりと掛け合わせてファイルサイズの目安にする。0以下は指定なし
+    private static long targetSecondsPerVideo;
+    // 保存先の中のフォルダ分け
+    private static OutputLayout outputLayout = OutputLayout.FLAT;
+    // ダウンロードと変換を行うローカルの作業フォルダ。nullなら保存先で直接行う
+    private static String stagingDir;
+    // ステージングから保存先へ同時に移すファイル数
+    private static int maxConcurrentMoves = 2;
 
     // バイナリのパスを動的に生成
     public static String getYtDlpPath() {
@@ -32,6 +52,101 @@ public final class DownloadConfig {
         downloadDir = new File(newDir).getAbsolutePath();
     }
 
+    public static synchronized String getStagingDir() {
+        return stagingDir;
+    }
+
+    public static synchronized void setStagingDir(String dir) {
+        stagingDir = dir == null || dir.isBlank() ? null : new File(dir.trim()).getAbsolutePath();
+    }
+
+    /**
+     * yt-dlpとffmpegが書き出す場所。ステージングを使う場合はそのフォルダ、使わない場合は保存先。
+     */
+    public static synchronized String getWorkingDir() {
+        return stagingDir != null ? stagingDir : downloadDir;
+    }
+
+    public static synchronized int getMaxConcurrentMoves() {
+        return maxConcurrentMoves;
+    }
+
+    public static synchronized void setMaxConcurrentMoves(int moves) {
+        maxConcurrentMoves = Math.max(1, moves);
+    }
+
+    public static synchronized long getRateLimitBytesPerSecond() {
+        return rateLimitBytesPerSecond;
+    }
+
+    public static synchronized void setRateLimitBytesPerSecond(long bytesPerSecond) {
+        rateLimitBytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    public static synchronized boolean isArchiveEnabled() {
+        return archiveEnabled;
+    }
+
+    public static synchronized void setArchiveEnabled(boolean enabled) {
+        archiveEnabled = enabled;
+    }
+
+    public static synchronized long getTerminationGraceMillis() {
+        return terminationGraceMillis;
+    }
+
+    public static synchronized void setTerminationGraceMillis(long millis) {
+        terminationGraceMillis = Math.max(0, millis);
+    }
+
+    public static synchronized boolean isStreamRelayEnabled() {
+        return streamRelayEnabled;
+    }
+
+    public static synchronized void setStreamRelayEnabled(boolean enabled) {
+        streamRelayEnabled = enabled;
+    }
+
+    public static synchronized int getMaxVideoHeight() {
+        return maxVideoHeight;
+    }
+
+    public static synchronized void setMaxVideoHeight(int height) {
+        maxVideoHeight = Math.max(0, height);
+    }
+
+    public static synchronized long getMaxBitrateKbps() {
+        return maxBitrateKbps;
+    }
+
+    public static synchronized void setMaxBitrateKbps(long kbps) {
+        maxBitrateKbps = Math.max(0, kbps);
+    }
+
+    public static synchronized long getMaxFileSizeBytes() {
+        return maxFileSizeBytes;
+    }
+
+    public static synchronized void setMaxFileSizeBytes(long bytes) {
+        maxFileSizeBytes = Math.max(0, bytes);
+    }
+
+    public static synchronized long getTargetSecondsPerVideo() {
+        return targetSecondsPerVideo;
+    }
+
+    public static synchronized void setTargetSecondsPerVideo(long seconds) {
+        targetSecondsPerVideo = Math.max(0, seconds);
+    }
+
+    static synchronized OutputLayout getOutputLayout() {
+        return outputLayout;
+    }
+
+    static synchronized void setOutputLayout(OutputLayout layout) {
+        outputLayout = layout == null ? OutputLayout.FLAT : layout;
+    }
+
     public static String getDefaultDownloadDir() {
         return DEFAULT_DOWNLOAD_DIR;
     }
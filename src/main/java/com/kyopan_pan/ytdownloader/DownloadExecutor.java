@@ -8,39 +8,231 @@ import javafx.scene.shape.SVGPath;
 import java.io.*;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class DownloadExecutor {
 
     private static final String ANIME_THEMES_HOST = "animethemes.moe";
     private static final Pattern PERCENT_PATTERN = Pattern.compile("(\\d{1,3}(?:\\.\\d+)?)%");
+    // 空白区切り、または区切りなしで連結された複数URLを切り出す
+    private static final Pattern URL_PATTERN = Pattern.compile("https?://\\S+?(?=https?://|\\s|$)");
+    // 段階の計測用。抽出の完了(形式の決定)と、ダウンロード後の後処理の開始を表す行
+    private static final Pattern EXTRACTED_PATTERN = Pattern.compile("^\\[info] .+: Downloading \\d+ format|^\\[download] Destination:");
+    private static final Pattern POSTPROCESS_PATTERN = Pattern.compile("^\\[(Merger|ExtractAudio|VideoConvertor|VideoRemuxer|Fixup\\w+)]");
+    private static final Pattern SPEED_PATTERN = Pattern.compile("at\\s+(\\d+(?:\\.\\d+)?)\\s*([KMG]?)i?B/s");
+    private static final String STANDARD_MATCH_FILTER = "vcodec~='(?i)^(avc|h264)'";
+    // 事前調査でサイズが分からなかった場合の1件あたりの見積もり
+    private static final long DEFAULT_SIZE_ESTIMATE = 1024L * 1024 * 1024;
+    // 予約後もこれだけ空きがあれば、サイズ調査のためのyt-dlp起動を省略する
+    private static final long PROBE_SKIP_HEADROOM = 32L * 1024 * 1024 * 1024;
+    // 結合(映像+音声+出力)や互換モードの再エンコード(元ファイル+変換後)で一時的に必要になる倍率
+    private static final double MERGE_SPACE_FACTOR = 2.0;
+    // AnimeThemesはパイプで変換するため出力のみだが、libx264の出力は元のwebmより大きくなりやすい
+    private static final double TRANSCODE_SPACE_FACTOR = 1.5;
+    // 変換前の一時ファイルを置く、保存先直下の作業ディレクトリ
+    private static final String WORK_DIR_NAME = ".ytdownloader-work";
+    private static final String LOG_SOURCE = "DownloadExecutor";
+    // AnimeThemesの出力はyt-dlpに名前を問い合わせないため、投稿者ごとの構成ではこの名前のフォルダに置く
+    private static final String ANIME_THEMES_UPLOADER = "AnimeThemes";
+    // 停止時に削除する、yt-dlpやffmpegの途中ファイル(.part / .ytdl / 断片 / 結合前の各フォーマット)
+    private static final Pattern PARTIAL_FILE_PATTERN = Pattern.compile(
+            ".*(\\.part|\\.ytdl|\\.part-Frag\\d+(\\.part)?|\\.temp\\.[^.]+|\\.f\\d+\\.[^.]+)$");
+    private static final AtomicLong JOB_SEQUENCE = new AtomicLong();
     private final Consumer<ProgressUpdate> progressConsumer;
+    private final DependencyManager dependencyManager;
+    private final BandwidthGovernor bandwidthGovernor = new BandwidthGovernor();
+    private final DiskSpaceGuard diskSpaceGuard = new DiskSpaceGuard();
+    private final DownloadArchive downloadArchive = DownloadArchive.openDefault();
+    private final PostProcessingStage postProcessing = new PostProcessingStage();
+    // ステージングで完成したファイルを保存先へ移す。ジョブの終了ごとに走査する
+    private final StagingMover stagingMover = new StagingMover(DownloadConfig.getMaxConcurrentMoves());
+    private final ProcessLauncher processLauncher = new TrackedLauncher();
+    private final YtDlpBatchPool batchPool = new YtDlpBatchPool(YtDlpBatchPool.DEFAULT_WORKERS, bandwidthGovernor);
     private final Object processLock = new Object();
     private final List<Process> activeProcesses = new ArrayList<>();
+    // 最終的な出力先へ直接書き込んでいる途中のファイル(AnimeThemesのパイプライン)。停止時に削除する
+    private final Set<Path> partialOutputs = ConcurrentHashMap.newKeySet();
+    // ステージングを使う場合の、保存先へ移し終えるまで「一覧に表示」を待っているジョブ(ステージング内の出力のパスごと)
+    private final Map<Path, PhaseLatencyStats.Job> awaitingVisible = new ConcurrentHashMap<>();
+    private volatile Consumer<Path> libraryChangedListener;
+    // partialOutputs のうち、一時停止後に続きから再開できるもの(分割ダウンロードの.partと.ytdl)
+    private final Set<Path> resumableOutputs = ConcurrentHashMap.newKeySet();
+    private volatile CompletableFuture<ProcessTreeTerminator.Report> termination = CompletableFuture.completedFuture(null);
+    private volatile long cancelRequestedNanos;
+    private volatile long downloadStartMillis;
     private volatile long downloadStartNanos;
     private volatile boolean downloadActive;
     private volatile boolean progressStarted;
     private volatile boolean cancelRequested;
+    private volatile boolean pauseRequested;
+    private volatile String waitingReason;
     private volatile Thread workerThread;
+    // ログに付けるジョブの識別子。ダウンロードの開始ごとに振り直す
+    private volatile String jobId;
+    // 現在のジョブの子プロセスの資源使用量。ジョブの終了時に集計を記録する
+    private volatile JobResourceMonitor resourceMonitor;
+    private volatile PhaseLatencyStats.Job phases;
+    // 履歴に残すジョブの情報
+    private volatile List<String> jobUrls = List.of();
+    private volatile String strategy = "none";
+    private volatile int lastFailedExit;
+    // 保存先の年月を決める時刻と、このジョブで完了したURL・直接のURLに決めた保存先。一時停止したジョブの再開に引き継ぐ
+    private volatile long layoutMillis;
+    private volatile Set<String> completedUrls = ConcurrentHashMap.newKeySet();
+    private volatile Map<String, Path> directTargets = new ConcurrentHashMap<>();
+    // このジョブが出力した完成ファイルとその大きさ。履歴の集計と出力の検証に使う
+    private volatile Map<Path, Long> producedOutputs = new ConcurrentHashMap<>();
+    // 現在のジョブの再試行の予算。URLの件数が分かった時点で作り直す
+    private volatile RetryPolicy retryPolicy = new RetryPolicy(0);
     private Thread loadingElapsedThread;
+    // 実行中のジョブの後に控えるジョブ。優先度の高いものから順に、前のジョブが成功・失敗で終わるたびに1件ずつ開始する
+    private final PriorityQueue<QueuedJob> queuedJobs = new PriorityQueue<>(
+            Comparator.comparing(QueuedJob::priority).thenComparingLong(QueuedJob::sequence));
+    private final AtomicLong queueSequence = new AtomicLong();
+    // H.264優先のバッチを実行中の間だけ設定する。優先URLの割り込み先
+    private volatile BatchProgress activeBatch;
+    private JobControls jobControls;
+    private String jobInput;
+    // 一時停止したジョブ。FXスレッドからのみ操作する
+    private final Deque<PausedJob> pausedJobs = new ArrayDeque<>();
+    private IntConsumer pausedJobsListener;
+
+    /**
+     * ジョブの優先度。1件だけのURL入力は利用者が結果を待っているものとして、複数URLのまとめての取得より優先する。
+     * 同時に動くプロセスの間では、帯域予算を重みに比例して配分する。
+     */
+    enum JobPriority {
+        HIGH(3.0),
+        LOW(1.0);
+
+        private final double bandwidthWeight;
+
+        JobPriority(double bandwidthWeight) {
+            this.bandwidthWeight = bandwidthWeight;
+        }
+
+        double bandwidthWeight() {
+            return bandwidthWeight;
+        }
+    }
+
+    /**
+     * @param resumed 一時停止から再開するジョブの場合はその状態、それ以外はnull
+     */
+    private record QueuedJob(String input, JobPriority priority, long sequence, PausedJob resumed) {
+    }
+
+    /**
+     * 一時停止したジョブの入力と、再開時に同じ続きから取得するための状態。
+     * 直接のURLは完了済みかをアーカイブで判定できず、保存先も再開時の時刻で変わりうるため、決めた保存先をそのまま引き継ぐ。
+     */
+    private record PausedJob(String input, long layoutMillis, Set<String> completedUrls, Map<String, Path> directTargets) {
+    }
 
-    public DownloadExecutor() {
-        this(null);
+    private record JobControls(Button btn, SVGPath downloadIcon, SVGPath stopIcon, SVGPath successIcon, Runnable onSuccess) {
     }
 
-    public DownloadExecutor(Consumer<ProgressUpdate> progressConsumer) {
+    public DownloadExecutor(DependencyManager dependencyManager) {
+        this(dependencyManager, null);
+    }
+
+    public DownloadExecutor(DependencyManager dependencyManager, Consumer<ProgressUpdate> progressConsumer) {
+        this.dependencyManager = dependencyManager;
         this.progressConsumer = progressConsumer;
+        stagingMover.setMovedListener(this::onStagedFileMoved);
+        stagingMover.setInProgressFilter(partialOutputs::contains);
+        stagingMover.sweepLeftovers();
+    }
+
+    /**
+     * ステージングから保存先へファイルを移し終えるたびに、保存先のパスを渡して呼ぶ処理を設定する。移動用のスレッドで呼ぶ。
+     */
+    public void setLibraryChangedListener(Consumer<Path> listener) {
+        this.libraryChangedListener = listener;
+    }
+
+    /**
+     * ステージングから保存先へ1件移し終えたときに移動用のスレッドで呼ばれる。
+     * ジョブの出力が最初に保存先へ現れた時点をそのジョブの「一覧に表示」とし、段階ごとの所要時間を確定する。
+     */
+    private void onStagedFileMoved(Path source, Path target) {
+        PhaseLatencyStats.Job job = awaitingVisible.remove(source.toAbsolutePath().normalize());
+        if (job != null) {
+            awaitingVisible.values().removeIf(waiting -> waiting == job);
+            job.mark(PhaseLatencyStats.Phase.FILE_VISIBLE);
+            job.finish(true);
+        }
+        Consumer<Path> listener = libraryChangedListener;
+        if (listener != null) {
+            listener.accept(target);
+        }
+    }
+
+    /**
+     * ステージングを使う場合、このジョブの出力が保存先へ移るまで段階ごとの所要時間の確定を待たせる。待たせた場合はtrue。
+     */
+    private boolean deferFileVisible() {
+        PhaseLatencyStats.Job job = phases;
+        Set<Path> outputs = producedOutputs.keySet();
+        if (DownloadConfig.getStagingDir() == null || job == null || outputs.isEmpty()) {
+            return false;
+        }
+        outputs.forEach(output -> awaitingVisible.put(output.toAbsolutePath().normalize(), job));
+        return true;
     }
 
     public void download(String url, Button btn, SVGPath downloadIcon, SVGPath stopIcon, SVGPath successIcon, Runnable onSuccess) {
-        logStep("URL入力を受信: " + url);
+        download(url, btn, downloadIcon, stopIcon, successIcon, onSuccess, null);
+    }
+
+    private void download(String url, Button btn, SVGPath downloadIcon, SVGPath stopIcon, SVGPath successIcon, Runnable onSuccess,
+                          PausedJob resumed) {
+        jobId = "job-" + JOB_SEQUENCE.incrementAndGet();
+        jobControls = new JobControls(btn, downloadIcon, stopIcon, successIcon, onSuccess);
+        jobInput = url;
+        logStep("URL入力を受信: {}", url);
+        resourceMonitor = new JobResourceMonitor(jobId, this::activeProcessSnapshot);
+        phases = PhaseLatencyStats.shared().startJob(jobId);
+        jobUrls = List.of(url.trim());
+        strategy = "none";
+        lastFailedExit = 0;
+        layoutMillis = resumed != null ? resumed.layoutMillis() : System.currentTimeMillis();
+        completedUrls = ConcurrentHashMap.newKeySet();
+        directTargets = new ConcurrentHashMap<>();
+        producedOutputs = new ConcurrentHashMap<>();
+        if (resumed != null) {
+            completedUrls.addAll(resumed.completedUrls());
+            directTargets.putAll(resumed.directTargets());
+        }
         prepareStopButton(btn, stopIcon);
         markDownloadStart();
         sendProgress(buildLoadingProgress());
@@ -55,19 +247,135 @@ public class DownloadExecutor {
         return downloadActive;
     }
 
+    static JobPriority priorityOf(String input) {
+        return parseUrls(input).size() > 1 ? JobPriority.LOW : JobPriority.HIGH;
+    }
+
+    private double bandwidthWeight() {
+        return priorityOf(jobInput).bandwidthWeight();
+    }
+
+    /**
+     * ダウンロード中に入力されたURLを受け付ける。優先度の高い1件の通常URLは、実行中のバッチへ割り込ませて
+     * 処理中のまとめての取得より先に開始する(止めたプロセスの未完了分は.partから再開する)。
+     * 割り込めない場合は優先度順の待ち行列に入れ、実行中のジョブが終わった後に開始する。
+     */
+    public void submit(String input) {
+        submit(input, null);
+    }
+
+    private void submit(String input, PausedJob resumed) {
+        JobPriority priority = priorityOf(input);
+        List<String> urls = parseUrls(input);
+        // 再開するジョブは完了済みのURLと決めた保存先を引き継ぐため、バッチへは割り込ませない
+        if (resumed == null && priority == JobPriority.HIGH && urls.size() == 1 && injectIntoBatch(urls.getFirst())) {
+            return;
+        }
+        int waiting;
+        synchronized (queuedJobs) {
+            queuedJobs.add(new QueuedJob(input, priority, queueSequence.incrementAndGet(), resumed));
+            waiting = queuedJobs.size();
+        }
+        AppLogger.event(AppLogger.Level.INFO, LOG_SOURCE, jobId, "実行中のジョブの後に開始します (優先度 {}, 待機 {} 件)", priority, waiting);
+    }
+
+    private boolean injectIntoBatch(String url) {
+        BatchProgress batch = activeBatch;
+        if (batch == null || isAnimeThemesUrl(url) || SegmentedDownloader.isDirectMediaUrl(url)
+                || (DownloadConfig.isArchiveEnabled() && downloadArchive.isArchived(url)) || !batch.addUrgent(url)) {
+            return false;
+        }
+        if (!batchPool.submitUrgent(url)) {
+            batch.withdrawUrgent(url);
+            return false;
+        }
+        logStep("優先URLを実行中のバッチへ割り込ませました: {}", url);
+        return true;
+    }
+
+    private void startNextQueued() {
+        QueuedJob next;
+        synchronized (queuedJobs) {
+            next = queuedJobs.poll();
+        }
+        JobControls controls = jobControls;
+        if (next != null && controls != null) {
+            download(next.input(), controls.btn(), controls.downloadIcon(), controls.stopIcon(), controls.successIcon(), controls.onSuccess(),
+                    next.resumed());
+        }
+    }
+
     public void stopDownload(Button btn) {
         if (!downloadActive) {
             return;
         }
         logStep("停止リクエストを受信。子プロセスを終了します。");
+        requestStop(btn, "キャンセル中...");
+    }
+
+    /**
+     * 実行中のジョブを一時停止する。子プロセスは停止と同じく終了させるが、再開できる途中ファイル
+     * (yt-dlpの.part、分割ダウンロードの.partと.ytdl)は残し、帯域・空き容量の予約と実行枠を他のジョブへ明け渡す。
+     * 一時停止したジョブは {@link #resumePaused()} で同じ入力から再開する。完了済みのURLは飛ばし、途中のものは
+     * 一時停止前と同じ保存先で続きから取得する。
+     */
+    public void pauseDownload(Button btn) {
+        if (!downloadActive || cancelRequested) {
+            return;
+        }
+        logStep("一時停止リクエストを受信。途中ファイルを残して子プロセスを終了します。");
+        pauseRequested = true;
+        requestStop(btn, "一時停止中...");
+    }
+
+    /**
+     * 一時停止したジョブをすべて再開する。実行中のジョブがなければ1件目をすぐに開始し、残りは優先度に応じて割り込ませるか待機させる。
+     */
+    public void resumePaused() {
+        List<PausedJob> paused = new ArrayList<>(pausedJobs);
+        pausedJobs.clear();
+        notifyPausedJobs();
+        JobControls controls = jobControls;
+        for (PausedJob job : paused) {
+            AppLogger.event(AppLogger.Level.INFO, LOG_SOURCE, jobId, "一時停止したジョブを再開します: {} (完了済み {} 件)",
+                    job.input(), job.completedUrls().size());
+            if (!downloadActive && controls != null) {
+                download(job.input(), controls.btn(), controls.downloadIcon(), controls.stopIcon(), controls.successIcon(), controls.onSuccess(),
+                        job);
+            } else {
+                submit(job.input(), job);
+            }
+        }
+    }
+
+    public int pausedJobCount() {
+        return pausedJobs.size();
+    }
+
+    /**
+     * 一時停止中のジョブの件数が変わったときに、FXスレッドで件数を受け取る処理を設定する。
+     */
+    public void setPausedJobsListener(IntConsumer listener) {
+        this.pausedJobsListener = listener;
+    }
+
+    private void notifyPausedJobs() {
+        IntConsumer listener = pausedJobsListener;
+        if (listener != null) {
+            listener.accept(pausedJobs.size());
+        }
+    }
+
+    private void requestStop(Button btn, String message) {
         cancelRequested = true;
         btn.setDisable(true);
         if (!btn.getStyleClass().contains("busy")) {
             btn.getStyleClass().add("busy");
         }
         btn.setGraphic(buildSpinner());
-        sendProgress(new ProgressUpdate("キャンセル中...", ProgressIndicator.INDETERMINATE_PROGRESS, true));
-        destroyActiveProcesses();
+        sendProgress(new ProgressUpdate(message, ProgressIndicator.INDETERMINATE_PROGRESS, true));
+        cancelRequestedNanos = System.nanoTime();
+        termination = terminateActiveProcessesAsync();
         Thread worker = workerThread;
         if (worker != null) {
             worker.interrupt();
@@ -78,21 +386,63 @@ public class DownloadExecutor {
         try {
             workerThread = Thread.currentThread();
             logStep("バックグラウンド処理を開始。URL判定中...");
-            boolean animeThemes = isAnimeThemesUrl(url);
-            logStep(animeThemes ? "AnimeThemes URLと判定。専用パイプラインを使用します。" : "通常のyt-dlpダウンロードを使用します。");
-
-            boolean success = animeThemes
-                    ? runAnimeThemesPipeline(url)
-                    : runStandardDownload(url);
+            List<String> urls = parseUrls(url);
+            if (urls.isEmpty()) {
+                urls = List.of(url.trim());
+            }
+            jobUrls = List.copyOf(urls);
+            // アーカイブ済みのURLはプロセスを起動する前に除外する
+            List<String> pending = skipCompleted(skipArchived(urls));
+            if (pending.isEmpty()) {
+                useStrategy("skipped");
+                logStep("すべてダウンロード済みのためスキップしました。");
+                Platform.runLater(() -> handleFinish(true, btn, downloadIcon, successIcon, null));
+                return;
+            }
+            urls = pending;
+            retryPolicy = new RetryPolicy(RetryPolicy.budgetFor(urls.size()));
+            if (!awaitBinaries()) {
+                if (cancelRequested) {
+                    finishCancelled(btn, downloadIcon);
+                } else {
+                    Platform.runLater(() -> handleFinish(false, btn, downloadIcon, successIcon, null));
+                }
+                return;
+            }
+            boolean success;
+            if (urls.size() > 1) {
+                logStep("複数URL({}件)を検出。バッチモードで処理します。", urls.size());
+                setJobKind("batch");
+                success = runBatch(urls);
+            } else {
+                String target = urls.getFirst();
+                boolean animeThemes = isAnimeThemesUrl(target);
+                setJobKind(animeThemes ? "animethemes" : "single");
+                if (!animeThemes && SegmentedDownloader.isDirectMediaUrl(target)) {
+                    logStep("メディアファイルへの直接のURLと判定。分割ダウンロードを使用します。");
+                    success = runDirectDownload(target);
+                } else {
+                    logStep(animeThemes ? "AnimeThemes URLと判定。専用パイプラインを使用します。" : "通常のyt-dlpダウンロードを使用します。");
+                    DiskSpaceGuard.Reservation reservation = admit(target, estimateSizes(List.of(target), animeThemes), animeThemes);
+                    try {
+                        success = animeThemes
+                                ? runWithRetry("AnimeThemesパイプライン", failureLog -> runAnimeThemesPipeline(target, failureLog) ? 0 : 1) == null
+                                : runStandardDownload(target);
+                    } finally {
+                        reservation.close();
+                    }
+                }
+            }
             if (cancelRequested) {
-                Platform.runLater(() -> handleCancelled(btn, downloadIcon));
+                finishCancelled(btn, downloadIcon);
                 return;
             }
-            Platform.runLater(() -> handleFinish(success, btn, downloadIcon, successIcon, onSuccess));
+            boolean verified = success && verifyOutputs();
+            Platform.runLater(() -> handleFinish(verified, btn, downloadIcon, successIcon, onSuccess));
         } catch (Exception ex) {
             AppLogger.logError("[DownloadExecutor] ダウンロード処理中に例外が発生しました", ex);
             if (cancelRequested) {
-                Platform.runLater(() -> handleCancelled(btn, downloadIcon));
+                finishCancelled(btn, downloadIcon);
             } else {
                 Platform.runLater(() -> handleFinish(false, btn, downloadIcon, successIcon, null));
             }
@@ -101,68 +451,896 @@ public class DownloadExecutor {
         }
     }
 
-    private boolean runStandardDownload(String url) throws Exception {
-        String outputTemplate = DownloadConfig.getDownloadDir() + "/%(title)s.%(ext)s";
-        logStep("yt-dlpを通常モード(H.264優先)で起動準備: URL=" + url + ", 出力テンプレート=" + outputTemplate);
+    /**
+     * yt-dlpとffmpegの準備完了を待つ。準備済みであれば即座に戻り、未完了なら完了通知を受けるまでブロックする。
+     */
+    private boolean awaitBinaries() {
+        CompletableFuture<Void> ready = dependencyManager.binariesReady();
+        if (!ready.isDone()) {
+            logStep("依存ツールの準備完了を待機します。");
+            waitingReason = "依存ツールを準備中...";
+        }
+        try {
+            ready.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logStep("依存ツールの待機中に中断されました。");
+            return false;
+        } catch (ExecutionException e) {
+            AppLogger.logError("[DownloadExecutor] 依存ツールの準備に失敗したためダウンロードを開始できません", e.getCause());
+            return false;
+        } finally {
+            waitingReason = null;
+        }
+    }
+
+    private List<String> skipArchived(List<String> urls) {
+        if (!DownloadConfig.isArchiveEnabled()) {
+            return urls;
+        }
+        List<String> pending = new ArrayList<>();
+        for (String url : urls) {
+            if (downloadArchive.isArchived(url)) {
+                logStep("ダウンロード済みのためスキップ: {} ({})", url, DownloadArchive.canonicalKey(url));
+            } else {
+                pending.add(url);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 一時停止前に完了したURLを除外する。直接のURLなどアーカイブで判定できないものもここで飛ばす。
+     */
+    private List<String> skipCompleted(List<String> urls) {
+        Set<String> completed = completedUrls;
+        if (completed.isEmpty()) {
+            return urls;
+        }
+        List<String> pending = new ArrayList<>();
+        for (String url : urls) {
+            if (completed.contains(url)) {
+                logStep("一時停止前に完了済みのためスキップ: {}", url);
+            } else {
+                pending.add(url);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * yt-dlp自身にもアーカイブへ記録させる引数。判定用のIDはyt-dlpが抽出した正規のものになる。
+     */
+    private List<String> archiveArgs() {
+        if (!DownloadConfig.isArchiveEnabled()) {
+            return List.of();
+        }
+        return List.of("--download-archive", downloadArchive.getFile().toString());
+    }
+
+    /**
+     * 保存先の空き容量を予約する。足りない場合はキューに留めたまま空きができるまで待機する。
+     */
+    private DiskSpaceGuard.Reservation admit(String label, long estimatedBytes, boolean animeThemes)
+            throws IOException, InterruptedException {
+        double factor = animeThemes ? TRANSCODE_SPACE_FACTOR : MERGE_SPACE_FACTOR;
+        try {
+            return diskSpaceGuard.reserve(Paths.get(DownloadConfig.getWorkingDir()), (long) (estimatedBytes * factor),
+                    () -> cancelRequested,
+                    message -> {
+                        logStep("空き容量待ち: {} ({})", label, message);
+                        waitingReason = "空き容量を待機中... (" + message + ")";
+                        sendProgress(buildLoadingProgress());
+                    });
+        } finally {
+            waitingReason = null;
+        }
+    }
+
+    private long estimateSizes(List<String> urls, boolean animeThemes) {
+        Map<String, Long> sizes = probeSizes(urls, animeThemes);
+        return urls.stream().mapToLong(url -> sizes.getOrDefault(url, DEFAULT_SIZE_ESTIMATE)).sum();
+    }
 
-        ProcessBuilder pb = prepareProcess(new ProcessBuilder(
+    /**
+     * 選択されるフォーマットのサイズをyt-dlpに問い合わせる。空きが十分にある場合は問い合わせを省略し、空のマップを返す。
+     * 複数URLは1プロセスにまとめて問い合わせる。
+     */
+    private Map<String, Long> probeSizes(List<String> urls, boolean animeThemes) {
+        Map<String, Long> sizes = new HashMap<>();
+        if (urls.isEmpty() || diskSpaceGuard.hasHeadroom(Paths.get(DownloadConfig.getWorkingDir()), PROBE_SKIP_HEADROOM)) {
+            return sizes;
+        }
+        List<String> command = new ArrayList<>(List.of(
                 DownloadConfig.getYtDlpPath(),
                 "--no-playlist",
-                "-S", "vcodec:h264,res,acodec:m4a",
-                "--match-filter", "vcodec~='(?i)^(avc|h264)'",
+                "--simulate",
+                "--ignore-errors",
+                "--no-warnings"
+        ));
+        QualityPolicy.Plan plan = QualityPolicy.shared().plan(urls);
+        command.addAll(animeThemes ? plan.animeThemesArgs() : plan.standardArgs());
+        command.addAll(List.of("--print", "%(original_url)s %(filesize,filesize_approx)s", "--batch-file", "-"));
+
+        long start = logProcessStart("yt-dlp（サイズ調査）");
+        Process process = null;
+        try {
+            process = prepareProcess(new ProcessBuilder(command), false).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            registerProcess(process);
+            try (Writer writer = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)) {
+                for (String url : urls) {
+                    writer.write(url);
+                    writer.write('\n');
+                }
+            }
+            for (String line : readLimited(process.getInputStream()).split("\n")) {
+                int space = line.lastIndexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                try {
+                    sizes.put(line.substring(0, space), (long) Double.parseDouble(line.substring(space + 1)));
+                } catch (NumberFormatException ignored) {
+                    // NA(サイズ不明)は既定の見積もりを使う
+                }
+            }
+            logProcessEnd("yt-dlp（サイズ調査）", start, waitForProcess(process));
+        } catch (IOException e) {
+            logStep("サイズ調査に失敗したため既定の見積もりを使用します: {}", e.getMessage());
+        } finally {
+            if (process != null) {
+                unregisterProcess(process);
+            }
+        }
+        return sizes;
+    }
+
+    private boolean runStandardDownload(String url) throws Exception {
+        String outputTemplate = DownloadConfig.getOutputLayout().ytDlpTemplate(Paths.get(DownloadConfig.getWorkingDir()), layoutMillis);
+        useStrategy("h264");
+        logStep("yt-dlpを通常モード(H.264優先)で起動準備: URL={}, 出力テンプレート={}", url, outputTemplate);
+        QualityPolicy.Plan plan = qualityPlan(List.of(url));
+
+        // 完成したファイルのパスはyt-dlpに別ファイルへ書かせる(--printは他の出力を抑止するため使わない)
+        Path outputList = createOutputList();
+        List<String> options = withArchive(concat(List.of(
+                "--no-playlist",
+                "--continue",
+                "--match-filter", STANDARD_MATCH_FILTER,
                 "--merge-output-format", "mp4",
                 "--ffmpeg-location", DownloadConfig.getFfmpegPath(),
-                "-o", outputTemplate,
-                url
-        ), true);
+                "--print-to-file", "after_move:%(filepath)s", outputList.toString(),
+                "-o", outputTemplate
+        ), plan.standardArgs()));
+        RetryPolicy.FailureKind failure;
+        try {
+            failure = runWithRetry("yt-dlp（H.264優先）",
+                    failureLog -> runGovernedYtDlp("yt-dlp（H.264優先）", options, url, failureLog));
+            readOutputList(outputList).forEach(this::recordOutput);
+        } finally {
+            Files.deleteIfExists(outputList);
+        }
 
-        Process process = pb.start();
-        TrackedProcess tracked = monitorProcess("yt-dlp（H.264優先）", process, true, false, "yt-dlp");
-        int exitCode = awaitProcess(tracked);
-        
-        if (succeeded(exitCode)) {
+        if (failure == null) {
             return true;
         }
-        
+
         if (cancelRequested) {
             return false;
         }
-        
+        if (failure == RetryPolicy.FailureKind.PERMANENT) {
+            logStep("恒久的な失敗のため互換モードは試しません: {}", url);
+            return false;
+        }
+
         logStep("H.264形式が見つからないため、互換モード(720p以下+変換)で再試行します。");
-        
-        ProcessBuilder pbFallback = prepareProcess(new ProcessBuilder(
-                DownloadConfig.getYtDlpPath(),
-                "--no-playlist",
-                "-f", "bv*[height<=720]+ba/b[height<=720]",
-                "--recode-video", "mp4",
-                "--ffmpeg-location", DownloadConfig.getFfmpegPath(),
-                "-o", outputTemplate,
-                url
-        ), true);
-        
-        Process processFallback = pbFallback.start();
-        TrackedProcess trackedFallback = monitorProcess("yt-dlp（互換モード）", processFallback, true, false, "yt-dlp");
-        int exitCodeFallback = awaitProcess(trackedFallback);
-        return succeeded(exitCodeFallback);
+        useStrategy("compat");
+
+        // 変換はyt-dlp内の --recode-video ではなく後処理段で行う。アーカイブへの記録も変換の成功後に行う
+        Path workDir = createWorkDir();
+        try {
+            List<String> compatOptions = concat(List.of(
+                    "--no-playlist",
+                    "--merge-output-format", "mkv",
+                    "--ffmpeg-location", DownloadConfig.getFfmpegPath(),
+                    "-o", DownloadConfig.getOutputLayout().ytDlpTemplate(workDir, layoutMillis)
+            ), plan.compatArgs());
+            // 再試行でも同じ作業ディレクトリを使い、yt-dlpに.partから再開させる
+            if (runWithRetry("yt-dlp（互換モード）", failureLog -> runGovernedYtDlp("yt-dlp（互換モード）", compatOptions, url, failureLog)) != null) {
+                return false;
+            }
+            Path source = findDownloadedFile(workDir);
+            if (source == null) {
+                logStep("互換モードの出力ファイルが見つかりません: {}", workDir);
+                return false;
+            }
+            sendProgress(ProgressUpdate.waiting("変換中...", formatElapsedForUi()));
+            boolean converted = transcodeToLibrary("互換モード", workDir, source).get();
+            if (converted) {
+                recordCompleted(url);
+            }
+            return converted && !cancelRequested;
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * 作業ディレクトリ内のファイルを保存先の同名 `.mp4` へ変換する処理を後処理段へ投入する。
+     * 作業ディレクトリでのフォルダ分け({@code workRoot} からの相対位置)を保存先でもそのまま使う。
+     */
+    private CompletableFuture<Boolean> transcodeToLibrary(String label, Path workRoot, Path source) {
+        Path shard = workRoot.relativize(source.getParent());
+        Path output = Paths.get(DownloadConfig.getWorkingDir()).resolve(shard)
+                .resolve(stripExtension(source.getFileName().toString()) + ".mp4");
+        try {
+            Files.createDirectories(output.getParent());
+        } catch (IOException e) {
+            AppLogger.logError("[DownloadExecutor] 保存先のフォルダを作成できません: " + output.getParent(), e);
+            return CompletableFuture.completedFuture(false);
+        }
+        return recordOutputWhenDone(postProcessing.transcodeToMp4(label, source, output, processLauncher), output);
+    }
+
+    /**
+     * 変換が成功したら、その出力をこのジョブの出力として記録する。
+     */
+    private CompletableFuture<Boolean> recordOutputWhenDone(CompletableFuture<Boolean> transcode, Path output) {
+        return transcode.thenApply(ok -> {
+            if (Boolean.TRUE.equals(ok)) {
+                recordOutput(output);
+            }
+            return ok;
+        });
+    }
+
+    /**
+     * アプリが名前を決める出力の保存先を、現在のフォルダ分けに従って求め、フォルダを作る。
+     */
+    private Path libraryTarget(String fileName, String uploader) throws IOException {
+        Path target = DownloadConfig.getOutputLayout().target(Paths.get(DownloadConfig.getWorkingDir()), fileName, uploader,
+                layoutMillis);
+        Files.createDirectories(target.getParent());
+        return target;
+    }
+
+    private boolean runDirectDownload(String url) throws Exception {
+        useStrategy("direct");
+        Path saved = downloadDirectWithRetry(url, percent -> {
+            markProgressStarted();
+            sendProgress(buildDownloadingProgress(percent));
+        });
+        if (saved == null) {
+            return false;
+        }
+        recordCompleted(url);
+        return true;
+    }
+
+    /**
+     * 分割ダウンロードを失敗の分類に従って再試行する。再試行では保存済みの区間から再開する。失敗した場合はnull。
+     */
+    private Path downloadDirectWithRetry(String url, DoubleConsumer onPercent) throws Exception {
+        Path[] saved = new Path[1];
+        RetryPolicy.FailureKind failure = runWithRetry("分割ダウンロード", failureLog -> {
+            try {
+                saved[0] = downloadDirect(url, onPercent);
+                return 0;
+            } catch (IOException e) {
+                failureLog.record(e);
+                if (!cancelRequested) {
+                    AppLogger.logError("[DownloadExecutor] 直接ダウンロードに失敗しました: " + url, e);
+                }
+                return 1;
+            }
+        });
+        return failure == null ? saved[0] : null;
+    }
+
+    /**
+     * 1回分の実行。終了コード(0が成功)を返し、失敗の手掛かりをfailureLogへ残す。
+     */
+    @FunctionalInterface
+    private interface Attempt {
+        int run(RetryPolicy.FailureLog failureLog) throws Exception;
+    }
+
+    /**
+     * 失敗を分類し、再試行できる分類であれば待ってからやり直す。成功した場合はnull、諦めた場合は最後の失敗の分類を返す。
+     */
+    private RetryPolicy.FailureKind runWithRetry(String label, Attempt attempt) throws Exception {
+        for (int retries = 0; ; retries++) {
+            RetryPolicy.FailureLog failureLog = new RetryPolicy.FailureLog();
+            int exitCode = attempt.run(failureLog);
+            if (succeeded(exitCode)) {
+                return null;
+            }
+            RetryPolicy.FailureKind kind = failureLog.classify();
+            if (cancelRequested) {
+                return kind;
+            }
+            long delay = retryPolicy.nextDelay(kind, retries);
+            logStep("{} が失敗しました ({}, exit={})", label, kind.label(), exitCode);
+            if (delay < 0 || !awaitRetry(label, kind, delay)) {
+                return kind;
+            }
+        }
+    }
+
+    /**
+     * 再試行までの待ち時間を、停止操作で打ち切れるように待つ。停止された場合はfalse。
+     */
+    private boolean awaitRetry(String label, RetryPolicy.FailureKind kind, long delayMillis) {
+        long seconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(delayMillis));
+        logStep("{} を{}秒後に再試行します ({}、残り予算 {}回)", label, seconds, kind.label(), retryPolicy.remainingBudget());
+        waitingReason = "再試行を待機中... (" + kind.label() + "、" + seconds + "秒)";
+        sendProgress(buildLoadingProgress());
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            long remaining;
+            while (!cancelRequested && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(250)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waitingReason = null;
+        }
+        return !cancelRequested;
+    }
+
+    /**
+     * メディアファイルへの直接のURLを、yt-dlpを介さずに保存先へ分割ダウンロードする。
+     */
+    private Path downloadDirect(String url, DoubleConsumer onPercent) throws IOException, InterruptedException {
+        SegmentedDownloader downloader = new SegmentedDownloader(jobId);
+        SegmentedDownloader.Probe probe = downloader.probe(url);
+        markPhase(PhaseLatencyStats.Phase.EXTRACTION_DONE);
+        Path target = directTargets.get(url);
+        if (target == null) {
+            String fileName = SegmentedDownloader.fileNameFor(probe.uri());
+            target = uniqueTarget(libraryTarget(fileName, DownloadHistory.hostOf(List.of(url))).getParent(), fileName);
+            directTargets.put(url, target);
+        } else {
+            // 一時停止前に決めた保存先。.partと.ytdlがあればそこから続きを取得する
+            Files.createDirectories(target.getParent());
+        }
+        long estimate = probe.length() > 0 ? probe.length() : DEFAULT_SIZE_ESTIMATE;
+        DiskSpaceGuard.Reservation reservation = admit(url, estimate, false);
+        try {
+            fetchDirect(downloader, probe, target, onPercent);
+        } finally {
+            reservation.close();
+        }
+        recordOutput(target);
+        return target;
+    }
+
+    /**
+     * 分割ダウンロードを帯域予算の下で実行する。停止時は途中ファイルを削除し、失敗時は再開用に残す。
+     */
+    private void fetchDirect(SegmentedDownloader downloader, SegmentedDownloader.Probe probe, Path target, DoubleConsumer onPercent)
+            throws IOException, InterruptedException {
+        Path part = SegmentedDownloader.partFile(target);
+        Path state = SegmentedDownloader.stateFile(target);
+        partialOutputs.add(part);
+        partialOutputs.add(state);
+        resumableOutputs.add(part);
+        resumableOutputs.add(state);
+        markPhase(PhaseLatencyStats.Phase.PROCESS_SPAWNED);
+        long start = logProcessStart("分割ダウンロード");
+        logStep("分割ダウンロード: 出力ファイル={}", target);
+        try (BandwidthGovernor.Lease lease = bandwidthGovernor.acquire("分割ダウンロード", bandwidthWeight(), true)) {
+            downloader.download(probe, target, lease::currentLimit, () -> cancelRequested, (received, total, bytesPerSecond) -> {
+                lease.reportThroughput(bytesPerSecond);
+                if (total > 0) {
+                    onPercent.accept(received * 100.0 / total);
+                }
+            });
+        } finally {
+            if (!cancelRequested) {
+                partialOutputs.remove(part);
+                partialOutputs.remove(state);
+                resumableOutputs.remove(part);
+                resumableOutputs.remove(state);
+            }
+        }
+        logProcessEnd("分割ダウンロード", start, 0);
+    }
+
+    /**
+     * 同名のファイルが既にあれば「名前 (1).拡張子」のように番号を付ける。
+     */
+    private static Path uniqueTarget(Path directory, String fileName) {
+        String base = stripExtension(fileName);
+        String extension = fileName.substring(base.length());
+        Path target = directory.resolve(fileName);
+        for (int i = 1; Files.exists(target); i++) {
+            target = directory.resolve(base + " (" + i + ")" + extension);
+        }
+        return target;
+    }
+
+    /**
+     * URLの取得が完了したことを記録する。一時停止から再開したときは飛ばし、アーカイブが有効ならアーカイブにも残す。
+     */
+    private void recordCompleted(String url) {
+        completedUrls.add(url);
+        String archiveKey = DownloadArchive.canonicalKey(url);
+        if (archiveKey != null && DownloadConfig.isArchiveEnabled()) {
+            downloadArchive.record(archiveKey);
+        }
+    }
+
+    /**
+     * yt-dlpに完成したファイルのパスを書かせる一時ファイルを作業用の隠しフォルダに作る。
+     */
+    private Path createOutputList() throws IOException {
+        Path root = Paths.get(DownloadConfig.getWorkingDir(), WORK_DIR_NAME);
+        Files.createDirectories(root);
+        return Files.createTempFile(root, "outputs-", ".txt");
+    }
+
+    private List<Path> readOutputList(Path outputList) {
+        try {
+            return Files.readAllLines(outputList, StandardCharsets.UTF_8).stream()
+                    .filter(line -> !line.isBlank())
+                    .map(line -> Paths.get(line.trim()))
+                    .toList();
+        } catch (IOException e) {
+            logStep("出力ファイルの一覧を読めませんでした: {}", e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * このジョブが完成させたファイルを、その時点の大きさとともに記録する。出力したスレッドで呼ぶ。
+     */
+    private void recordOutput(Path file) {
+        try {
+            producedOutputs.put(file, Files.size(file));
+        } catch (IOException e) {
+            logStep("出力ファイルの大きさを確認できませんでした: {} ({})", file, e.getMessage());
+        }
+    }
+
+    private Path createWorkDir() throws IOException {
+        Path root = Paths.get(DownloadConfig.getWorkingDir(), WORK_DIR_NAME);
+        Files.createDirectories(root);
+        return Files.createTempDirectory(root, "job-");
+    }
+
+    /**
+     * yt-dlpが作業ディレクトリに書き出した完成ファイルを探す。途中ファイル(.part/.ytdl)は除外する。
+     */
+    private Path findDownloadedFile(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(path -> {
+                        String name = path.getFileName().toString();
+                        return !name.endsWith(".part") && !name.endsWith(".ytdl");
+                    })
+                    .max(Comparator.comparingLong(path -> path.toFile().length()))
+                    .orElse(null);
+        }
+    }
+
+    private void deleteRecursively(Path directory) {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    logStep("作業ファイルの削除に失敗: {} ({})", path, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            logStep("作業ディレクトリの削除に失敗: {} ({})", directory, e.getMessage());
+        }
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * 帯域の割り当てを受けてyt-dlpを実行する。実行中に割り当てが大きく変わった場合は、
+     * プロセスを止めて新しい `--limit-rate` で再起動する(yt-dlpは既定で.partファイルから再開する)。
+     */
+    private int runGovernedYtDlp(String label, List<String> options, String url) throws IOException {
+        return runGovernedYtDlp(label, options, url, null);
+    }
+
+    private int runGovernedYtDlp(String label, List<String> options, String url, RetryPolicy.FailureLog failureLog) throws IOException {
+        try (BandwidthGovernor.Lease lease = bandwidthGovernor.acquire(label, bandwidthWeight(), true)) {
+            while (true) {
+                List<String> command = new ArrayList<>();
+                command.add(DownloadConfig.getYtDlpPath());
+                command.addAll(rateLimitArgs(lease.limitForStart()));
+                command.addAll(options);
+                command.add(url);
+                Process process = prepareProcess(new ProcessBuilder(command), true).start();
+                AtomicBoolean restarting = new AtomicBoolean();
+                lease.setRestartHandler(() -> {
+                    restarting.set(true);
+                    ProcessTreeTerminator.terminateAsync(process, DownloadConfig.getTerminationGraceMillis());
+                });
+                TrackedProcess tracked = monitorProcess(label, process, true, false, "yt-dlp", lease, failureLog);
+                int exitCode = awaitProcess(tracked);
+                lease.setRestartHandler(null);
+                if (exitCode == 0 || !restarting.get() || cancelRequested) {
+                    return exitCode;
+                }
+                logStep("{} を新しい帯域割り当てで再開します。", label);
+            }
+        }
+    }
+
+    private List<String> withArchive(List<String> options) {
+        List<String> combined = new ArrayList<>(options);
+        combined.addAll(archiveArgs());
+        return combined;
+    }
+
+    private static List<String> concat(List<String> options, List<String> extra) {
+        List<String> combined = new ArrayList<>(options);
+        combined.addAll(extra);
+        return combined;
+    }
+
+    /**
+     * 帯域の見積もりと利用者の上限からフォーマットの指定を求め、上限や目安があればログに残す。
+     */
+    private QualityPolicy.Plan qualityPlan(List<String> urls) {
+        QualityPolicy.Plan plan = QualityPolicy.shared().plan(urls);
+        if (plan.constrained()) {
+            logStep("画質の指定: {}", plan.describe());
+        }
+        return plan;
+    }
+
+    static List<String> rateLimitArgs(long bytesPerSecond) {
+        return bytesPerSecond > 0 ? List.of("--limit-rate", String.valueOf(bytesPerSecond)) : List.of();
     }
 
-    private boolean runAnimeThemesPipeline(String url) throws Exception {
+    /**
+     * 複数URLをまとめて処理する。通常URLはバッチワーカーへまとめて渡し、H.264で取得できなかった分だけを互換モードで再実行する。
+     * AnimeThemesは1件ずつダウンロードし、変換は後処理段で次のダウンロードと並行して行う。
+     */
+    private boolean runBatch(List<String> urls) throws Exception {
+        List<String> standard = new ArrayList<>();
+        List<String> direct = new ArrayList<>();
+        List<String> animeThemes = new ArrayList<>();
+        for (String url : urls) {
+            if (isAnimeThemesUrl(url)) {
+                animeThemes.add(url);
+            } else if (SegmentedDownloader.isDirectMediaUrl(url)) {
+                direct.add(url);
+            } else {
+                standard.add(url);
+            }
+        }
+        useStrategy("batch");
+        BatchProgress progress = new BatchProgress(urls);
+        String outputTemplate = DownloadConfig.getOutputLayout().ytDlpTemplate(Paths.get(DownloadConfig.getWorkingDir()), layoutMillis);
+
+        Set<String> completed = new HashSet<>();
+        if (!standard.isEmpty()) {
+            Map<String, Long> sizes = probeSizes(standard, false);
+            logStep("バッチモード(H.264優先): {}件", standard.size());
+            QualityPolicy.Plan plan = qualityPlan(standard);
+            List<String> options = withArchive(concat(List.of(
+                    "--no-playlist",
+                    "--continue",
+                    "--match-filter", STANDARD_MATCH_FILTER,
+                    "--merge-output-format", "mp4",
+                    "--ffmpeg-location", DownloadConfig.getFfmpegPath(),
+                    "-o", outputTemplate
+            ), plan.standardArgs()));
+            activeBatch = progress;
+            try {
+                completed.addAll(batchPool.run(standard, options, batchHooks(sizes), progress, () -> cancelRequested));
+            } finally {
+                activeBatch = null;
+            }
+            // 割り込んだ優先URLも、以降の再試行と互換モードの対象に含める
+            List<String> urgent = progress.urgentUrls();
+            standard.addAll(urgent);
+            urls = new ArrayList<>(urls);
+            urls.addAll(urgent);
+
+            List<String> remaining = retryBatch(standard, completed, options, sizes, progress);
+            if (!remaining.isEmpty() && !cancelRequested) {
+                logStep("H.264形式が見つからなかった{}件を互換モード(720p以下+変換)で再試行します。", remaining.size());
+                Path workRoot = createWorkDir();
+                Map<String, CompletableFuture<Boolean>> transcodes = new ConcurrentHashMap<>();
+                // 1件ダウンロードが終わるたびに後処理段へ渡し、次のURLの通信と変換を並行させる
+                progress.setFileSink((url, filepath) -> {
+                    // 作業ディレクトリは workRoot/<動画ID>/<フォルダ分け>/ の構成
+                    Path source = Paths.get(filepath);
+                    Path idDir = workRoot.resolve(workRoot.relativize(source).getName(0));
+                    transcodes.put(url, transcodeToLibrary("互換モード", idDir, source));
+                });
+                try {
+                    batchPool.run(remaining, concat(List.of(
+                            "--no-playlist",
+                            "--merge-output-format", "mkv",
+                            "--ffmpeg-location", DownloadConfig.getFfmpegPath(),
+                            "-o", DownloadConfig.getOutputLayout().ytDlpTemplate(workRoot.resolve("%(id)s"), layoutMillis)
+                    ), plan.compatArgs()), batchHooks(sizes), progress, () -> cancelRequested);
+                    progress.setFileSink(null);
+                    for (Map.Entry<String, CompletableFuture<Boolean>> entry : transcodes.entrySet()) {
+                        if (awaitQuietly(entry.getValue())) {
+                            completed.add(entry.getKey());
+                            recordCompleted(entry.getKey());
+                        }
+                    }
+                } finally {
+                    deleteRecursively(workRoot);
+                }
+            }
+        }
+
+        // 直接のURLは1件ずつ取得する(1件ごとに複数の接続を使うため)
+        for (String url : direct) {
+            if (cancelRequested) {
+                break;
+            }
+            progress.onBegin(url);
+            Path saved = downloadDirectWithRetry(url, percent -> progress.onProgress(url, percent));
+            if (saved != null) {
+                completed.add(url);
+                recordCompleted(url);
+                progress.onDone(url, saved.toString());
+            }
+        }
+
+        List<CompletableFuture<Boolean>> animeTranscodes = new ArrayList<>();
+        Map<CompletableFuture<Boolean>, String> animeUrls = new HashMap<>();
+        for (String url : animeThemes) {
+            if (cancelRequested) {
+                break;
+            }
+            progress.onBegin(url);
+            CompletableFuture<Boolean> transcode = downloadAnimeThemesForTranscode(url);
+            animeTranscodes.add(transcode);
+            animeUrls.put(transcode, url);
+        }
+        for (CompletableFuture<Boolean> transcode : animeTranscodes) {
+            if (awaitQuietly(transcode)) {
+                String url = animeUrls.get(transcode);
+                completed.add(url);
+                recordCompleted(url);
+            }
+        }
+
+        int failed = urls.size() - completed.size();
+        logStep("バッチ処理完了: 成功 {}件 / 失敗 {}件", completed.size(), failed);
+        if (failed > 0) {
+            urls.stream().filter(url -> !completed.contains(url)).forEach(url -> logStep("失敗: {}", url));
+        }
+        return failed == 0 && !cancelRequested;
+    }
+
+    /**
+     * バッチで失敗したURLを分類し、一時的な失敗と混雑による制限のものだけを待ってから再投入する(yt-dlpは.partから再開する)。
+     * 恒久的な失敗は除外し、それ以外で残ったもの(形式なし、再試行を使い切ったもの)を返す。
+     */
+    private List<String> retryBatch(List<String> urls, Set<String> completed, List<String> options, Map<String, Long> sizes,
+                                    BatchProgress progress) throws InterruptedException {
+        Map<String, Integer> retries = new HashMap<>();
+        List<String> remaining = new ArrayList<>();
+        List<String> failed = urls.stream().filter(url -> !completed.contains(url)).toList();
+        while (!failed.isEmpty() && !cancelRequested) {
+            List<String> retry = new ArrayList<>();
+            long delay = 0;
+            RetryPolicy.FailureKind reason = RetryPolicy.FailureKind.TRANSIENT;
+            for (String url : failed) {
+                RetryPolicy.FailureKind kind = progress.takeFailure(url);
+                if (kind == RetryPolicy.FailureKind.PERMANENT) {
+                    logStep("恒久的な失敗のため再試行しません: {}", url);
+                    continue;
+                }
+                long next = retryPolicy.nextDelay(kind, retries.getOrDefault(url, 0));
+                if (next < 0) {
+                    remaining.add(url);
+                    continue;
+                }
+                retries.merge(url, 1, Integer::sum);
+                retry.add(url);
+                if (next > delay) {
+                    delay = next;
+                    reason = kind;
+                }
+            }
+            if (retry.isEmpty()) {
+                break;
+            }
+            if (!awaitRetry(retry.size() + "件のURL", reason, delay)) {
+                remaining.addAll(retry);
+                break;
+            }
+            completed.addAll(batchPool.run(retry, options, batchHooks(sizes), progress, () -> cancelRequested));
+            failed = retry.stream().filter(url -> !completed.contains(url)).toList();
+        }
+        return remaining;
+    }
+
+    private YtDlpBatchPool.ProcessHooks batchHooks(Map<String, Long> sizes) {
+        return new YtDlpBatchPool.ProcessHooks() {
+            @Override
+            public DiskSpaceGuard.Reservation admit(List<String> chunk) throws IOException, InterruptedException {
+                // 1つのプロセスはURLを1件ずつ処理するため、束の中で最も大きいものの分だけを予約する
+                long estimate = chunk.stream().mapToLong(url -> sizes.getOrDefault(url, DEFAULT_SIZE_ESTIMATE)).max().orElse(0);
+                return DownloadExecutor.this.admit(chunk.size() + "件のバッチ", estimate, false);
+            }
+
+            @Override
+            public Process start(List<String> command) throws IOException {
+                return processLauncher.start(command);
+            }
+
+            @Override
+            public void finished(Process process) {
+                processLauncher.finished(process);
+            }
+        };
+    }
+
+    /**
+     * AnimeThemesの元動画を作業ディレクトリへダウンロードし、変換を後処理段へ投入する。
+     * 空き容量の予約と作業ディレクトリは変換の完了まで保持する。
+     */
+    private CompletableFuture<Boolean> downloadAnimeThemesForTranscode(String url) {
+        DiskSpaceGuard.Reservation reservation = null;
+        Path workDir = null;
+        try {
+            reservation = admit(url, estimateSizes(List.of(url), true), true);
+            String mp4Name = animeThemesFilenameFromTitle(url);
+            workDir = createWorkDir();
+            Path source;
+            if (SegmentedDownloader.isDirectMediaUrl(url)) {
+                // 動画ファイルへの直接のURLはyt-dlpを介さずに分割ダウンロードする
+                SegmentedDownloader downloader = new SegmentedDownloader(jobId);
+                SegmentedDownloader.Probe probe = downloader.probe(url);
+                source = workDir.resolve(SegmentedDownloader.fileNameFor(probe.uri()));
+                fetchDirect(downloader, probe, source, percent -> { });
+            } else {
+                int exitCode = runGovernedYtDlp("yt-dlp（AnimeThemes）", concat(List.of(
+                        "--no-playlist",
+                        "--merge-output-format", "mkv",
+                        "--ffmpeg-location", DownloadConfig.getFfmpegPath(),
+                        "-o", workDir + "/source.%(ext)s"
+                ), qualityPlan(List.of(url)).animeThemesArgs()), url);
+                source = succeeded(exitCode) ? findDownloadedFile(workDir) : null;
+                if (source == null) {
+                    throw new IOException("AnimeThemesの元動画を取得できませんでした (exit=" + exitCode + ")");
+                }
+            }
+            Path output = libraryTarget(mp4Name, ANIME_THEMES_UPLOADER);
+            DiskSpaceGuard.Reservation heldReservation = reservation;
+            Path heldWorkDir = workDir;
+            return recordOutputWhenDone(postProcessing.transcodeToMp4("AnimeThemes", source, output, processLauncher), output)
+                    .whenComplete((ok, error) -> {
+                        deleteRecursively(heldWorkDir);
+                        heldReservation.close();
+                    });
+        } catch (Exception e) {
+            if (!cancelRequested) {
+                AppLogger.logError("[DownloadExecutor] AnimeThemesのダウンロードに失敗しました: " + url, e);
+            }
+            deleteRecursively(workDir);
+            if (reservation != null) {
+                reservation.close();
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    private boolean awaitQuietly(CompletableFuture<Boolean> future) {
+        try {
+            return Boolean.TRUE.equals(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            AppLogger.logError("[DownloadExecutor] 後処理で例外が発生しました", e.getCause());
+            return false;
+        }
+    }
+
+    static List<String> parseUrls(String input) {
+        List<String> urls = new ArrayList<>();
+        if (input == null) {
+            return urls;
+        }
+        Matcher matcher = URL_PATTERN.matcher(input);
+        while (matcher.find()) {
+            String url = matcher.group();
+            if (!urls.contains(url)) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    private boolean runAnimeThemesPipeline(String url, RetryPolicy.FailureLog failureLog) throws Exception {
         logStep("AnimeThemesモード: yt-dlpへのファイル名問い合わせをスキップします。");
         String mp4Name = animeThemesFilenameFromTitle(url);
-        Path outputPath = Paths.get(DownloadConfig.getDownloadDir(), mp4Name);
-        logStep("AnimeThemesモード: 即時生成した出力ファイル=" + outputPath);
+        Path outputPath = libraryTarget(mp4Name, ANIME_THEMES_UPLOADER);
+        logStep("AnimeThemesモード: 即時生成した出力ファイル={}", outputPath);
+        partialOutputs.add(outputPath);
+        String mediaUrl = DownloadConfig.isStreamRelayEnabled() ? resolveMediaUrl(url) : null;
+
+        // ffmpegのスレッド数は全体のCPU予算から割り当てる
+        waitingReason = "変換の空きを待機中...";
+        PostProcessingStage.CoreLease cores;
+        try {
+            cores = postProcessing.acquireCores();
+        } finally {
+            waitingReason = null;
+        }
+        useStrategy(mediaUrl != null ? "animethemes-relay" : "animethemes-pipe");
+        if (mediaUrl != null) {
+            return finishAnimeThemesPipeline(url, outputPath, relayIntoFfmpeg(mediaUrl, outputPath, cores, failureLog));
+        }
+        // パイプ出力は途中再開できないため、帯域の割り当ては起動時のものだけを適用する
+        BandwidthGovernor.Lease lease = bandwidthGovernor.acquire("yt-dlp（AnimeThemes）", bandwidthWeight(), false);
 
         // 1. yt-dlp: 標準出力(-)にデータを流す設定
-        ProcessBuilder ytDlp = prepareProcess(new ProcessBuilder(
-                DownloadConfig.getYtDlpPath(),
-                "--no-playlist",
-                "-f", "bv+ba/b", // ベスト画質+ベスト音質
+        List<String> ytDlpCommand = new ArrayList<>();
+        ytDlpCommand.add(DownloadConfig.getYtDlpPath());
+        ytDlpCommand.addAll(rateLimitArgs(lease.limitForStart()));
+        ytDlpCommand.add("--no-playlist");
+        ytDlpCommand.addAll(qualityPlan(List.of(url)).animeThemesArgs()); // 上限内のベスト画質+ベスト音質
+        ytDlpCommand.addAll(List.of(
                 "-o", "-",       // 標準出力へ
                 url
-        ), false);
+        ));
+        ProcessBuilder ytDlp = prepareProcess(new ProcessBuilder(ytDlpCommand), false);
 
         // 2. ffmpeg: パイプからの入力を強化設定で受け取る
-        ProcessBuilder ffmpeg = prepareProcess(new ProcessBuilder(
+        ProcessBuilder ffmpeg = animeThemesFfmpeg(outputPath, cores);
+
+        // パイプラインの実行（単体ではダウンロードと変換を同時に行うため高速）
+        logStep("AnimeThemesモード: yt-dlp→ffmpegパイプラインを起動します。");
+        int ytExit;
+        int ffExit;
+        try (lease; cores) {
+            List<Process> pipeline = ProcessBuilder.startPipeline(List.of(ytDlp, ffmpeg));
+            Process ytProcess = pipeline.get(0);
+            Process ffmpegProcess = pipeline.get(1);
+
+            TrackedProcess ytMonitor = monitorProcess("yt-dlp（AnimeThemes）", ytProcess, true, true, "yt-dlp", lease, failureLog);
+            TrackedProcess ffMonitor = monitorProcess("ffmpeg（AnimeThemes）", ffmpegProcess, false, true, "ffmpeg");
+
+            ytExit = awaitProcess(ytMonitor);
+            ffExit = awaitProcess(ffMonitor);
+        }
+
+        // 両方のプロセスが正常終了(0)していれば成功
+        return finishAnimeThemesPipeline(url, outputPath, succeeded(ytExit) && succeeded(ffExit));
+    }
+
+    private boolean finishAnimeThemesPipeline(String url, Path outputPath, boolean success) {
+        if (!cancelRequested) {
+            partialOutputs.remove(outputPath);
+        }
+        if (success) {
+            recordCompleted(url);
+            recordOutput(outputPath);
+        }
+        return success;
+    }
+
+    private ProcessBuilder animeThemesFfmpeg(Path outputPath, PostProcessingStage.CoreLease cores) {
+        return prepareProcess(new ProcessBuilder(
                 DownloadConfig.getFfmpegPath(),
                 "-loglevel", "error",
 
@@ -183,33 +1361,94 @@ public class DownloadExecutor {
                 // エラー許容設定（軽微なパケット破損を無視して続行させる）
                 "-ignore_unknown",
 
+                "-threads", String.valueOf(cores.threads()),
                 "-movflags", "+faststart",
                 "-f", "mp4",
                 "-y",
                 outputPath.toString()
         ), false);
+    }
 
-        // パイプラインの実行（ダウンロードと変換を同時に行うため高速）
-        logStep("AnimeThemesモード: yt-dlp→ffmpegパイプラインを起動します。");
-        List<Process> pipeline = ProcessBuilder.startPipeline(List.of(ytDlp, ffmpeg));
-        Process ytProcess = pipeline.get(0);
-        Process ffmpegProcess = pipeline.get(1);
-
-        TrackedProcess ytMonitor = monitorProcess("yt-dlp（AnimeThemes）", ytProcess, true, true, "yt-dlp");
-        TrackedProcess ffMonitor = monitorProcess("ffmpeg（AnimeThemes）", ffmpegProcess, false, true, "ffmpeg");
-
-        int ytExit = awaitProcess(ytMonitor);
-        int ffExit = awaitProcess(ffMonitor);
+    /**
+     * 動画ファイルの実際のURLをyt-dlpに問い合わせる。映像と音声が別ファイルの場合など、1本に定まらなければnull。
+     */
+    private String resolveMediaUrl(String url) {
+        if (SegmentedDownloader.isDirectMediaUrl(url)) {
+            return url;
+        }
+        long start = logProcessStart("yt-dlp（URL解決）");
+        Process process = null;
+        try {
+            List<String> command = new ArrayList<>(List.of(
+                    DownloadConfig.getYtDlpPath(),
+                    "--no-playlist",
+                    "--no-warnings"
+            ));
+            command.addAll(qualityPlan(List.of(url)).animeThemesArgs());
+            command.addAll(List.of("--get-url", url));
+            process = prepareProcess(new ProcessBuilder(command), false).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+            registerProcess(process);
+            List<String> lines = readLimited(process.getInputStream()).lines().map(String::trim).filter(line -> !line.isEmpty()).toList();
+            int exitCode = waitForProcess(process);
+            logProcessEnd("yt-dlp（URL解決）", start, exitCode);
+            if (!succeeded(exitCode) || lines.size() != 1) {
+                logStep("動画ファイルのURLを1本に特定できないため、yt-dlpのパイプラインを使用します。");
+                return null;
+            }
+            markPhase(PhaseLatencyStats.Phase.EXTRACTION_DONE);
+            return lines.getFirst();
+        } catch (IOException e) {
+            logStep("動画ファイルのURLの解決に失敗したため、yt-dlpのパイプラインを使用します: {}", e.getMessage());
+            return null;
+        } finally {
+            if (process != null) {
+                unregisterProcess(process);
+            }
+        }
+    }
 
-        // 両方のプロセスが正常終了(0)していれば成功
-        return succeeded(ytExit) && succeeded(ffExit);
+    /**
+     * 動画ファイルをアプリ内で取得してffmpegの標準入力へ流し込む。受信量から進捗を出し、帯域の割り当ては取得中も反映する。
+     * 通信が途切れた場合は範囲リクエストで続きから再開し、ffmpegは起動し直さない。
+     */
+    private boolean relayIntoFfmpeg(String mediaUrl, Path outputPath, PostProcessingStage.CoreLease cores, RetryPolicy.FailureLog failureLog)
+            throws IOException {
+        logStep("AnimeThemesモード: アプリ内の中継でffmpegへ流し込みます。");
+        boolean relayed = false;
+        int ffExit;
+        try (cores; BandwidthGovernor.Lease lease = bandwidthGovernor.acquire("中継（AnimeThemes）", bandwidthWeight(), true)) {
+            Process ffmpegProcess = animeThemesFfmpeg(outputPath, cores).start();
+            TrackedProcess ffMonitor = monitorProcess("ffmpeg（AnimeThemes）", ffmpegProcess, false, true, "ffmpeg");
+            long start = logProcessStart("中継（AnimeThemes）");
+            try (OutputStream stdin = ffmpegProcess.getOutputStream()) {
+                long bytes = new StreamRelay(jobId).relay(URI.create(mediaUrl), stdin, lease::currentLimit, () -> cancelRequested,
+                        (received, total, bytesPerSecond) -> {
+                            lease.reportThroughput(bytesPerSecond);
+                            if (total > 0) {
+                                markProgressStarted();
+                                sendProgress(buildDownloadingProgress(received * 100.0 / total));
+                            }
+                        });
+                logStep("中継完了: {}", DiskSpaceGuard.formatBytes(bytes));
+                relayed = true;
+            } catch (IOException e) {
+                failureLog.record(e);
+                if (!cancelRequested) {
+                    AppLogger.logError("[DownloadExecutor] 中継に失敗しました: " + mediaUrl, e);
+                }
+            }
+            logProcessEnd("中継（AnimeThemes）", start, relayed ? 0 : -1);
+            // 標準入力を閉じたことでffmpegは入力の終わりを検知し、書き出しを終えて終了する
+            ffExit = awaitProcess(ffMonitor);
+        }
+        return relayed && succeeded(ffExit);
     }
 
     private String animeThemesFilenameFromTitle(String url) {
         String fallback = quickAnimeThemesFilename(url);
         String title = fetchTitleWithCurl(url);
         if (title == null || title.isBlank()) {
-            logStep("title取得に失敗または空。URL由来の一時名を使用します: " + fallback);
+            logStep("title取得に失敗または空。URL由来の一時名を使用します: {}", fallback);
             return fallback;
         }
         String normalized = title.replaceAll("\\s*\\|.*", "").trim();
@@ -222,8 +1461,20 @@ public class DownloadExecutor {
         if (sanitized.isBlank()) {
             sanitized = "animethemes";
         }
-        String timestamp = String.valueOf(System.currentTimeMillis());
-        return sanitized + "-" + timestamp + ".mp4";
+        return sanitized + "-" + uniqueSuffix(url) + ".mp4";
+    }
+
+    /**
+     * 同じ動画なら同じファイル名になるよう動画IDを接尾辞にする。IDが判定できない場合のみタイムスタンプを使う。
+     */
+    private String uniqueSuffix(String url) {
+        String key = DownloadArchive.canonicalKey(url);
+        if (key == null) {
+            return String.valueOf(System.currentTimeMillis());
+        }
+        String id = key.substring(key.indexOf(' ') + 1);
+        String last = id.substring(id.lastIndexOf('/') + 1).replaceAll("[^a-zA-Z0-9-_.]", "_");
+        return last.isBlank() ? String.valueOf(System.currentTimeMillis()) : last;
     }
 
     private String fetchTitleWithCurl(String url) {
@@ -232,12 +1483,12 @@ public class DownloadExecutor {
                 new ProcessBuilder("curl", "-Ls", "-m", "5", url)
         );
         if (!result.success()) {
-            logStep("curlが非0終了(exit=" + result.exitCode() + ")。");
+            logStep("curlが非0終了(exit={})。", result.exitCode());
             return null;
         }
         String title = parseTitleFromHtml(result.output());
         if (title != null) {
-            logStep("curlでtitleを取得: " + title);
+            logStep("curlでtitleを取得: {}", title);
         } else {
             logStep("curlでtitleタグを検出できず。");
         }
@@ -266,7 +1517,7 @@ public class DownloadExecutor {
     }
 
     private String quickAnimeThemesFilename(String url) {
-        String timestamp = String.valueOf(System.currentTimeMillis());
+        String timestamp = uniqueSuffix(url);
         try {
             URI uri = new URI(url);
             String path = Optional.ofNullable(uri.getPath()).orElse("");
@@ -312,7 +1563,7 @@ public class DownloadExecutor {
 
     private void addBinDirToPath(ProcessBuilder pb) {
         String currentPath = System.getenv("PATH");
-        logStep("PATHにbinディレクトリを追加: " + DownloadConfig.BIN_DIR);
+        logStep("PATHにbinディレクトリを追加: {}", DownloadConfig.BIN_DIR);
         pb.environment().put("PATH", DownloadConfig.BIN_DIR + File.pathSeparator + (currentPath != null ? currentPath : ""));
     }
 
@@ -321,6 +1572,7 @@ public class DownloadExecutor {
     }
 
     private void handleFinish(boolean success, Button btn, SVGPath downloadIcon, SVGPath successIcon, Runnable onSuccess) {
+        boolean deferred = false;
         btn.setDisable(false);
         btn.getStyleClass().removeAll("busy", "stop");
         if (success) {
@@ -330,8 +1582,14 @@ public class DownloadExecutor {
             }
             btn.setGraphic(successIcon);
             btn.setAccessibleText("Download succeeded");
+            markPhase(PhaseLatencyStats.Phase.POSTPROCESS_DONE);
             if (onSuccess != null) {
                 onSuccess.run();
+                // ステージングを使う場合、一覧に現れるのは保存先へ移し終えた時点
+                deferred = deferFileVisible();
+                if (!deferred) {
+                    markPhase(PhaseLatencyStats.Phase.FILE_VISIBLE);
+                }
             }
         } else {
             btn.getStyleClass().remove("success");
@@ -341,8 +1599,15 @@ public class DownloadExecutor {
             btn.setGraphic(downloadIcon);
             btn.setAccessibleText("Download");
         }
+        finishResourceMonitor(success ? "success" : "failed");
+        if (!deferred) {
+            finishPhases(true);
+        }
+        recordHistory(success ? DownloadHistory.Outcome.SUCCESS : DownloadHistory.Outcome.FAILED);
+        stagingMover.sweep();
         clearDownloadStart();
         sendProgress(ProgressUpdate.hidden());
+        startNextQueued();
     }
 
     private void handleCancelled(Button btn, SVGPath downloadIcon) {
@@ -351,8 +1616,39 @@ public class DownloadExecutor {
         btn.getStyleClass().removeAll("busy", "stop", "success", "error");
         btn.setGraphic(downloadIcon);
         btn.setAccessibleText("Download");
+        finishResourceMonitor("cancelled");
+        finishPhases(false);
+        recordHistory(DownloadHistory.Outcome.CANCELLED);
+        stagingMover.sweep();
+        clearDownloadStart();
+        sendProgress(ProgressUpdate.hidden());
+        // 停止は待機中のジョブもまとめて取り消す
+        int dropped;
+        synchronized (queuedJobs) {
+            dropped = queuedJobs.size();
+            queuedJobs.clear();
+        }
+        if (dropped > 0) {
+            logStep("待機中のジョブ {} 件を取り消しました。", dropped);
+        }
+    }
+
+    private void handlePaused(Button btn, SVGPath downloadIcon) {
+        logStep("ダウンロードを一時停止しました。");
+        btn.setDisable(false);
+        btn.getStyleClass().removeAll("busy", "stop", "success", "error");
+        btn.setGraphic(downloadIcon);
+        btn.setAccessibleText("Download");
+        finishResourceMonitor("paused");
+        finishPhases(false);
+        recordHistory(DownloadHistory.Outcome.PAUSED);
+        stagingMover.sweep();
         clearDownloadStart();
         sendProgress(ProgressUpdate.hidden());
+        pausedJobs.addLast(new PausedJob(jobInput, layoutMillis, Set.copyOf(completedUrls), Map.copyOf(directTargets)));
+        notifyPausedJobs();
+        // 空いた実行枠は待機中のジョブへ回す
+        startNextQueued();
     }
 
     private void prepareStopButton(Button btn, SVGPath stopIcon) {
@@ -378,6 +1674,7 @@ public class DownloadExecutor {
         synchronized (processLock) {
             activeProcesses.add(process);
         }
+        markPhase(PhaseLatencyStats.Phase.PROCESS_SPAWNED);
     }
 
     private void unregisterProcess(Process process) {
@@ -386,25 +1683,135 @@ public class DownloadExecutor {
         }
     }
 
-    private void destroyActiveProcesses() {
-        List<Process> snapshot;
+    private List<Process> activeProcessSnapshot() {
         synchronized (processLock) {
-            snapshot = new ArrayList<>(activeProcesses);
+            return new ArrayList<>(activeProcesses);
+        }
+    }
+
+    private void setJobKind(String kind) {
+        JobResourceMonitor monitor = resourceMonitor;
+        if (monitor != null) {
+            monitor.setKind(kind);
+        }
+    }
+
+    private void finishResourceMonitor(String outcome) {
+        JobResourceMonitor monitor = resourceMonitor;
+        resourceMonitor = null;
+        if (monitor != null) {
+            monitor.finish(outcome);
         }
-        for (Process process : snapshot) {
+    }
+
+    private CompletableFuture<ProcessTreeTerminator.Report> terminateActiveProcessesAsync() {
+        CompletableFuture<ProcessTreeTerminator.Report> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> result.complete(terminateActiveProcesses()), "process-terminator");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    /**
+     * 登録済みの子プロセスを子孫ごと終了させる。終了要求の猶予は設定値に従い、過ぎたものは強制終了する。
+     */
+    private ProcessTreeTerminator.Report terminateActiveProcesses() {
+        return ProcessTreeTerminator.terminate(activeProcessSnapshot(), DownloadConfig.getTerminationGraceMillis());
+    }
+
+    /**
+     * 停止後の後始末を行ってからUIを戻す。子孫プロセスがすべて終わるのを待ち、途中ファイルを削除する。
+     * 終了処理はそれぞれ猶予+強制終了の待ち時間で打ち切るため、停止操作から完了までの時間には上限がある。
+     */
+    private void finishCancelled(Button btn, SVGPath downloadIcon) {
+        // 停止時にこのスレッドへ送った割り込みを消し、以下の待機が即座に中断されないようにする
+        Thread.interrupted();
+        long bound = DownloadConfig.getTerminationGraceMillis() + ProcessTreeTerminator.FORCE_WAIT_MILLIS;
+        ProcessTreeTerminator.Report report = null;
+        try {
+            report = termination.get(bound + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logStep("子プロセスの終了処理が時間内に完了しませんでした: {}", e.toString());
+        }
+        // 停止要求と行き違いで起動したプロセスがあれば、ここで終了させる
+        ProcessTreeTerminator.Report late = terminateActiveProcesses();
+        boolean paused = pauseRequested;
+        int removed = paused ? cleanUnresumableFiles() : cleanPartialFiles();
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cancelRequestedNanos);
+        int processes = (report == null ? 0 : report.processes()) + late.processes();
+        int forced = (report == null ? 0 : report.forced()) + late.forced();
+        int survivors = (report == null ? 0 : report.survivors()) + late.survivors();
+        logStep("停止完了: {} ms (上限 {} ms) / 終了したプロセス {} 件 (うち強制終了 {} 件, 残存 {} 件) / 途中ファイル削除 {} 件",
+                latency, bound * 2, processes, forced, survivors, removed);
+        Platform.runLater(() -> {
+            if (paused) {
+                handlePaused(btn, downloadIcon);
+            } else {
+                handleCancelled(btn, downloadIcon);
+            }
+        });
+    }
+
+    /**
+     * 今回のダウンロード開始以降に作られた途中ファイルと作業ディレクトリを削除し、削除したファイル数を返す。
+     */
+    private int cleanPartialFiles() {
+        int removed = 0;
+        resumableOutputs.clear();
+        for (Path path : List.copyOf(partialOutputs)) {
             try {
-                process.destroy();
-            } catch (Exception ignored) {
+                if (Files.deleteIfExists(path)) {
+                    removed++;
+                }
+            } catch (IOException e) {
+                logStep("途中ファイルの削除に失敗: {} ({})", path, e.getMessage());
             }
+            partialOutputs.remove(path);
         }
-        for (Process process : snapshot) {
-            try {
-                if (process.isAlive()) {
-                    process.destroyForcibly();
+        Path dir = Paths.get(DownloadConfig.getWorkingDir());
+        long since = downloadStartMillis;
+        try {
+            List<Path> partial = OutputLayout.scan(dir).stream()
+                    .filter(DownloadExecutor::isPartialFile)
+                    .filter(path -> path.toFile().lastModified() >= since)
+                    .toList();
+            for (Path path : partial) {
+                try {
+                    Files.deleteIfExists(path);
+                    removed++;
+                } catch (IOException e) {
+                    logStep("途中ファイルの削除に失敗: {} ({})", path, e.getMessage());
                 }
-            } catch (Exception ignored) {
             }
+        } catch (IOException e) {
+            logStep("途中ファイルの確認に失敗: {} ({})", dir, e.getMessage());
         }
+        deleteRecursively(dir.resolve(WORK_DIR_NAME));
+        return removed;
+    }
+
+    /**
+     * 一時停止時の後始末。続きから再開できない途中ファイル(AnimeThemesの変換途中の出力)と作業ディレクトリのみ削除する。
+     */
+    private int cleanUnresumableFiles() {
+        int removed = 0;
+        for (Path path : List.copyOf(partialOutputs)) {
+            if (!resumableOutputs.contains(path)) {
+                try {
+                    if (Files.deleteIfExists(path)) {
+                        removed++;
+                    }
+                } catch (IOException e) {
+                    logStep("途中ファイルの削除に失敗: {} ({})", path, e.getMessage());
+                }
+            }
+            partialOutputs.remove(path);
+        }
+        resumableOutputs.clear();
+        deleteRecursively(Paths.get(DownloadConfig.getWorkingDir()).resolve(WORK_DIR_NAME));
+        return removed;
     }
 
     private int waitForProcess(Process process) {
@@ -416,25 +1823,36 @@ public class DownloadExecutor {
         }
     }
 
-    private Thread consumeAsync(InputStream stream, boolean parseProgress, String sourceLabel) {
-        Thread t = new Thread(() -> consumeStream(stream, parseProgress, sourceLabel));
+    private Thread consumeAsync(InputStream stream, boolean parseProgress, String sourceLabel, BandwidthGovernor.Lease lease,
+                                RetryPolicy.FailureLog failureLog) {
+        Thread t = new Thread(() -> consumeStream(stream, parseProgress, sourceLabel, lease, failureLog));
         t.setDaemon(true);
         t.start();
         return t;
     }
 
-    private void consumeStream(InputStream stream, boolean parseProgress, String sourceLabel) {
+    private void consumeStream(InputStream stream, boolean parseProgress, String sourceLabel, BandwidthGovernor.Lease lease,
+                               RetryPolicy.FailureLog failureLog) {
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                String labeled = (sourceLabel == null || sourceLabel.isBlank()) ? line : "[" + sourceLabel + "] " + line;
-                AppLogger.log(labeled);
+                logChildLine(sourceLabel, line);
+                if (failureLog != null) {
+                    failureLog.accept(line);
+                }
                 if (parseProgress) {
+                    observePhase(line);
                     Double percent = extractPercent(line);
                     if (percent != null) {
                         markProgressStarted();
                         sendProgress(buildDownloadingProgress(percent));
                     }
+                    if (lease != null) {
+                        Double speed = extractSpeed(line);
+                        if (speed != null) {
+                            lease.reportThroughput(speed);
+                        }
+                    }
                 }
             }
         } catch (Exception e) {
@@ -454,6 +1872,20 @@ public class DownloadExecutor {
         return null;
     }
 
+    static Double extractSpeed(String line) {
+        Matcher matcher = SPEED_PATTERN.matcher(line);
+        if (!matcher.find()) {
+            return null;
+        }
+        double value = Double.parseDouble(matcher.group(1));
+        return switch (matcher.group(2)) {
+            case "K" -> value * 1024;
+            case "M" -> value * 1024 * 1024;
+            case "G" -> value * 1024 * 1024 * 1024;
+            default -> value;
+        };
+    }
+
     private void sendProgress(ProgressUpdate update) {
         if (progressConsumer == null || update == null) {
             return;
@@ -463,12 +1895,94 @@ public class DownloadExecutor {
 
     private long logProcessStart(String label) {
         long start = System.nanoTime();
-        logStep(label + " を開始");
+        logStep("{} を開始", label);
         return start;
     }
 
     private void logProcessEnd(String label, long startNanos, int exitCode) {
-        logStep(label + " 終了。exit=" + exitCode + " / " + formatDuration(System.nanoTime() - startNanos));
+        logStep("{} 終了。exit={} / {}", label, exitCode, formatDuration(System.nanoTime() - startNanos));
+        markPhase(PhaseLatencyStats.Phase.DOWNLOAD_DONE);
+        if (exitCode != 0) {
+            lastFailedExit = exitCode;
+        }
+    }
+
+    private void useStrategy(String name) {
+        strategy = name;
+    }
+
+    /**
+     * 終了したジョブを履歴へ追記する。大きさはこのジョブが出力したファイルについて出力時に記録した値を合計する。
+     * ジョブの終了処理(経過時間の消去)より前に呼ぶ。
+     */
+    private void recordHistory(DownloadHistory.Outcome outcome) {
+        long durationMillis = downloadStartNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - downloadStartNanos) : 0;
+        long finishedAt = System.currentTimeMillis();
+        List<String> urls = jobUrls;
+        String usedStrategy = strategy;
+        int exitCode = lastFailedExit;
+        int retries = retryPolicy.used();
+        long bytes = producedOutputs.values().stream().mapToLong(Long::longValue).sum();
+        DownloadHistory.shared().appendAsync(() -> {
+            DownloadHistory.Entry entry = new DownloadHistory.Entry(finishedAt, durationMillis, bytes, exitCode, retries,
+                    urls.size(), outcome, usedStrategy, DownloadHistory.hostOf(urls), urls.isEmpty() ? "" : urls.getFirst());
+            QualityPolicy.shared().observe(entry);
+            return entry;
+        });
+    }
+
+    /**
+     * このジョブが出力したMP4のボックス構造を確かめる。moov がない・途中で切れているなど再生できない構造があればfalse。
+     */
+    private boolean verifyOutputs() {
+        boolean valid = true;
+        for (Path file : producedOutputs.keySet()) {
+            if (!Mp4Inspector.isSupported(file)) {
+                continue;
+            }
+            try {
+                Mp4Inspector.Info info = Mp4Inspector.inspect(file);
+                if (!info.valid()) {
+                    AppLogger.event(AppLogger.Level.WARN, LOG_SOURCE, jobId, "出力ファイルの構造に問題があります: {} ({})",
+                            file.getFileName(), String.join(", ", info.problems()));
+                    valid = false;
+                    continue;
+                }
+                logStep("出力ファイルを確認: {} ({}{})", file.getFileName(), info.brief(), info.faststart() ? "" : "、moov が末尾");
+            } catch (IOException e) {
+                logStep("出力ファイルを確認できませんでした: {} ({})", file.getFileName(), e.getMessage());
+            }
+        }
+        return valid;
+    }
+
+    static boolean isPartialFile(Path path) {
+        return PARTIAL_FILE_PATTERN.matcher(path.getFileName().toString()).matches();
+    }
+
+    private void markPhase(PhaseLatencyStats.Phase phase) {
+        PhaseLatencyStats.Job job = phases;
+        if (job != null) {
+            job.mark(phase);
+        }
+    }
+
+    /**
+     * yt-dlpの出力行から、抽出の完了とダウンロードの完了(後処理の開始)を読み取る。
+     */
+    private void observePhase(String line) {
+        if (EXTRACTED_PATTERN.matcher(line).find()) {
+            markPhase(PhaseLatencyStats.Phase.EXTRACTION_DONE);
+        } else if (POSTPROCESS_PATTERN.matcher(line).find()) {
+            markPhase(PhaseLatencyStats.Phase.DOWNLOAD_DONE);
+        }
+    }
+
+    private void finishPhases(boolean record) {
+        PhaseLatencyStats.Job job = phases;
+        if (job != null) {
+            job.finish(record);
+        }
     }
 
     public record ProgressUpdate(String message, double progress, boolean visible) {
@@ -480,11 +1994,20 @@ public class DownloadExecutor {
             return new ProgressUpdate("動画読み込み中..." + formatElapsed(elapsed), ProgressIndicator.INDETERMINATE_PROGRESS, true);
         }
 
+        public static ProgressUpdate waiting(String reason, String elapsed) {
+            return new ProgressUpdate(reason + formatElapsed(elapsed), ProgressIndicator.INDETERMINATE_PROGRESS, true);
+        }
+
         public static ProgressUpdate downloading(double percent, String elapsed) {
             double clamped = Math.max(0, Math.min(percent, 100));
             return new ProgressUpdate(String.format("ダウンロード中... %.1f%%%s", clamped, formatElapsed(elapsed)), clamped / 100.0, true);
         }
 
+        public static ProgressUpdate batch(int completed, int total, double percent, String elapsed) {
+            double clamped = Math.max(0, Math.min(percent, 100));
+            return new ProgressUpdate(String.format("ダウンロード中 (%d/%d)... %.1f%%%s", completed, total, clamped, formatElapsed(elapsed)), clamped / 100.0, true);
+        }
+
         public static ProgressUpdate hidden() {
             return new ProgressUpdate("", 0, false);
         }
@@ -497,8 +2020,131 @@ public class DownloadExecutor {
         }
     }
 
+    /**
+     * バッチ全体の進捗を、完了件数と実行中URLの進捗の平均として算出する。
+     */
+    private final class BatchProgress implements YtDlpBatchPool.Listener {
+        private final AtomicInteger total;
+        private final Set<String> members;
+        private final CopyOnWriteArrayList<String> urgent = new CopyOnWriteArrayList<>();
+        private final Map<String, Double> running = new ConcurrentHashMap<>();
+        private final AtomicInteger done = new AtomicInteger();
+        private final Map<String, RetryPolicy.FailureLog> failures = new ConcurrentHashMap<>();
+        private volatile BiConsumer<String, String> fileSink;
+
+        BatchProgress(List<String> urls) {
+            this.total = new AtomicInteger(urls.size());
+            this.members = Set.copyOf(urls);
+        }
+
+        /**
+         * 割り込んだ優先URLを件数に加える。既にこのバッチに含まれているURLであればfalse。
+         */
+        boolean addUrgent(String url) {
+            if (members.contains(url) || !urgent.addIfAbsent(url)) {
+                return false;
+            }
+            total.incrementAndGet();
+            return true;
+        }
+
+        void withdrawUrgent(String url) {
+            if (urgent.remove(url)) {
+                total.decrementAndGet();
+            }
+        }
+
+        List<String> urgentUrls() {
+            return List.copyOf(urgent);
+        }
+
+        /**
+         * ダウンロードが完了したファイルを受け取る処理を設定する。互換モードでは後処理段への投入に使う。
+         */
+        void setFileSink(BiConsumer<String, String> fileSink) {
+            this.fileSink = fileSink;
+        }
+
+        @Override
+        public void onBegin(String url) {
+            running.put(url, 0.0);
+            logStep("開始: {}", url);
+        }
+
+        @Override
+        public void onProgress(String url, double percent) {
+            running.put(url, percent);
+            markProgressStarted();
+            publish();
+        }
+
+        @Override
+        public void onDone(String url, String filepath) {
+            running.remove(url);
+            done.incrementAndGet();
+            logStep("完了: {}", url);
+            BiConsumer<String, String> sink = fileSink;
+            if (sink != null && filepath != null) {
+                sink.accept(url, filepath);
+            } else if (filepath != null) {
+                recordOutput(Paths.get(filepath));
+            }
+            publish();
+        }
+
+        @Override
+        public void onLog(String workerLabel, String line) {
+            AppLogger.childOutput(workerLabel, jobId, line);
+            observePhase(line);
+        }
+
+        @Override
+        public void onError(String url, String line) {
+            failures.computeIfAbsent(url, ignored -> new RetryPolicy.FailureLog()).accept(line);
+        }
+
+        /**
+         * URLについて記録したエラーを分類し、記録を消す。エラー行がなかった場合は一時的な失敗とみなす。
+         */
+        RetryPolicy.FailureKind takeFailure(String url) {
+            RetryPolicy.FailureLog failureLog = failures.remove(url);
+            return failureLog != null ? failureLog.classify() : RetryPolicy.FailureKind.TRANSIENT;
+        }
+
+        private void publish() {
+            double inFlight = running.values().stream().mapToDouble(Double::doubleValue).sum() / 100.0;
+            int completed = done.get();
+            int count = total.get();
+            double percent = Math.min(100, (completed + inFlight) * 100.0 / count);
+            sendProgress(ProgressUpdate.batch(completed, count, percent, formatElapsedForUi()));
+        }
+    }
+
     private void logStep(String message) {
-        AppLogger.log("[DownloadExecutor] " + message);
+        AppLogger.event(AppLogger.Level.INFO, LOG_SOURCE, jobId, message);
+    }
+
+    private void logStep(String template, Object arg) {
+        AppLogger.event(AppLogger.Level.INFO, LOG_SOURCE, jobId, template, arg);
+    }
+
+    private void logStep(String template, Object arg1, Object arg2) {
+        AppLogger.event(AppLogger.Level.INFO, LOG_SOURCE, jobId, template, arg1, arg2);
+    }
+
+    private void logStep(String template, Object... args) {
+        AppLogger.event(AppLogger.Level.INFO, LOG_SOURCE, jobId, template, args);
+    }
+
+    /**
+     * 子プロセスの1行分の出力を記録する。ffmpegは `-loglevel error` で起動するため、出力はすべてエラーとして残す。
+     */
+    private void logChildLine(String sourceLabel, String line) {
+        if ("ffmpeg".equals(sourceLabel)) {
+            AppLogger.event(AppLogger.Level.WARN, sourceLabel, jobId, line);
+        } else {
+            AppLogger.childOutput(sourceLabel, jobId, line);
+        }
     }
 
     private ProgressUpdate buildDownloadingProgress(double percent) {
@@ -507,14 +2153,21 @@ public class DownloadExecutor {
     }
 
     private ProgressUpdate buildLoadingProgress() {
+        String reason = waitingReason;
+        if (reason != null) {
+            return ProgressUpdate.waiting(reason, formatElapsedForUi());
+        }
         return ProgressUpdate.infoLoading(formatElapsedForUi());
     }
 
     private void markDownloadStart() {
         downloadStartNanos = System.nanoTime();
+        // ファイルの更新日時と比べるため、壁時計の時刻も記録する
+        downloadStartMillis = System.currentTimeMillis();
         downloadActive = true;
         progressStarted = false;
         cancelRequested = false;
+        pauseRequested = false;
     }
 
     private void clearDownloadStart() {
@@ -545,10 +2198,15 @@ public class DownloadExecutor {
         long hours = elapsedSeconds / 3600;
         long minutes = (elapsedSeconds % 3600) / 60;
         long seconds = elapsedSeconds % 60;
-        if (hours > 0) {
-            return String.format("%d:%02d:%02d", hours, minutes, seconds);
+        String elapsed = hours > 0
+                ? String.format("%d:%02d:%02d", hours, minutes, seconds)
+                : String.format("%02d:%02d", minutes, seconds);
+        JobResourceMonitor monitor = resourceMonitor;
+        if (monitor == null) {
+            return elapsed;
         }
-        return String.format("%02d:%02d", minutes, seconds);
+        JobResourceMonitor.Usage usage = monitor.usage();
+        return usage.processes() > 0 ? elapsed + " / " + usage.brief() : elapsed;
     }
 
     private void startLoadingElapsedTicker() {
@@ -579,10 +2237,23 @@ public class DownloadExecutor {
     }
 
     private TrackedProcess monitorProcess(String label, Process process, boolean parseProgress, boolean useErrorStream, String sourceLabel) {
+        return monitorProcess(label, process, parseProgress, useErrorStream, sourceLabel, null);
+    }
+
+    private TrackedProcess monitorProcess(String label, Process process, boolean parseProgress, boolean useErrorStream, String sourceLabel,
+                                          BandwidthGovernor.Lease lease) {
+        return monitorProcess(label, process, parseProgress, useErrorStream, sourceLabel, lease, null);
+    }
+
+    /**
+     * @param failureLog 失敗の分類用に出力行を受け取る。不要ならnull
+     */
+    private TrackedProcess monitorProcess(String label, Process process, boolean parseProgress, boolean useErrorStream, String sourceLabel,
+                                          BandwidthGovernor.Lease lease, RetryPolicy.FailureLog failureLog) {
         registerProcess(process);
         long start = logProcessStart(label);
         InputStream logStream = useErrorStream ? process.getErrorStream() : process.getInputStream();
-        Thread logThread = consumeAsync(logStream, parseProgress, sourceLabel);
+        Thread logThread = consumeAsync(logStream, parseProgress, sourceLabel, lease, failureLog);
         return new TrackedProcess(process, label, start, logThread);
     }
 
@@ -624,7 +2295,7 @@ public class DownloadExecutor {
             logProcessEnd("curl（title取得）", start, exitCode);
             return new CommandResult(exitCode, output);
         } catch (Exception e) {
-            logStep("curl（title取得）" + " の実行に失敗: " + e.getMessage());
+            logStep("curl（title取得） の実行に失敗: {}", e.getMessage());
             logProcessEnd("curl（title取得）", start, -1);
             return new CommandResult(-1, "");
         } finally {
@@ -657,6 +2328,27 @@ public class DownloadExecutor {
 
     private void markProgressStarted() {
         progressStarted = true;
+        markPhase(PhaseLatencyStats.Phase.FIRST_PROGRESS);
+    }
+
+    /**
+     * 起動したプロセスをキャンセル対象として登録する。キャンセル後は新しいプロセスを起動しない。
+     */
+    private final class TrackedLauncher implements ProcessLauncher {
+        @Override
+        public Process start(List<String> command) throws IOException {
+            if (cancelRequested) {
+                throw new IOException("キャンセル済みのため起動しません: " + command.getFirst());
+            }
+            Process process = prepareProcess(new ProcessBuilder(command), true).start();
+            registerProcess(process);
+            return process;
+        }
+
+        @Override
+        public void finished(Process process) {
+            unregisterProcess(process);
+        }
     }
 
     private record TrackedProcess(Process process, String label, long startNanos, Thread logThread) {
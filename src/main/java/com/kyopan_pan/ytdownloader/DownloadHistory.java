@@ -0,0 +1,456 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * 終了したダウンロードジョブを1件ずつ追記するバイナリ形式の履歴(`history.bin`)と、その疎な索引(`history.idx`)。
+ * 履歴は「長さ・本体・CRC32」の並びで、書き込み途中で終了した末尾の不完全なレコードは読み飛ばして次の追記で上書きする。
+ * 索引は {@link #BLOCK_SIZE} 件ごとに先頭レコードの終了時刻と位置を持ち、期間を指定した集計は該当するブロックから読み始め、
+ * 履歴の表示は新しいブロックから順に必要な分だけ読む。
+ * 追記は専用スレッドで行うため、呼び出し元はファイルの入出力を待たない。
+ */
+final class DownloadHistory {
+
+    static final int BLOCK_SIZE = 64;
+    private static final int LOG_MAGIC = 0x59544448; // "YTDH"
+    private static final int INDEX_MAGIC = 0x59544449; // "YTDI"
+    private static final byte VERSION = 1;
+    private static final int HEADER_BYTES = 5;
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final int MAX_URL_CHARS = 2000;
+    private static final DownloadHistory SHARED = new DownloadHistory(
+            Paths.get(DownloadConfig.APP_DATA_DIR, "history.bin"), Paths.get(DownloadConfig.APP_DATA_DIR, "history.idx"));
+
+    enum Outcome {
+        SUCCESS("成功"),
+        FAILED("失敗"),
+        CANCELLED("停止"),
+        PAUSED("一時停止");
+
+        private final String label;
+
+        Outcome(String label) {
+            this.label = label;
+        }
+
+        String label() {
+            return label;
+        }
+    }
+
+    /**
+     * 1件のジョブの記録。
+     *
+     * @param finishedAtMillis 終了時刻(エポックミリ秒)
+     * @param bytes            保存先に増えたファイルの合計サイズ
+     * @param exitCode         最後に失敗した子プロセスの終了コード。失敗がなければ0
+     * @param strategy         最後に使った取得方法(h264 / compat / batch / direct / animethemes-relay / animethemes-pipe)
+     * @param host             URLのホスト。複数URLでホストが異なる場合は "mixed"
+     * @param url              入力の最初のURL
+     */
+    record Entry(long finishedAtMillis, long durationMillis, long bytes, int exitCode, int retries, int urlCount,
+                 Outcome outcome, String strategy, String host, String url) {
+
+        double bytesPerSecond() {
+            return durationMillis > 0 ? bytes * 1000.0 / durationMillis : 0;
+        }
+
+        LocalDate day() {
+            return Instant.ofEpochMilli(finishedAtMillis).atZone(ZoneId.systemDefault()).toLocalDate();
+        }
+    }
+
+    /**
+     * 集計値。スループットは成功したジョブのみから求める。
+     */
+    record Aggregate(long jobs, long failures, long bytes, long millis) {
+
+        double bytesPerSecond() {
+            return millis > 0 ? bytes * 1000.0 / millis : 0;
+        }
+
+        double failureRate() {
+            return jobs > 0 ? (double) failures / jobs : 0;
+        }
+
+        private Aggregate plus(Entry entry) {
+            boolean success = entry.outcome() == Outcome.SUCCESS;
+            return new Aggregate(jobs + 1,
+                    failures + (entry.outcome() == Outcome.FAILED ? 1 : 0),
+                    bytes + (success ? entry.bytes() : 0),
+                    millis + (success ? entry.durationMillis() : 0));
+        }
+    }
+
+    private final Path logFile;
+    private final Path indexFile;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "download-history-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 以下は opened 以降、このインスタンスのロックの下で扱う
+    private boolean opened;
+    private final List<long[]> index = new ArrayList<>();
+    private long records;
+    private long validBytes;
+
+    DownloadHistory(Path logFile, Path indexFile) {
+        this.logFile = logFile;
+        this.indexFile = indexFile;
+    }
+
+    static DownloadHistory shared() {
+        return SHARED;
+    }
+
+    static String hostOf(List<String> urls) {
+        String host = null;
+        for (String url : urls) {
+            String current;
+            try {
+                current = URI.create(url).getHost();
+            } catch (IllegalArgumentException e) {
+                current = null;
+            }
+            current = current == null ? "unknown" : current.toLowerCase().replaceFirst("^(www|m)\\.", "");
+            if (host != null && !host.equals(current)) {
+                return "mixed";
+            }
+            host = current;
+        }
+        return host == null ? "unknown" : host;
+    }
+
+    /**
+     * 記録を追記する。entryFactoryは追記用のスレッドで呼ぶため、保存先の走査など時間のかかる処理を含めてよい。
+     */
+    void appendAsync(Supplier<Entry> entryFactory) {
+        writer.execute(() -> {
+            try {
+                append(entryFactory.get());
+            } catch (IOException | RuntimeException e) {
+                AppLogger.logError("[DownloadHistory] 履歴の追記に失敗しました: " + logFile, e);
+            }
+        });
+    }
+
+    synchronized void append(Entry entry) throws IOException {
+        open();
+        byte[] payload = encode(entry);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length + 4);
+        buffer.putInt(payload.length).put(payload).putInt((int) crc.getValue()).flip();
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            // 不完全な末尾があれば上書きする
+            channel.truncate(validBytes);
+            long offset = validBytes;
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            if (records % BLOCK_SIZE == 0) {
+                appendIndex(entry.finishedAtMillis(), offset);
+            }
+            records++;
+            validBytes = offset + buffer.limit();
+        }
+    }
+
+    synchronized long size() throws IOException {
+        open();
+        return records;
+    }
+
+    synchronized int blockCount() throws IOException {
+        open();
+        return index.size();
+    }
+
+    /**
+     * 1ブロック分のレコードを古い順に返す。表示はブロック番号の大きい(新しい)方から順に読む。
+     */
+    synchronized List<Entry> readBlock(int block) throws IOException {
+        open();
+        List<Entry> entries = new ArrayList<>();
+        if (block < 0 || block >= index.size()) {
+            return entries;
+        }
+        long end = block + 1 < index.size() ? index.get(block + 1)[1] : validBytes;
+        scan(index.get(block)[1], end, (offset, entry) -> entries.add(entry));
+        return entries;
+    }
+
+    synchronized Map<String, Aggregate> throughputByHost(long sinceMillis) throws IOException {
+        return aggregate(sinceMillis, Entry::host, new LinkedHashMap<>());
+    }
+
+    synchronized Map<LocalDate, Aggregate> throughputByDay(long sinceMillis) throws IOException {
+        return aggregate(sinceMillis, Entry::day, new TreeMap<>());
+    }
+
+    synchronized Map<String, Aggregate> failureRateByStrategy(long sinceMillis) throws IOException {
+        return aggregate(sinceMillis, Entry::strategy, new LinkedHashMap<>());
+    }
+
+    /**
+     * 所要時間の長い順に最大limit件を返す。
+     */
+    synchronized List<Entry> slowest(int limit, long sinceMillis) throws IOException {
+        PriorityQueue<Entry> top = new PriorityQueue<>(Comparator.comparingLong(Entry::durationMillis));
+        forEachSince(sinceMillis, entry -> {
+            top.add(entry);
+            if (top.size() > limit) {
+                top.poll();
+            }
+        });
+        List<Entry> result = new ArrayList<>(top);
+        result.sort(Comparator.comparingLong(Entry::durationMillis).reversed());
+        return result;
+    }
+
+    /**
+     * 終了時刻がsinceMillis以降のレコードを古い順に返す。
+     */
+    synchronized List<Entry> entriesSince(long sinceMillis) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        forEachSince(sinceMillis, entries::add);
+        return entries;
+    }
+
+    private <K> Map<K, Aggregate> aggregate(long sinceMillis, Function<Entry, K> key, Map<K, Aggregate> result) throws IOException {
+        Aggregate empty = new Aggregate(0, 0, 0, 0);
+        forEachSince(sinceMillis, entry -> result.merge(key.apply(entry), empty.plus(entry), (a, b) -> new Aggregate(
+                a.jobs() + b.jobs(), a.failures() + b.failures(), a.bytes() + b.bytes(), a.millis() + b.millis())));
+        return result;
+    }
+
+    /**
+     * 終了時刻がsinceMillis以降のレコードを古い順に渡す。索引から、該当し得る最初のブロックを探して読み始める。
+     */
+    private void forEachSince(long sinceMillis, Consumer<Entry> consumer) throws IOException {
+        open();
+        if (index.isEmpty()) {
+            return;
+        }
+        int first = 0;
+        for (int i = index.size() - 1; i >= 0; i--) {
+            if (index.get(i)[0] <= sinceMillis) {
+                first = i;
+                break;
+            }
+        }
+        scan(index.get(first)[1], validBytes, (offset, entry) -> {
+            if (entry.finishedAtMillis() >= sinceMillis) {
+                consumer.accept(entry);
+            }
+        });
+    }
+
+    private interface RecordVisitor {
+        void visit(long offset, Entry entry);
+    }
+
+    /**
+     * [from, to) の範囲を読み、完全で壊れていないレコードを位置とともに渡す。最後に読めた位置を返す。
+     */
+    private long scan(long from, long to, RecordVisitor visitor) throws IOException {
+        if (!Files.exists(logFile)) {
+            return from;
+        }
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            long end = Math.min(to, channel.size());
+            long position = from;
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (position + 4 <= end) {
+                header.clear();
+                readFully(channel, header, position);
+                int length = header.getInt(0);
+                if (length <= 0 || length > MAX_RECORD_BYTES || position + 4 + length + 4 > end) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(length + 4);
+                readFully(channel, body, position + 4);
+                CRC32 crc = new CRC32();
+                crc.update(body.array(), 0, length);
+                if ((int) crc.getValue() != body.getInt(length)) {
+                    break;
+                }
+                visitor.visit(position, decode(body.array(), length));
+                position += 4 + length + 4;
+            }
+            return position;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("履歴ファイルが途中で終わっています");
+            }
+        }
+    }
+
+    /**
+     * 初回のみ、ファイルの見出しを確かめて索引を読み込み、索引の最後のブロック以降を走査して件数と有効な末尾を求める。
+     * 索引が履歴と合わない場合は履歴全体から作り直す。
+     */
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        Files.createDirectories(logFile.getParent());
+        if (!Files.exists(logFile) || Files.size(logFile) < HEADER_BYTES) {
+            writeHeader(logFile, LOG_MAGIC);
+            writeHeader(indexFile, INDEX_MAGIC);
+        } else {
+            checkHeader(logFile, LOG_MAGIC);
+        }
+        if (!loadIndex()) {
+            rebuildIndex();
+        }
+        long tail = countTail();
+        // 索引の書き込み前に終了していた場合は、最後のブロックが規定の件数を超える
+        if ((index.isEmpty() && tail > 0) || tail > BLOCK_SIZE) {
+            rebuildIndex();
+            tail = countTail();
+        }
+        records = (long) Math.max(0, index.size() - 1) * BLOCK_SIZE + tail;
+        opened = true;
+    }
+
+    /**
+     * 最後のブロックの件数を数え、有効な末尾の位置を求める。
+     */
+    private long countTail() throws IOException {
+        long start = index.isEmpty() ? HEADER_BYTES : index.getLast()[1];
+        long[] tail = {0};
+        validBytes = scan(start, Long.MAX_VALUE, (offset, entry) -> tail[0]++);
+        return tail[0];
+    }
+
+    private boolean loadIndex() throws IOException {
+        index.clear();
+        if (!Files.exists(indexFile) || Files.size(indexFile) < HEADER_BYTES) {
+            return false;
+        }
+        byte[] bytes = Files.readAllBytes(indexFile);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != INDEX_MAGIC || buffer.get() != VERSION) {
+            return false;
+        }
+        long logSize = Files.size(logFile);
+        while (buffer.remaining() >= INDEX_ENTRY_BYTES) {
+            long finishedAt = buffer.getLong();
+            long offset = buffer.getLong();
+            if (offset < HEADER_BYTES || offset >= logSize) {
+                return false;
+            }
+            index.add(new long[]{finishedAt, offset});
+        }
+        return true;
+    }
+
+    private void rebuildIndex() throws IOException {
+        index.clear();
+        writeHeader(indexFile, INDEX_MAGIC);
+        long[] count = {0};
+        List<long[]> entries = new ArrayList<>();
+        scan(HEADER_BYTES, Long.MAX_VALUE, (offset, entry) -> {
+            if (count[0] % BLOCK_SIZE == 0) {
+                entries.add(new long[]{entry.finishedAtMillis(), offset});
+            }
+            count[0]++;
+        });
+        for (long[] entry : entries) {
+            appendIndex(entry[0], entry[1]);
+        }
+        AppLogger.log("[DownloadHistory] 履歴の索引を作り直しました (" + count[0] + " 件)");
+    }
+
+    private void appendIndex(long finishedAt, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_BYTES).putLong(finishedAt).putLong(offset).flip();
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        index.add(new long[]{finishedAt, offset});
+    }
+
+    private static void writeHeader(Path file, int magic) throws IOException {
+        Files.write(file, ByteBuffer.allocate(HEADER_BYTES).putInt(magic).put(VERSION).array());
+    }
+
+    private static void checkHeader(Path file, int magic) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != magic || header.get(4) != VERSION) {
+                throw new IOException("履歴ファイルの形式が不明です: " + file);
+            }
+        }
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(entry.finishedAtMillis());
+            out.writeInt((int) Math.min(Integer.MAX_VALUE, entry.durationMillis()));
+            out.writeLong(entry.bytes());
+            out.writeInt(entry.exitCode());
+            out.writeShort(Math.min(Short.MAX_VALUE, entry.retries()));
+            out.writeShort(Math.min(Short.MAX_VALUE, entry.urlCount()));
+            out.writeByte(entry.outcome().ordinal());
+            out.writeUTF(entry.strategy());
+            out.writeUTF(entry.host());
+            String url = entry.url();
+            out.writeUTF(url.length() > MAX_URL_CHARS ? url.substring(0, MAX_URL_CHARS) : url);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(byte[] payload, int length) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 0, length))) {
+            long finishedAt = in.readLong();
+            long duration = in.readInt();
+            long bytes = in.readLong();
+            int exitCode = in.readInt();
+            int retries = in.readShort();
+            int urlCount = in.readShort();
+            int outcome = in.readByte();
+            Outcome[] outcomes = Outcome.values();
+            return new Entry(finishedAt, duration, bytes, exitCode, retries, urlCount,
+                    outcome >= 0 && outcome < outcomes.length ? outcomes[outcome] : Outcome.FAILED,
+                    in.readUTF(), in.readUTF(), in.readUTF());
+        }
+    }
+}
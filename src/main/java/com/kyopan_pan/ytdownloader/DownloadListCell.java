@@ -5,29 +5,59 @@ import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.OverrunStyle;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.Region;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
 
 import java.io.File;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 public class DownloadListCell extends ListCell<File> {
 
     private final Consumer<File> onDelete;
+    private final ThumbnailCache thumbnails;
+    private final MediaInfoCache mediaInfo;
+    private final ImageView thumbnailView = new ImageView();
+    // 読み込み前でも行の高さと名前の位置が変わらないよう、サムネイルの枠は常に同じ大きさで置く
+    private final StackPane thumbnailBox = new StackPane(thumbnailView);
     private final Label nameLabel = new Label();
+    // 長さ・解像度・コーデック。MP4以外や読み取り前は空
+    private final Label detailLabel = new Label();
+    private final VBox textBox = new VBox(2, nameLabel, detailLabel);
     private final Button deleteBtn = new Button();
     private final Region spacer = new Region();
-    private final HBox container = new HBox(10, nameLabel, spacer, deleteBtn);
+    private final HBox container = new HBox(10, thumbnailBox, textBox, spacer, deleteBtn);
+    private ThumbnailCache.Request pendingThumbnail;
+    private Future<?> pendingInfo;
 
-    public DownloadListCell(Consumer<File> onDelete) {
+    DownloadListCell(ThumbnailCache thumbnails, MediaInfoCache mediaInfo, Consumer<File> onDelete) {
         this.onDelete = onDelete;
+        this.thumbnails = thumbnails;
+        this.mediaInfo = mediaInfo;
+        thumbnailBox.getStyleClass().add("thumbnail");
+        thumbnailBox.setMinSize(ThumbnailCache.DISPLAY_WIDTH, ThumbnailCache.DISPLAY_HEIGHT);
+        thumbnailBox.setMaxSize(ThumbnailCache.DISPLAY_WIDTH, ThumbnailCache.DISPLAY_HEIGHT);
+        thumbnailView.setFitWidth(ThumbnailCache.DISPLAY_WIDTH);
+        thumbnailView.setFitHeight(ThumbnailCache.DISPLAY_HEIGHT);
+        thumbnailView.setPreserveRatio(true);
+        thumbnailView.setSmooth(true);
         nameLabel.getStyleClass().add("file-name");
         nameLabel.setTextOverrun(OverrunStyle.ELLIPSIS);
         nameLabel.setEllipsisString("...");
         nameLabel.setMaxWidth(Double.MAX_VALUE);
         nameLabel.setMinWidth(0);
+        detailLabel.getStyleClass().add("file-detail");
+        detailLabel.setTextOverrun(OverrunStyle.ELLIPSIS);
+        detailLabel.setMinWidth(0);
+        textBox.setMinWidth(0);
+        textBox.setAlignment(Pos.CENTER_LEFT);
         HBox.setHgrow(nameLabel, Priority.ALWAYS);
+        HBox.setHgrow(textBox, Priority.ALWAYS);
         HBox.setHgrow(spacer, Priority.ALWAYS);
         container.setAlignment(Pos.CENTER_LEFT);
         container.getStyleClass().add("file-row");
@@ -56,13 +86,70 @@ public class DownloadListCell extends ListCell<File> {
     @Override
     protected void updateItem(File item, boolean empty) {
         super.updateItem(item, empty);
+        // セルは再利用されるため、前の項目向けの読み込みは画面外に出た時点で取り消す
+        cancelPendingThumbnail();
+        cancelPendingInfo();
         if (empty || item == null) {
+            thumbnailView.setImage(null);
             setText(null);
             setGraphic(null);
         } else {
             nameLabel.setText(item.getName());
+            showThumbnail(item);
+            showDetail(item);
             setText(null);
             setGraphic(container);
         }
     }
+
+    /**
+     * 保持しているサムネイルをすぐに表示し、ファイルが変わっていないかの確認は読み込み用のスレッドへ任せる。
+     */
+    private void showThumbnail(File item) {
+        thumbnailView.setImage(thumbnails.getCached(item));
+        pendingThumbnail = thumbnails.request(item, image -> {
+            if (item.equals(getItem())) {
+                thumbnailView.setImage(image);
+            }
+        });
+    }
+
+    private void showDetail(File item) {
+        applyDetail(mediaInfo.getCached(item));
+        pendingInfo = mediaInfo.request(item, info -> {
+            if (item.equals(getItem())) {
+                applyDetail(info);
+            }
+        });
+    }
+
+    private void applyDetail(Mp4Inspector.Info info) {
+        detailLabel.getStyleClass().remove("invalid");
+        if (info == null) {
+            detailLabel.setText(null);
+            detailLabel.setVisible(false);
+            detailLabel.setManaged(false);
+            return;
+        }
+        if (!info.valid()) {
+            detailLabel.getStyleClass().add("invalid");
+        }
+        detailLabel.setText(info.brief());
+        detailLabel.setVisible(true);
+        detailLabel.setManaged(true);
+    }
+
+    private void cancelPendingInfo() {
+        if (pendingInfo != null) {
+            pendingInfo.cancel(false);
+            pendingInfo = null;
+        }
+    }
+
+    private void cancelPendingThumbnail() {
+        if (pendingThumbnail != null) {
+            pendingThumbnail.cancel();
+            pendingThumbnail = null;
+        }
+    }
 }
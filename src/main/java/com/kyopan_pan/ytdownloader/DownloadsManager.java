@@ -1,46 +1,200 @@
 package com.kyopan_pan.ytdownloader;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class DownloadsManager {
 
+    // 削除したファイルを取り消し可能な間だけ退避しておく、保存先直下の隠しフォルダ
+    static final String TRASH_DIR_NAME = ".ytdownloader-trash";
+
+    private final AtomicInteger trashSequence = new AtomicInteger();
+    // NASなど遅いボリュームでもUIを止めないよう、ファイル操作は1本のスレッドで順に行う
+    private final ExecutorService fileOperations = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "downloads-file-ops");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public void ensureDownloadDirectory() {
         try {
             Files.createDirectories(Paths.get(DownloadConfig.getDownloadDir()));
         } catch (Exception e) {
             AppLogger.logError("[DownloadsManager] Failed to create download directory: " + DownloadConfig.getDownloadDir(), e);
         }
+        String staging = DownloadConfig.getStagingDir();
+        if (staging != null) {
+            try {
+                Files.createDirectories(Paths.get(staging));
+            } catch (Exception e) {
+                AppLogger.logError("[DownloadsManager] Failed to create staging directory: " + staging, e);
+            }
+        }
     }
 
-    public List<File> loadRecentVideos() {
+    /**
+     * 保存先の動画を新しい順に返す。ファイル操作用のスレッドで走査し、フォルダ分けした保存先では下位フォルダを並行して走査する。
+     * 更新日時は1件につき1回だけ読み、結果に添えて返す(並べ替えのたびに読み直さない)。
+     */
+    public CompletableFuture<Library> loadLibrary() {
+        return CompletableFuture.supplyAsync(this::scanLibrary, fileOperations);
+    }
+
+    /**
+     * 保存先へ加わったファイルのうち動画のものについて、ファイル操作用のスレッドで更新日時を読む。既になくなっていたものは含めない。
+     */
+    public CompletableFuture<Map<File, Long>> readAdded(List<File> files) {
+        return CompletableFuture.supplyAsync(() -> {
+            Map<File, Long> added = new HashMap<>();
+            for (File file : files) {
+                long modified = file.lastModified();
+                if (file.getName().endsWith(".mp4") && modified > 0) {
+                    added.put(file, modified);
+                }
+            }
+            return added;
+        }, fileOperations);
+    }
+
+    private Library scanLibrary() {
         try {
-            return Files.list(Paths.get(DownloadConfig.getDownloadDir()))
-                    .filter(Files::isRegularFile)
+            List<File> files = OutputLayout.scan(Paths.get(DownloadConfig.getDownloadDir())).stream()
                     .map(Path::toFile)
                     .filter(f -> f.getName().endsWith(".mp4"))
-                    .sorted(Comparator.comparingLong(File::lastModified).reversed())
-                    .collect(Collectors.toList());
+                    .collect(Collectors.toCollection(ArrayList::new));
+            Map<File, Long> modified = new HashMap<>();
+            for (File file : files) {
+                modified.put(file, file.lastModified());
+            }
+            files.sort(newestFirst(modified));
+            return new Library(files, modified);
         } catch (Exception e) {
             AppLogger.logError("[DownloadsManager] Failed to load recent videos from " + DownloadConfig.getDownloadDir(), e);
-            return Collections.emptyList();
+            return new Library(Collections.emptyList(), Collections.emptyMap());
         }
     }
 
-    public boolean deleteFile(File target) {
-        if (target == null || !target.exists()) {
-            return false;
+    /**
+     * 一覧の並び順(更新日時の新しい順)。元に戻したファイルの挿入位置を求める際にも使う。
+     * 日時は読み取り済みの値を使い、ファイルには触れない。
+     */
+    static Comparator<File> newestFirst(Map<File, Long> modified) {
+        return Comparator.comparingLong((File file) -> modified.getOrDefault(file, 0L)).reversed();
+    }
+
+    /**
+     * 複数のファイルをまとめて退避フォルダへ移動する。同じボリューム内の移動なので、取り消しは移動し直すだけで済む。
+     * 移動できなかったファイルは結果の {@link TrashBatch#failed()} に入る。
+     */
+    public CompletableFuture<TrashBatch> moveToTrash(List<File> targets) {
+        List<File> files = List.copyOf(targets);
+        return CompletableFuture.supplyAsync(() -> {
+            Path trashDir = Paths.get(DownloadConfig.getDownloadDir(), TRASH_DIR_NAME,
+                    System.currentTimeMillis() + "-" + trashSequence.incrementAndGet());
+            Map<File, Path> moved = new LinkedHashMap<>();
+            List<File> failed = new ArrayList<>();
+            try {
+                Files.createDirectories(trashDir);
+            } catch (IOException e) {
+                AppLogger.logError("[DownloadsManager] 退避フォルダを作成できません: " + trashDir, e);
+                return new TrashBatch(trashDir, moved, files);
+            }
+            for (File file : files) {
+                // フォルダ分けした保存先では、別のフォルダの同名ファイルをまとめて削除することがある
+                Path destination = trashDir.resolve(file.getName());
+                if (Files.exists(destination)) {
+                    destination = trashDir.resolve(moved.size() + "-" + file.getName());
+                }
+                try {
+                    Files.move(file.toPath(), destination);
+                    moved.put(file, destination);
+                } catch (IOException e) {
+                    AppLogger.logError("[DownloadsManager] 削除に失敗しました: " + file.getAbsolutePath(), e);
+                    failed.add(file);
+                }
+            }
+            AppLogger.log("[DownloadsManager] " + moved.size() + " 件を退避しました (失敗 " + failed.size() + " 件)");
+            return new TrashBatch(trashDir, moved, failed);
+        }, fileOperations);
+    }
+
+    /**
+     * 退避したファイルを元の場所へ戻し、戻せたファイルとその更新日時を返す。元の場所に同名のファイルが既にある場合は戻さない。
+     */
+    public CompletableFuture<Map<File, Long>> restore(TrashBatch batch) {
+        return CompletableFuture.supplyAsync(() -> {
+            Map<File, Long> restored = new LinkedHashMap<>();
+            for (Map.Entry<File, Path> entry : batch.moved().entrySet()) {
+                try {
+                    Files.move(entry.getValue(), entry.getKey().toPath());
+                    restored.put(entry.getKey(), entry.getKey().lastModified());
+                } catch (IOException e) {
+                    AppLogger.logError("[DownloadsManager] 元に戻せませんでした: " + entry.getKey().getAbsolutePath(), e);
+                }
+            }
+            deleteRecursively(batch.directory());
+            AppLogger.log("[DownloadsManager] " + restored.size() + " 件を元に戻しました");
+            return restored;
+        }, fileOperations);
+    }
+
+    /**
+     * 取り消し期間が過ぎた退避分を完全に削除する。
+     */
+    public void purge(TrashBatch batch) {
+        fileOperations.execute(() -> deleteRecursively(batch.directory()));
+    }
+
+    /**
+     * 前回の終了時に取り消し期間中だった退避分を片付ける。
+     */
+    public void purgeLeftoverTrash() {
+        Path trashRoot = Paths.get(DownloadConfig.getDownloadDir(), TRASH_DIR_NAME);
+        fileOperations.execute(() -> deleteRecursively(trashRoot));
+    }
+
+    private void deleteRecursively(Path root) {
+        if (!Files.exists(root)) {
+            return;
         }
-        boolean removed = target.delete();
-        if (!removed) {
-            System.err.println("Failed to delete file: " + target.getAbsolutePath());
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    AppLogger.logError("[DownloadsManager] 退避分の削除に失敗しました: " + path, e);
+                }
+            });
+        } catch (IOException e) {
+            AppLogger.logError("[DownloadsManager] 退避フォルダを走査できません: " + root, e);
         }
-        return removed;
+    }
+
+    /**
+     * 保存先の動画(新しい順)と、読み取った時点の各ファイルの更新日時。
+     */
+    public record Library(List<File> files, Map<File, Long> modified) {
+    }
+
+    /**
+     * 1回の削除操作で退避したファイル。{@code moved} は元の場所から退避先への対応。
+     */
+    public record TrashBatch(Path directory, Map<File, Path> moved, List<File> failed) {
     }
 }
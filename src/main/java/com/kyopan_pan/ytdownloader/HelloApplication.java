@@ -1,8 +1,14 @@
 package com.kyopan_pan.ytdownloader;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.PauseTransition;
+import javafx.animation.Timeline;
 import javafx.application.Application;
 import javafx.application.Platform;
-import javafx.collections.ListChangeListener;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.geometry.Rectangle2D;
@@ -15,29 +21,76 @@ import javafx.scene.shape.SVGPath;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
+import javafx.util.Duration;
+import javafx.util.StringConverter;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class HelloApplication extends Application {
 
+    // ログの出所の選択肢で「絞り込まない」を表す項目。ストアの出所番号0(出所なし)の位置に置き、以降の添字を出所番号とそろえる
+    private static final String ALL_SOURCES = "すべて";
+
     private Stage primaryStage;
     private UserSettings settings;
     private final DownloadsManager downloadsManager = new DownloadsManager();
     private final DependencyManager dependencyManager = new DependencyManager();
+    private final ThumbnailCache thumbnailCache = new ThumbnailCache();
+    private final MediaInfoCache mediaInfoCache = new MediaInfoCache();
+    private final LibraryIndex libraryIndex = new LibraryIndex();
+    private final ObservableList<File> libraryFiles = FXCollections.observableArrayList();
+    // 一覧の各ファイルの更新日時。読み込み時と復元時にバックグラウンドで読んだ値で、並び順の計算にFXスレッドでファイルを読まない
+    private final Map<File, Long> libraryModified = new HashMap<>();
+    private final FilteredList<File> filteredFiles = new FilteredList<>(libraryFiles);
     private DownloadExecutor downloadExecutor;
     private TextField urlInput;
     private Button downloadBtn;
+    private Button pauseBtn;
+    private HBox pausedBar;
+    private Label pausedLabel;
     private SVGPath downloadIcon;
     private SVGPath stopIcon;
     private SVGPath successIcon;
     private ListView<File> fileListView;
+    private TextField searchInput;
+    private HBox undoBar;
+    private Label undoLabel;
+    private DownloadsManager.TrashBatch pendingTrash;
+    // 削除を取り消せる期間。過ぎたら退避分を完全に削除する
+    private final PauseTransition undoTimer = new PauseTransition(Duration.seconds(10));
+    // ステージングからの移動が続く間、一覧への追加をまとめる
+    private final PauseTransition libraryRefreshDelay = new PauseTransition(Duration.millis(500));
+    // ステージングから保存先へ移り、まだ一覧へ加えていないファイル。FXスレッドからのみ操作する
+    private final Set<File> movedFiles = new LinkedHashSet<>();
+    // 一覧の読み直しの要求番号と、一覧を部分的に変更した回数。走査中に削除や追加があった結果は古いため使わない
+    private long libraryLoadSequence;
+    private long libraryEdits;
     private VBox progressBox;
     private Label progressLabel;
     private ProgressBar progressBar;
     private Stage logStage;
     private ListView<String> logListView;
+    private LogLines logLines;
+    private Timeline logTicker;
     private String stylesheetUrl;
     private Dialog<ButtonType> setupDialog;
 
@@ -47,11 +100,11 @@ public class HelloApplication extends Application {
         settings = UserSettings.load();
         DownloadConfig.setDownloadDir(settings.getDownloadDirectory());
         downloadsManager.ensureDownloadDirectory();
+        downloadsManager.purgeLeftoverTrash();
 
         // === 追加部分: バイナリの準備 ===
-        // UIブロックを避けるため別スレッドで実行するか、
-        // 本来はスプラッシュスクリーン等で待機させるべきですが、簡易的にここで呼び出します
-        new Thread(dependencyManager::ensureBinaries).start();
+        // 準備は並列にバックグラウンドで進み、ダウンロードは完了通知(Future)を待ってから開始する
+        dependencyManager.ensureBinaries();
 
         urlInput = new TextField();
         urlInput.setPromptText("YouTube URL...");
@@ -62,21 +115,28 @@ public class HelloApplication extends Application {
         successIcon = IconFactory.createSuccessIcon();
 
         downloadBtn = buildDownloadButton(downloadIcon);
+        pauseBtn = buildPauseButton();
         MenuBar menuBar = buildMenuBar();
 
-        HBox inputRow = new HBox(12, urlInput, downloadBtn);
+        HBox inputRow = new HBox(12, urlInput, pauseBtn, downloadBtn);
         inputRow.getStyleClass().add("input-row");
         HBox.setHgrow(urlInput, Priority.ALWAYS);
 
         buildProgressArea();
 
         fileListView = buildListView();
+        searchInput = buildSearchField();
+        undoBar = buildUndoBar();
+        pausedBar = buildPausedBar();
         refreshFileList();
 
         Label downloadsLabel = new Label("Downloads");
         downloadsLabel.getStyleClass().add("section-title");
+        HBox downloadsHeader = new HBox(10, downloadsLabel, searchInput);
+        downloadsHeader.setAlignment(Pos.CENTER_LEFT);
+        HBox.setHgrow(searchInput, Priority.ALWAYS);
 
-        VBox mainContent = new VBox(14, inputRow, progressBox, downloadsLabel, fileListView);
+        VBox mainContent = new VBox(14, inputRow, progressBox, pausedBar, downloadsHeader, fileListView, undoBar);
         mainContent.getStyleClass().add("app");
         mainContent.setPadding(new Insets(16));
         VBox.setVgrow(fileListView, Priority.ALWAYS);
@@ -85,8 +145,16 @@ public class HelloApplication extends Application {
         root.setTop(menuBar);
         root.setCenter(mainContent);
 
-        downloadExecutor = new DownloadExecutor(this::handleProgressUpdate);
+        downloadExecutor = new DownloadExecutor(dependencyManager, this::handleProgressUpdate);
         downloadBtn.setOnAction(e -> handleDownload(urlInput));
+        urlInput.setOnAction(e -> handleUrlEntered(urlInput));
+        pauseBtn.setOnAction(e -> downloadExecutor.pauseDownload(downloadBtn));
+        downloadExecutor.setPausedJobsListener(this::updatePausedBar);
+        libraryRefreshDelay.setOnFinished(event -> addMovedFiles());
+        downloadExecutor.setLibraryChangedListener(target -> Platform.runLater(() -> {
+            movedFiles.add(target.toFile());
+            libraryRefreshDelay.playFromStart();
+        }));
         urlInput.textProperty().addListener((obs, oldValue, newValue) -> {
             if (!downloadExecutor.isDownloadActive()) {
                 resetDownloadButton();
@@ -112,6 +180,11 @@ public class HelloApplication extends Application {
         primaryStage.setOnShown(event -> snapWindowToRight(primaryStage));
         primaryStage.show();
         Platform.runLater(this::maybeShowInitialSetupUi);
+        SingleInstance.listen(input -> Platform.runLater(() -> handleForwarded(input)));
+        List<String> launchArgs = getParameters().getRaw();
+        if (!launchArgs.isEmpty()) {
+            Platform.runLater(() -> handleForwarded(String.join("\n", launchArgs)));
+        }
     }
 
     private void snapWindowToRight(Stage stage) {
@@ -134,6 +207,22 @@ public class HelloApplication extends Application {
         return downloadBtn;
     }
 
+    /**
+     * ダウンロード中のみ表示する一時停止ボタン。
+     */
+    private Button buildPauseButton() {
+        Button button = new Button();
+        button.setAccessibleText("Pause download");
+        button.setGraphic(IconFactory.createPauseIcon());
+        button.getStyleClass().addAll("download-btn", "pause");
+        button.setPrefWidth(56);
+        button.setPrefHeight(48);
+        button.setMinHeight(48);
+        button.setVisible(false);
+        button.managedProperty().bind(button.visibleProperty());
+        return button;
+    }
+
     private MenuBar buildMenuBar() {
         MenuBar menuBar = new MenuBar();
         menuBar.setUseSystemMenuBar(true);
@@ -148,6 +237,18 @@ public class HelloApplication extends Application {
         logsItem.setAccelerator(new KeyCodeCombination(KeyCode.L, KeyCombination.META_DOWN));
         logsItem.setOnAction(event -> openLogWindow());
 
+        MenuItem historyItem = new MenuItem("ダウンロード履歴...");
+        historyItem.setOnAction(event -> openHistoryDialog());
+
+        MenuItem verifyItem = new MenuItem("ライブラリを検証...");
+        verifyItem.setOnAction(event -> verifyLibrary());
+
+        MenuItem migrateItem = new MenuItem("既存のファイルをフォルダ分け...");
+        migrateItem.setOnAction(event -> migrateLibrary());
+
+        MenuItem latencyItem = new MenuItem("応答時間の統計...");
+        latencyItem.setOnAction(event -> openLatencyDialog());
+
         MenuItem quitItem = new MenuItem("終了");
         quitItem.setAccelerator(new KeyCodeCombination(KeyCode.Q, KeyCombination.META_DOWN));
         quitItem.setOnAction(event -> {
@@ -155,31 +256,100 @@ public class HelloApplication extends Application {
             Platform.exit();
         });
 
-        appMenu.getItems().addAll(settingsItem, logsItem, new SeparatorMenuItem(), quitItem);
+        appMenu.getItems().addAll(settingsItem, logsItem, historyItem, latencyItem, verifyItem, migrateItem, new SeparatorMenuItem(), quitItem);
         menuBar.getMenus().add(appMenu);
         return menuBar;
     }
 
     private ListView<File> buildListView() {
-        ListView<File> listView = new ListView<>();
+        ListView<File> listView = new ListView<>(filteredFiles);
         listView.getStyleClass().add("downloads-list");
         ScrollUtil.disableHorizontalScroll(listView);
+        listView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
 
         listView.setOnDragDetected(event -> {
-            File selectedFile = listView.getSelectionModel().getSelectedItem();
-            if (selectedFile != null) {
+            List<File> selectedFiles = new ArrayList<>(listView.getSelectionModel().getSelectedItems());
+            if (!selectedFiles.isEmpty()) {
                 Dragboard db = listView.startDragAndDrop(TransferMode.COPY);
                 ClipboardContent content = new ClipboardContent();
-                content.putFiles(Collections.singletonList(selectedFile));
+                content.putFiles(selectedFiles);
                 db.setContent(content);
                 event.consume();
             }
         });
 
-        listView.setCellFactory(param -> new DownloadListCell(this::handleDelete));
+        listView.setOnKeyPressed(event -> {
+            if (event.getCode() == KeyCode.DELETE || event.getCode() == KeyCode.BACK_SPACE) {
+                deleteFiles(new ArrayList<>(listView.getSelectionModel().getSelectedItems()));
+                event.consume();
+            } else if (new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN).match(event)) {
+                undoDelete();
+                event.consume();
+            }
+        });
+
+        listView.setCellFactory(param -> new DownloadListCell(thumbnailCache, mediaInfoCache, this::handleDelete));
         return listView;
     }
 
+    private HBox buildUndoBar() {
+        undoLabel = new Label();
+        undoLabel.getStyleClass().add("undo-label");
+        Button undoButton = new Button("元に戻す");
+        undoButton.getStyleClass().add("undo-btn");
+        undoButton.setOnAction(event -> undoDelete());
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        HBox bar = new HBox(10, undoLabel, spacer, undoButton);
+        bar.setAlignment(Pos.CENTER_LEFT);
+        bar.getStyleClass().add("undo-bar");
+        bar.setVisible(false);
+        bar.managedProperty().bind(bar.visibleProperty());
+        undoTimer.setOnFinished(event -> commitPendingTrash());
+        return bar;
+    }
+
+    private HBox buildPausedBar() {
+        pausedLabel = new Label();
+        pausedLabel.getStyleClass().add("paused-label");
+        Button resumeButton = new Button("再開");
+        resumeButton.getStyleClass().add("resume-btn");
+        resumeButton.setOnAction(event -> downloadExecutor.resumePaused());
+        Region spacer = new Region();
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        HBox bar = new HBox(10, pausedLabel, spacer, resumeButton);
+        bar.setAlignment(Pos.CENTER_LEFT);
+        bar.getStyleClass().add("paused-bar");
+        bar.setVisible(false);
+        bar.managedProperty().bind(bar.visibleProperty());
+        return bar;
+    }
+
+    private void updatePausedBar(int count) {
+        pausedLabel.setText("一時停止中のダウンロード: " + count + " 件");
+        pausedBar.setVisible(count > 0);
+    }
+
+    private TextField buildSearchField() {
+        TextField field = new TextField();
+        field.setPromptText("検索...");
+        field.getStyleClass().add("search-input");
+        field.textProperty().addListener((obs, oldValue, newValue) -> applySearch(newValue));
+        return field;
+    }
+
+    /**
+     * 検索はインデックスのスレッドで行い、結果の集合だけをFXスレッドで絞り込み条件に設定する。
+     */
+    private void applySearch(String query) {
+        if (query == null || query.isBlank()) {
+            libraryIndex.cancelSearch();
+            filteredFiles.setPredicate(null);
+            return;
+        }
+        libraryIndex.searchAsync(query, matches -> filteredFiles.setPredicate(matches::contains));
+    }
+
     private void buildProgressArea() {
         progressLabel = new Label("待機中...");
         progressLabel.getStyleClass().add("progress-label");
@@ -207,6 +377,40 @@ public class HelloApplication extends Application {
         }
     }
 
+    /**
+     * URL欄でEnterを押したときの処理。ダウンロード中であれば停止せず、新しいURLを優先度に応じて割り込ませるか待機させる。
+     */
+    private void handleUrlEntered(TextField urlInput) {
+        if (!downloadExecutor.isDownloadActive()) {
+            handleDownload(urlInput);
+            return;
+        }
+        String url = urlInput.getText();
+        if (url != null && !url.isBlank()) {
+            downloadExecutor.submit(url);
+            urlInput.clear();
+        }
+    }
+
+    /**
+     * 起動引数や別の起動から渡されたURLを受け付ける。ダウンロード中であれば優先度に応じて割り込ませるか待機させる。
+     */
+    private void handleForwarded(String input) {
+        primaryStage.toFront();
+        if (input == null || input.isBlank()) {
+            return;
+        }
+        if (downloadExecutor.isDownloadActive()) {
+            downloadExecutor.submit(input);
+            return;
+        }
+        if (!ensureYtDlpConfigured()) {
+            urlInput.setText(input);
+            return;
+        }
+        downloadExecutor.download(input, downloadBtn, downloadIcon, stopIcon, successIcon, this::refreshFileList);
+    }
+
     private void resetDownloadButton() {
         downloadBtn.setDisable(false);
         downloadBtn.getStyleClass().removeAll("busy", "stop", "success", "error");
@@ -215,14 +419,19 @@ public class HelloApplication extends Application {
     }
 
     private void maybeShowInitialSetupUi() {
-        if (!isYtDlpConfigured()) {
-            AppLogger.log("[HelloApplication] yt-dlp not configured. Showing initial setup dialog.");
-            showInitialSetupDialog();
-        }
+        dependencyManager.ytDlpReadiness().whenComplete((ignored, error) -> {
+            if (error != null) {
+                Platform.runLater(() -> {
+                    AppLogger.log("[HelloApplication] yt-dlp not configured. Showing initial setup dialog.");
+                    showInitialSetupDialog();
+                });
+            }
+        });
     }
 
     private boolean ensureYtDlpConfigured() {
-        if (isYtDlpConfigured()) {
+        // 準備中の場合はダウンロード側が完了を待つため、失敗が確定している場合のみブロックする
+        if (!dependencyManager.isYtDlpSetupFailed()) {
             return true;
         }
         AppLogger.log("[HelloApplication] Download blocked until initial setup completes.");
@@ -230,11 +439,6 @@ public class HelloApplication extends Application {
         return false;
     }
 
-    private boolean isYtDlpConfigured() {
-        File ytDlp = new File(DownloadConfig.getYtDlpPath());
-        return ytDlp.exists() && ytDlp.canExecute();
-    }
-
     private void showInitialSetupDialog() {
         if (setupDialog != null && setupDialog.isShowing()) {
             AppLogger.log("[HelloApplication] Initial setup dialog is already open; focusing existing window.");
@@ -326,6 +530,288 @@ public class HelloApplication extends Application {
         dialog.show();
     }
 
+    /**
+     * 段階ごとの所要時間(ジョブの受付からの経過)の百分位を表で表示する。集計は起動をまたいで保持され、「リセット」で消去できる。
+     */
+    private void openLatencyDialog() {
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setTitle("応答時間の統計");
+        dialog.initOwner(primaryStage);
+        ButtonType resetType = new ButtonType("リセット", ButtonBar.ButtonData.LEFT);
+        dialog.getDialogPane().getButtonTypes().addAll(resetType, ButtonType.CLOSE);
+        dialog.getDialogPane().getStyleClass().add("glass-dialog");
+        if (stylesheetUrl != null) {
+            dialog.getDialogPane().getStylesheets().add(stylesheetUrl);
+        }
+
+        GridPane table = new GridPane();
+        table.setHgap(16);
+        table.setVgap(8);
+        Runnable fill = () -> {
+            table.getChildren().clear();
+            String[] headers = {"段階", "件数", "p50", "p95", "p99", "最大"};
+            for (int column = 0; column < headers.length; column++) {
+                Label header = new Label(headers[column]);
+                header.getStyleClass().add("muted-label");
+                table.add(header, column, 0);
+            }
+            int row = 1;
+            for (PhaseLatencyStats.Summary summary : PhaseLatencyStats.shared().summaries()) {
+                table.addRow(row++,
+                        new Label(summary.phase().label()),
+                        new Label(String.valueOf(summary.count())),
+                        new Label(formatLatency(summary.count(), summary.p50())),
+                        new Label(formatLatency(summary.count(), summary.p95())),
+                        new Label(formatLatency(summary.count(), summary.p99())),
+                        new Label(formatLatency(summary.count(), summary.max())));
+            }
+        };
+        fill.run();
+        Label note = new Label("ジョブの受付から各段階に到達するまでの時間。複数URLのジョブは最初の1件の到達時刻で数えます。");
+        note.getStyleClass().add("muted-label");
+        note.setWrapText(true);
+        VBox content = new VBox(12, table, note);
+        content.getStyleClass().add("info-card");
+        dialog.getDialogPane().setContent(content);
+
+        Button resetButton = (Button) dialog.getDialogPane().lookupButton(resetType);
+        resetButton.addEventFilter(javafx.event.ActionEvent.ACTION, event -> {
+            event.consume();
+            PhaseLatencyStats.shared().reset();
+            fill.run();
+        });
+        dialog.showAndWait();
+    }
+
+    /**
+     * 直近30日の集計(ホスト別・日別のスループット、取得方法別の失敗率、所要時間の長いジョブ)と、新しい順の履歴を表示する。
+     * 履歴は索引のブロック単位で、「さらに読み込む」を押すたびに1ブロックずつ読む。読み込みはFXスレッドの外で行う。
+     */
+    private void openHistoryDialog() {
+        Dialog<ButtonType> dialog = new Dialog<>();
+        dialog.setTitle("ダウンロード履歴");
+        dialog.initOwner(primaryStage);
+        dialog.getDialogPane().getButtonTypes().add(ButtonType.CLOSE);
+        dialog.getDialogPane().getStyleClass().add("glass-dialog");
+        dialog.getDialogPane().setPrefWidth(640);
+        if (stylesheetUrl != null) {
+            dialog.getDialogPane().getStylesheets().add(stylesheetUrl);
+        }
+
+        Label summaryLabel = new Label("集計中...");
+        summaryLabel.getStyleClass().add("muted-label");
+        summaryLabel.setWrapText(true);
+        ObservableList<String> rows = FXCollections.observableArrayList();
+        ListView<String> historyList = new ListView<>(rows);
+        historyList.getStyleClass().add("log-list");
+        historyList.setPrefHeight(260);
+        Button moreButton = new Button("さらに読み込む");
+        moreButton.getStyleClass().add("ghost-btn");
+        moreButton.setDisable(true);
+
+        DownloadHistory history = DownloadHistory.shared();
+        int[] nextBlock = {-1};
+        Runnable loadMore = () -> {
+            moreButton.setDisable(true);
+            int block = nextBlock[0];
+            Thread loader = new Thread(() -> {
+                try {
+                    List<DownloadHistory.Entry> entries = new ArrayList<>(history.readBlock(block));
+                    Collections.reverse(entries);
+                    List<String> lines = entries.stream().map(HelloApplication::formatHistoryEntry).toList();
+                    Platform.runLater(() -> {
+                        rows.addAll(lines);
+                        nextBlock[0] = block - 1;
+                        moreButton.setDisable(nextBlock[0] < 0);
+                    });
+                } catch (IOException e) {
+                    AppLogger.logError("[HelloApplication] 履歴の読み込みに失敗しました", e);
+                }
+            }, "history-loader");
+            loader.setDaemon(true);
+            loader.start();
+        };
+        moreButton.setOnAction(event -> loadMore.run());
+
+        Thread summarizer = new Thread(() -> {
+            try {
+                long since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30);
+                String summary = summarizeHistory(history, since);
+                int blocks = history.blockCount();
+                Platform.runLater(() -> {
+                    summaryLabel.setText(summary);
+                    nextBlock[0] = blocks - 1;
+                    if (blocks > 0) {
+                        loadMore.run();
+                    }
+                });
+            } catch (IOException e) {
+                AppLogger.logError("[HelloApplication] 履歴の集計に失敗しました", e);
+                Platform.runLater(() -> summaryLabel.setText("履歴を読み込めませんでした: " + e.getMessage()));
+            }
+        }, "history-summarizer");
+        summarizer.setDaemon(true);
+        summarizer.start();
+
+        Label summaryTitle = new Label("直近30日の集計");
+        summaryTitle.getStyleClass().add("info-title");
+        Label listTitle = new Label("履歴 (新しい順)");
+        listTitle.getStyleClass().add("info-title");
+        VBox content = new VBox(10, summaryTitle, summaryLabel, listTitle, historyList, moreButton);
+        content.getStyleClass().add("info-card");
+        dialog.getDialogPane().setContent(content);
+        dialog.showAndWait();
+    }
+
+    private static String summarizeHistory(DownloadHistory history, long since) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("ホスト別:\n");
+        history.throughputByHost(since).forEach((host, aggregate) -> text.append("  ").append(host).append(": ")
+                .append(formatAggregate(aggregate)).append('\n'));
+        text.append("日別:\n");
+        history.throughputByDay(since).forEach((day, aggregate) -> text.append("  ").append(day).append(": ")
+                .append(formatAggregate(aggregate)).append('\n'));
+        text.append("取得方法別:\n");
+        history.failureRateByStrategy(since).forEach((strategy, aggregate) -> text.append("  ").append(strategy).append(": ")
+                .append(formatAggregate(aggregate)).append('\n'));
+        text.append("所要時間の長いジョブ:\n");
+        for (DownloadHistory.Entry entry : history.slowest(5, since)) {
+            text.append("  ").append(formatHistoryEntry(entry)).append('\n');
+        }
+        return text.toString().strip();
+    }
+
+    private static String formatAggregate(DownloadHistory.Aggregate aggregate) {
+        return String.format("%d 件 / 失敗率 %.0f%% / %s/s", aggregate.jobs(), aggregate.failureRate() * 100,
+                DiskSpaceGuard.formatBytes((long) aggregate.bytesPerSecond()));
+    }
+
+    private static String formatHistoryEntry(DownloadHistory.Entry entry) {
+        String finished = Instant.ofEpochMilli(entry.finishedAtMillis()).atZone(ZoneId.systemDefault())
+                .toLocalDateTime().truncatedTo(ChronoUnit.SECONDS).toString().replace('T', ' ');
+        String urls = entry.urlCount() > 1 ? " 他" + (entry.urlCount() - 1) + "件" : "";
+        return finished + "  " + entry.outcome().label() + "  " + entry.strategy() + "  "
+                + String.format("%.1f秒", entry.durationMillis() / 1000.0) + "  " + DiskSpaceGuard.formatBytes(entry.bytes())
+                + (entry.retries() > 0 ? "  再試行" + entry.retries() + "回" : "")
+                + (entry.exitCode() != 0 ? "  exit=" + entry.exitCode() : "")
+                + "  " + entry.url() + urls;
+    }
+
+    /**
+     * 保存先の直下にあるファイルを、設定のフォルダ分けの場所へ移動する。
+     */
+    private void migrateLibrary() {
+        OutputLayout layout = settings.getOutputLayout();
+        if (layout == OutputLayout.FLAT || layout == OutputLayout.UPLOADER) {
+            showInfo("フォルダ分け", layout == OutputLayout.FLAT
+                    ? "設定の「フォルダ分け」で振り分け方を選んでから実行してください。"
+                    : "既存のファイルからは投稿者が分からないため、「投稿者ごと」には移行できません。新しいダウンロードから振り分けます。");
+            return;
+        }
+        if (downloadExecutor.isDownloadActive()) {
+            showInfo("フォルダ分け", "ダウンロード中は移行できません。終了してから実行してください。");
+            return;
+        }
+        Alert confirm = new Alert(Alert.AlertType.CONFIRMATION);
+        confirm.initOwner(primaryStage);
+        confirm.setTitle("フォルダ分け");
+        confirm.setHeaderText("保存先の直下のファイルを「" + layout.label() + "」の構成へ移動します。");
+        confirm.setContentText(layout == OutputLayout.MONTH ? "年月はファイルの更新日時から決めます。" : "ファイル名から振り分け先を決めます。");
+        if (stylesheetUrl != null) {
+            confirm.getDialogPane().getStylesheets().add(stylesheetUrl);
+        }
+        confirm.getDialogPane().getStyleClass().add("glass-dialog");
+        if (confirm.showAndWait().filter(ButtonType.OK::equals).isEmpty()) {
+            return;
+        }
+        Path root = Paths.get(DownloadConfig.getDownloadDir());
+        Thread migrator = new Thread(() -> {
+            String summary;
+            try {
+                OutputLayout.MigrationResult result = layout.migrate(root);
+                summary = "移動 " + result.moved() + " 件 / 同名のファイルがあり移動しなかったもの " + result.conflicts()
+                        + " 件 / 失敗 " + result.failed() + " 件";
+            } catch (IOException e) {
+                AppLogger.logError("[HelloApplication] フォルダ分けに失敗しました", e);
+                summary = "保存先を読み取れませんでした: " + e.getMessage();
+            }
+            String body = summary;
+            Platform.runLater(() -> {
+                refreshFileList();
+                showInfo("フォルダ分け", body);
+            });
+        }, "library-migrator");
+        migrator.setDaemon(true);
+        migrator.start();
+    }
+
+    private void showInfo(String title, String message) {
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.initOwner(primaryStage);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        alert.setContentText(message);
+        if (stylesheetUrl != null) {
+            alert.getDialogPane().getStylesheets().add(stylesheetUrl);
+        }
+        alert.getDialogPane().getStyleClass().add("glass-dialog");
+        alert.showAndWait();
+    }
+
+    /**
+     * 一覧のMP4をすべてボックス構造から検証し、問題のあるファイルと moov が末尾にあるファイルの件数を表示する。
+     */
+    private void verifyLibrary() {
+        List<File> files = List.copyOf(libraryFiles);
+        Thread verifier = new Thread(() -> {
+            long start = System.nanoTime();
+            List<MediaInfoCache.Result> results = mediaInfoCache.verifyAll(files);
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            StringBuilder details = new StringBuilder();
+            int invalid = 0;
+            int notFaststart = 0;
+            for (MediaInfoCache.Result result : results) {
+                if (result.info() == null) {
+                    invalid++;
+                    details.append(result.file().getName()).append(": ").append(result.error()).append('\n');
+                } else if (!result.info().valid()) {
+                    invalid++;
+                    details.append(result.file().getName()).append(": ")
+                            .append(String.join(", ", result.info().problems())).append('\n');
+                } else if (!result.info().faststart()) {
+                    notFaststart++;
+                }
+            }
+            String summary = results.size() + " 件を " + elapsedMillis + " ms で検証しました。問題あり " + invalid
+                    + " 件 / moov が末尾 " + notFaststart + " 件";
+            AppLogger.log("[HelloApplication] " + summary);
+            String body = details.toString().strip();
+            boolean problems = invalid > 0;
+            Platform.runLater(() -> {
+                Alert alert = new Alert(problems ? Alert.AlertType.WARNING : Alert.AlertType.INFORMATION);
+                alert.initOwner(primaryStage);
+                alert.setTitle("ライブラリの検証");
+                alert.setHeaderText(summary);
+                alert.setContentText(body.isEmpty() ? "再生に必要な構造はすべてそろっています。" : body);
+                if (stylesheetUrl != null) {
+                    alert.getDialogPane().getStylesheets().add(stylesheetUrl);
+                }
+                alert.getDialogPane().getStyleClass().add("glass-dialog");
+                alert.showAndWait();
+                fileListView.refresh();
+            });
+        }, "library-verifier");
+        verifier.setDaemon(true);
+        verifier.start();
+    }
+
+    private static String formatLatency(long count, long millis) {
+        if (count == 0) {
+            return "-";
+        }
+        return millis >= 1000 ? String.format("%.1f 秒", millis / 1000.0) : millis + " ms";
+    }
+
     private void openSettingsDialog() {
         Dialog<ButtonType> dialog = new Dialog<>();
         dialog.setTitle("設定");
@@ -344,6 +830,58 @@ public class HelloApplication extends Application {
         heightField.getStyleClass().add("settings-field");
         outputField.getStyleClass().add("settings-field");
         outputField.setPrefColumnCount(22);
+        long currentLimit = settings.getRateLimitBytesPerSecond();
+        TextField rateLimitField = new TextField(currentLimit > 0 ? String.valueOf(currentLimit / 1_000_000.0) : "");
+        rateLimitField.setPromptText("無制限");
+        rateLimitField.getStyleClass().add("settings-field");
+        ComboBox<Integer> maxHeightBox = new ComboBox<>();
+        maxHeightBox.getItems().addAll(0, 2160, 1440, 1080, 720, 480, 360);
+        maxHeightBox.setConverter(new StringConverter<>() {
+            @Override
+            public String toString(Integer height) {
+                return height == null || height <= 0 ? "無制限" : height + "p";
+            }
+
+            @Override
+            public Integer fromString(String text) {
+                return null;
+            }
+        });
+        maxHeightBox.setValue(maxHeightBox.getItems().contains(settings.getMaxVideoHeight()) ? settings.getMaxVideoHeight() : 0);
+        TextField maxBitrateField = new TextField(settings.getMaxBitrateKbps() > 0
+                ? String.valueOf(settings.getMaxBitrateKbps() / 1000.0) : "");
+        maxBitrateField.setPromptText("無制限");
+        maxBitrateField.getStyleClass().add("settings-field");
+        TextField maxFileSizeField = new TextField(settings.getMaxFileSizeBytes() > 0
+                ? String.valueOf(settings.getMaxFileSizeBytes() / 1_000_000) : "");
+        maxFileSizeField.setPromptText("無制限");
+        maxFileSizeField.getStyleClass().add("settings-field");
+        TextField targetTimeField = new TextField(settings.getTargetSecondsPerVideo() > 0
+                ? String.valueOf(settings.getTargetSecondsPerVideo() / 60.0) : "");
+        targetTimeField.setPromptText("指定なし");
+        targetTimeField.getStyleClass().add("settings-field");
+        ComboBox<OutputLayout> layoutBox = new ComboBox<>();
+        layoutBox.getItems().addAll(OutputLayout.values());
+        layoutBox.setConverter(new StringConverter<>() {
+            @Override
+            public String toString(OutputLayout layout) {
+                return layout == null ? "" : layout.label();
+            }
+
+            @Override
+            public OutputLayout fromString(String text) {
+                return null;
+            }
+        });
+        layoutBox.setValue(settings.getOutputLayout());
+        TextField stagingField = new TextField(settings.getStagingDirectory());
+        stagingField.setPromptText("使用しない (保存先で直接処理)");
+        stagingField.getStyleClass().add("settings-field");
+        stagingField.setPrefColumnCount(22);
+        CheckBox skipArchivedBox = new CheckBox("ダウンロード済みの動画をスキップ");
+        skipArchivedBox.setSelected(settings.isSkipArchived());
+        CheckBox verboseLogBox = new CheckBox("yt-dlp/ffmpegの出力をすべてログに記録");
+        verboseLogBox.setSelected(settings.isVerboseLogging());
 
         Button browseBtn = new Button("フォルダを選択");
         browseBtn.getStyleClass().add("ghost-btn");
@@ -359,6 +897,20 @@ public class HelloApplication extends Application {
             }
         });
 
+        Button stagingBrowseBtn = new Button("フォルダを選択");
+        stagingBrowseBtn.getStyleClass().add("ghost-btn");
+        stagingBrowseBtn.setOnAction(event -> {
+            DirectoryChooser chooser = new DirectoryChooser();
+            File current = new File(stagingField.getText());
+            if (current.exists()) {
+                chooser.setInitialDirectory(current);
+            }
+            File selected = chooser.showDialog(primaryStage);
+            if (selected != null) {
+                stagingField.setText(selected.getAbsolutePath());
+            }
+        });
+
         Label errorLabel = new Label();
         errorLabel.getStyleClass().add("form-error");
 
@@ -385,20 +937,46 @@ public class HelloApplication extends Application {
         Label widthLabel = new Label("画面幅");
         Label heightLabel = new Label("画面高さ");
         Label folderLabel = new Label("出力先フォルダ");
+        Label rateLimitLabel = new Label("帯域上限 (MB/s)");
+        Label maxHeightLabel = new Label("解像度の上限");
+        Label maxBitrateLabel = new Label("ビットレート上限 (Mbps)");
+        Label maxFileSizeLabel = new Label("ファイルサイズ上限 (MB)");
+        Label targetTimeLabel = new Label("1本の目標時間 (分)");
+        Label layoutLabel = new Label("フォルダ分け");
+        Label stagingLabel = new Label("作業用フォルダ (ローカル)");
         widthLabel.getStyleClass().add("muted-label");
         heightLabel.getStyleClass().add("muted-label");
         folderLabel.getStyleClass().add("muted-label");
+        rateLimitLabel.getStyleClass().add("muted-label");
+        maxHeightLabel.getStyleClass().add("muted-label");
+        maxBitrateLabel.getStyleClass().add("muted-label");
+        maxFileSizeLabel.getStyleClass().add("muted-label");
+        targetTimeLabel.getStyleClass().add("muted-label");
+        layoutLabel.getStyleClass().add("muted-label");
+        stagingLabel.getStyleClass().add("muted-label");
         grid.addRow(0, widthLabel, widthField);
         grid.addRow(1, heightLabel, heightField);
         grid.add(folderLabel, 0, 2);
         HBox outputRow = new HBox(8, outputField, browseBtn);
         outputRow.setAlignment(Pos.CENTER_LEFT);
         grid.add(outputRow, 1, 2);
+        grid.addRow(3, rateLimitLabel, rateLimitField);
+        grid.addRow(4, maxHeightLabel, maxHeightBox);
+        grid.addRow(5, maxBitrateLabel, maxBitrateField);
+        grid.addRow(6, maxFileSizeLabel, maxFileSizeField);
+        grid.addRow(7, targetTimeLabel, targetTimeField);
+        grid.addRow(8, layoutLabel, layoutBox);
+        grid.add(stagingLabel, 0, 9);
+        HBox stagingRow = new HBox(8, stagingField, stagingBrowseBtn);
+        stagingRow.setAlignment(Pos.CENTER_LEFT);
+        grid.add(stagingRow, 1, 9);
+        grid.add(skipArchivedBox, 1, 10);
+        grid.add(verboseLogBox, 1, 11);
         grid.getStyleClass().add("settings-grid");
 
         Label heading = new Label("アプリ設定");
         heading.getStyleClass().add("dialog-heading");
-        Label subtitle = new Label("ウィンドウサイズ、保存先、yt-dlpの状態をまとめて管理します。");
+        Label subtitle = new Label("ウィンドウサイズ、保存先、帯域上限、画質の上限、yt-dlpの状態をまとめて管理します。目標時間を指定すると、過去の実測帯域から1本がその時間内に終わる画質を選びます。");
         subtitle.setWrapText(true);
         subtitle.getStyleClass().add("dialog-subtitle");
 
@@ -429,7 +1007,50 @@ public class HelloApplication extends Application {
                 return;
             }
 
+            String rateInput = rateLimitField.getText() == null ? "" : rateLimitField.getText().trim();
+            Double rateLimit = rateInput.isEmpty() ? Double.valueOf(0) : parseDimension(rateInput);
+            if (rateLimit == null || rateLimit < 0) {
+                errorLabel.setText("帯域上限は0以上の数値(MB/s)で入力してください。空欄は無制限です。");
+                event.consume();
+                return;
+            }
+
+            String stagingInput = stagingField.getText() == null ? "" : stagingField.getText().trim();
+            if (!stagingInput.isEmpty()) {
+                File staging = new File(stagingInput);
+                if (!staging.exists() && !staging.mkdirs()) {
+                    errorLabel.setText("作業用フォルダを作成できませんでした: " + staging.getAbsolutePath());
+                    event.consume();
+                    return;
+                }
+                // 出力先の中に置くと、一覧の走査で作業中のファイルまで拾ってしまう
+                if (staging.getAbsoluteFile().toPath().normalize().startsWith(dir.getAbsoluteFile().toPath().normalize())) {
+                    errorLabel.setText("作業用フォルダには出力先フォルダの外の場所を指定してください。");
+                    event.consume();
+                    return;
+                }
+            }
+
+            Double maxBitrate = parseOptional(maxBitrateField.getText());
+            Double maxFileSize = parseOptional(maxFileSizeField.getText());
+            Double targetMinutes = parseOptional(targetTimeField.getText());
+            if (maxBitrate == null || maxFileSize == null || targetMinutes == null
+                    || maxBitrate < 0 || maxFileSize < 0 || targetMinutes < 0) {
+                errorLabel.setText("ビットレート・ファイルサイズ・目標時間は0以上の数値で入力してください。空欄は指定なしです。");
+                event.consume();
+                return;
+            }
+
             errorLabel.setText("");
+            settings.setRateLimitBytesPerSecond(Math.round(rateLimit * 1_000_000));
+            settings.setMaxVideoHeight(maxHeightBox.getValue() == null ? 0 : maxHeightBox.getValue());
+            settings.setMaxBitrateKbps(Math.round(maxBitrate * 1000));
+            settings.setMaxFileSizeBytes(Math.round(maxFileSize * 1_000_000));
+            settings.setTargetSecondsPerVideo(Math.round(targetMinutes * 60));
+            settings.setOutputLayout(layoutBox.getValue());
+            settings.setStagingDirectory(stagingInput);
+            settings.setSkipArchived(skipArchivedBox.isSelected());
+            settings.setVerboseLogging(verboseLogBox.isSelected());
             settings.setWindowWidth(width);
             settings.setWindowHeight(height);
             settings.setDownloadDirectory(dir.getAbsolutePath());
@@ -444,6 +1065,13 @@ public class HelloApplication extends Application {
         dialog.showAndWait();
     }
 
+    /**
+     * 空欄を0として数値を読む。数値でなければnull。
+     */
+    private Double parseOptional(String raw) {
+        return raw == null || raw.isBlank() ? Double.valueOf(0) : parseDimension(raw);
+    }
+
     private Double parseDimension(String raw) {
         if (raw == null || raw.isBlank()) {
             return null;
@@ -455,14 +1083,144 @@ public class HelloApplication extends Application {
         }
     }
 
+    /**
+     * 行の削除ボタン。押した行が選択中なら、選択中のファイルをまとめて削除する。
+     */
     private void handleDelete(File target) {
-        if (downloadsManager.deleteFile(target)) {
-            refreshFileList();
+        List<File> selected = new ArrayList<>(fileListView.getSelectionModel().getSelectedItems());
+        deleteFiles(selected.contains(target) ? selected : List.of(target));
+    }
+
+    /**
+     * 一覧からは即座に1回の変更で取り除き、ファイルの移動はバックグラウンドで行う。
+     * 移動に失敗したファイルは一覧へ戻す。取り消し期間中は退避フォルダに残しておく。
+     */
+    private void deleteFiles(List<File> targets) {
+        if (targets.isEmpty()) {
+            return;
+        }
+        commitPendingTrash();
+        fileListView.getSelectionModel().clearSelection();
+        Set<File> removed = new HashSet<>(targets);
+        libraryEdits++;
+        libraryFiles.removeAll(removed);
+        libraryIndex.removeAsync(removed);
+        downloadsManager.moveToTrash(targets)
+                .thenAccept(batch -> Platform.runLater(() -> handleTrashed(batch)));
+    }
+
+    private void handleTrashed(DownloadsManager.TrashBatch batch) {
+        if (!batch.failed().isEmpty()) {
+            // 移動していないため、読み込み時の更新日時がそのまま使える
+            Map<File, Long> failed = new HashMap<>();
+            for (File file : batch.failed()) {
+                failed.put(file, libraryModified.getOrDefault(file, 0L));
+            }
+            insertIntoList(failed);
+        }
+        if (batch.moved().isEmpty()) {
+            downloadsManager.purge(batch);
+            return;
+        }
+        commitPendingTrash();
+        pendingTrash = batch;
+        undoLabel.setText(batch.moved().size() + " 件を削除しました");
+        undoBar.setVisible(true);
+        undoTimer.playFromStart();
+    }
+
+    private void undoDelete() {
+        DownloadsManager.TrashBatch batch = pendingTrash;
+        if (batch == null) {
+            return;
+        }
+        pendingTrash = null;
+        undoTimer.stop();
+        undoBar.setVisible(false);
+        downloadsManager.restore(batch)
+                .thenAccept(restored -> Platform.runLater(() -> insertIntoList(restored)));
+    }
+
+    private void commitPendingTrash() {
+        if (pendingTrash == null) {
+            return;
+        }
+        downloadsManager.purge(pendingTrash);
+        pendingTrash = null;
+        undoTimer.stop();
+        undoBar.setVisible(false);
+    }
+
+    /**
+     * 全体を読み直さず、並び順を保つ位置へ差し込む。更新日時は呼び出し元がバックグラウンドで読んだ値を使い、
+     * 既存の一覧と1回の走査で併合して1回の変更として反映する。
+     */
+    private void insertIntoList(Map<File, Long> files) {
+        if (files.isEmpty()) {
+            return;
         }
+        Set<File> pending = new HashSet<>(files.keySet());
+        for (File file : libraryFiles) {
+            pending.remove(file);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        libraryModified.putAll(files);
+        Comparator<File> order = DownloadsManager.newestFirst(libraryModified);
+        List<File> incoming = new ArrayList<>(pending);
+        incoming.sort(order);
+        List<File> merged = new ArrayList<>(libraryFiles.size() + incoming.size());
+        int next = 0;
+        for (File file : libraryFiles) {
+            while (next < incoming.size() && order.compare(incoming.get(next), file) <= 0) {
+                merged.add(incoming.get(next++));
+            }
+            merged.add(file);
+        }
+        merged.addAll(incoming.subList(next, incoming.size()));
+        libraryEdits++;
+        libraryFiles.setAll(merged);
+        libraryIndex.addAsync(incoming);
+    }
+
+    /**
+     * ステージングから移ったファイルだけを、更新日時をバックグラウンドで読んでから並び順の位置へ差し込む。保存先全体は読み直さない。
+     */
+    private void addMovedFiles() {
+        if (movedFiles.isEmpty()) {
+            return;
+        }
+        List<File> files = List.copyOf(movedFiles);
+        movedFiles.clear();
+        downloadsManager.readAdded(files)
+                .thenAccept(added -> Platform.runLater(() -> insertIntoList(added)));
     }
 
+    /**
+     * 保存先をバックグラウンドで走査し、結果を1回の変更として一覧へ反映する。
+     * 後から要求した読み直しがあれば古い結果は捨て、走査中に一覧を削除・追加で変更していれば読み直す。
+     */
     private void refreshFileList() {
-        fileListView.getItems().setAll(downloadsManager.loadRecentVideos());
+        long sequence = ++libraryLoadSequence;
+        long edits = libraryEdits;
+        downloadsManager.loadLibrary()
+                .thenAccept(library -> Platform.runLater(() -> applyLibrary(library, sequence, edits)));
+    }
+
+    private void applyLibrary(DownloadsManager.Library library, long sequence, long edits) {
+        if (sequence != libraryLoadSequence) {
+            return;
+        }
+        if (edits != libraryEdits) {
+            refreshFileList();
+            return;
+        }
+        libraryModified.clear();
+        libraryModified.putAll(library.modified());
+        libraryIndex.syncAsync(library.files());
+        libraryFiles.setAll(library.files());
+        applySearch(searchInput.getText());
     }
 
     private void handleProgressUpdate(DownloadExecutor.ProgressUpdate update) {
@@ -470,6 +1228,7 @@ public class HelloApplication extends Application {
             return;
         }
         boolean active = update.visible();
+        pauseBtn.setVisible(downloadExecutor.isDownloadActive());
         if (active) {
             progressLabel.setText(update.message());
             progressBox.getStyleClass().remove("idle");
@@ -588,16 +1347,63 @@ public class HelloApplication extends Application {
 
     private void openLogWindow() {
         if (logStage == null) {
-            logListView = new ListView<>();
+            LogStore store = AppLogger.getStore();
+            logLines = new LogLines(store);
+            logListView = new ListView<>(logLines);
             logListView.getStyleClass().add("log-list");
-            logListView.setItems(AppLogger.getLogs());
+            logListView.setFixedCellSize(22);
             ScrollUtil.disableHorizontalScroll(logListView);
 
-            AppLogger.getLogs().addListener((ListChangeListener<String>) change -> {
-                if (logListView != null && !AppLogger.getLogs().isEmpty()) {
-                    logListView.scrollTo(AppLogger.getLogs().size() - 1);
+            TextField patternField = new TextField();
+            patternField.setPromptText("正規表現で検索...");
+            patternField.getStyleClass().add("search-input");
+            ComboBox<String> sourceBox = new ComboBox<>();
+            sourceBox.getItems().add(ALL_SOURCES);
+            sourceBox.getSelectionModel().selectFirst();
+            sourceBox.getStyleClass().add("log-source-box");
+            CheckBox followTail = new CheckBox("末尾を追従");
+            followTail.setSelected(true);
+            followTail.getStyleClass().add("log-follow");
+
+            Runnable applyFilter = () -> {
+                String raw = patternField.getText();
+                Pattern pattern = null;
+                if (raw != null && !raw.isEmpty()) {
+                    try {
+                        pattern = Pattern.compile(raw, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                        patternField.getStyleClass().remove("invalid");
+                    } catch (PatternSyntaxException e) {
+                        if (!patternField.getStyleClass().contains("invalid")) {
+                            patternField.getStyleClass().add("invalid");
+                        }
+                        return;
+                    }
+                } else {
+                    patternField.getStyleClass().remove("invalid");
                 }
-            });
+                String source = sourceBox.getValue();
+                int sourceId = source == null || ALL_SOURCES.equals(source) ? -1 : store.sourceIdOf(source);
+                logLines.setFilter(pattern, sourceId);
+            };
+            patternField.textProperty().addListener((obs, oldValue, newValue) -> applyFilter.run());
+            sourceBox.valueProperty().addListener((obs, oldValue, newValue) -> applyFilter.run());
+
+            // 追記のたびではなく一定間隔でまとめて反映し、追従中のみ1回だけ末尾へスクロールする
+            logTicker = new Timeline(new KeyFrame(Duration.millis(250), event -> {
+                int added = logLines.refresh();
+                if (added > 0 && followTail.isSelected()) {
+                    logListView.scrollTo(logLines.size() - 1);
+                }
+                List<String> sources = store.sources();
+                if (sources.size() > sourceBox.getItems().size()) {
+                    sourceBox.getItems().addAll(sources.subList(sourceBox.getItems().size(), sources.size()));
+                }
+            }));
+            logTicker.setCycleCount(Animation.INDEFINITE);
+
+            HBox filterRow = new HBox(10, patternField, sourceBox, followTail);
+            filterRow.setAlignment(Pos.CENTER_LEFT);
+            HBox.setHgrow(patternField, Priority.ALWAYS);
 
             Label header = new Label("ログ");
             header.getStyleClass().add("log-header");
@@ -609,12 +1415,15 @@ public class HelloApplication extends Application {
 
             Button clearBtn = new Button("表示をクリア");
             clearBtn.getStyleClass().add("log-clear-btn");
-            clearBtn.setOnAction(event -> AppLogger.clear());
+            clearBtn.setOnAction(event -> {
+                AppLogger.clear();
+                logLines.refresh();
+            });
 
             HBox actionRow = new HBox(10, subtitle, spacer, clearBtn);
             actionRow.setAlignment(Pos.CENTER_LEFT);
 
-            VBox root = new VBox(10, header, logListView, actionRow);
+            VBox root = new VBox(10, header, filterRow, logListView, actionRow);
             root.getStyleClass().add("log-root");
             root.setPadding(new Insets(12));
             VBox.setVgrow(logListView, Priority.ALWAYS);
@@ -628,6 +1437,12 @@ public class HelloApplication extends Application {
             logStage.setTitle("ログ");
             logStage.initOwner(primaryStage);
             logStage.setScene(logScene);
+            logStage.setOnShown(event -> {
+                logLines.refresh();
+                logListView.scrollTo(logLines.size() - 1);
+                logTicker.play();
+            });
+            logStage.setOnHidden(event -> logTicker.stop());
         }
         logStage.show();
         logStage.toFront();
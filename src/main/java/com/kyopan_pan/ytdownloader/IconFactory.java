@@ -22,6 +22,15 @@ public final class IconFactory {
         return icon;
     }
 
+    public static SVGPath createPauseIcon() {
+        SVGPath icon = new SVGPath();
+        icon.setContent("M6 5h4v14H6zm8 0h4v14h-4z");
+        icon.getStyleClass().add("pause-icon");
+        icon.setScaleX(1.05);
+        icon.setScaleY(1.05);
+        return icon;
+    }
+
     public static SVGPath createSuccessIcon() {
         SVGPath icon = new SVGPath();
         icon.setContent("M9 16.2l-3.5-3.5L4 14.2 9 19l11-11-1.5-1.5L9 16.2z");
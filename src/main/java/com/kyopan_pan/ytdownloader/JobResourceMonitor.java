@@ -0,0 +1,208 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 1つのダウンロードジョブが起動した子プロセス(子孫を含む)の資源使用量を定期的に採取して集計する。
+ * CPU時間は {@link ProcessHandle.Info} から、常駐メモリと書き込みバイト数は `/proc` から読む。
+ * `/proc` がない環境(macOS)ではCPU時間のみを集計する。
+ * 終了したプロセスは直前の採取値で計上するため、採取間隔(1秒)分の誤差がある。
+ */
+final class JobResourceMonitor {
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 1000;
+    private static final Path PROC = Paths.get("/proc");
+    private static final boolean PROC_AVAILABLE = Files.isDirectory(PROC.resolve("self"));
+    private static final Path METRICS_FILE = Paths.get(DownloadConfig.APP_DATA_DIR, "job-metrics.csv");
+    private static final String METRICS_HEADER = "finishedAt,jobId,kind,outcome,wallSeconds,cpuSeconds,averageCores,peakRssBytes,bytesWritten,processes";
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "job-resource-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String jobId;
+    private final Supplier<List<Process>> roots;
+    private final long startNanos = System.nanoTime();
+    private final Map<Long, Long> cpuNanosByPid = new HashMap<>();
+    private final Map<Long, Long> writtenBytesByPid = new HashMap<>();
+    private final ScheduledFuture<?> task;
+    private long peakRssBytes;
+    private volatile String kind = "unknown";
+
+    JobResourceMonitor(String jobId, Supplier<List<Process>> roots) {
+        this.jobId = jobId;
+        this.roots = roots;
+        this.task = SAMPLER.scheduleAtFixedRate(this::sample, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 集計結果を分類するためのジョブの種類(single / batch / animethemes)。
+     */
+    void setKind(String kind) {
+        this.kind = kind;
+    }
+
+    /**
+     * @param wallSeconds 監視開始からの経過秒数
+     * @param processes   これまでに観測したプロセスの数
+     */
+    record Usage(double wallSeconds, double cpuSeconds, long peakRssBytes, long bytesWritten, int processes, boolean procAvailable) {
+
+        double averageCores() {
+            return wallSeconds > 0 ? cpuSeconds / wallSeconds : 0;
+        }
+
+        /**
+         * 進捗表示向けの短い表記。
+         */
+        String brief() {
+            String cpu = String.format("CPU %.1f秒", cpuSeconds);
+            return procAvailable ? cpu + " / " + DiskSpaceGuard.formatBytes(peakRssBytes) : cpu;
+        }
+
+        String describe() {
+            StringBuilder builder = new StringBuilder(String.format("CPU %.1f秒 (平均 %.2f コア)", cpuSeconds, averageCores()));
+            if (procAvailable) {
+                builder.append(" / 最大メモリ ").append(DiskSpaceGuard.formatBytes(peakRssBytes))
+                        .append(" / 書き込み ").append(DiskSpaceGuard.formatBytes(bytesWritten));
+            }
+            return builder.append(" / プロセス ").append(processes).append(" 件").toString();
+        }
+    }
+
+    synchronized Usage usage() {
+        long cpuNanos = cpuNanosByPid.values().stream().mapToLong(Long::longValue).sum();
+        long written = writtenBytesByPid.values().stream().mapToLong(Long::longValue).sum();
+        double wall = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        return new Usage(wall, cpuNanos / 1_000_000_000.0, peakRssBytes, written, cpuNanosByPid.size(), PROC_AVAILABLE);
+    }
+
+    /**
+     * 採取を止め、最終値をログとメトリクスファイル(`job-metrics.csv`)へ記録する。記録は採取用スレッドで行う。
+     */
+    void finish(String outcome) {
+        task.cancel(false);
+        SAMPLER.execute(() -> {
+            sample();
+            Usage usage = usage();
+            AppLogger.event(AppLogger.Level.INFO, "JobResourceMonitor", jobId, "資源使用量 ({}): {}", outcome, usage.describe());
+            appendMetrics(outcome, usage);
+        });
+    }
+
+    private synchronized void sample() {
+        long rss = 0;
+        for (ProcessHandle handle : processTree()) {
+            long pid = handle.pid();
+            handle.info().totalCpuDuration().ifPresent(cpu -> cpuNanosByPid.merge(pid, cpu.toNanos(), Math::max));
+            cpuNanosByPid.putIfAbsent(pid, 0L);
+            if (PROC_AVAILABLE) {
+                rss += readRssBytes(pid);
+                long written = readWrittenBytes(pid);
+                if (written >= 0) {
+                    writtenBytesByPid.merge(pid, written, Math::max);
+                }
+            }
+        }
+        peakRssBytes = Math.max(peakRssBytes, rss);
+    }
+
+    private Set<ProcessHandle> processTree() {
+        Set<ProcessHandle> tree = new LinkedHashSet<>();
+        for (Process process : roots.get()) {
+            ProcessHandle handle = process.toHandle();
+            if (handle.isAlive()) {
+                tree.add(handle);
+                handle.descendants().forEach(tree::add);
+            }
+        }
+        return tree;
+    }
+
+    private static long readRssBytes(long pid) {
+        // VmRSS:     123456 kB
+        String value = readField(PROC.resolve(String.valueOf(pid)).resolve("status"), "VmRSS:");
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.replace("kB", "").trim()) * 1024;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long readWrittenBytes(long pid) {
+        String value = readField(PROC.resolve(String.valueOf(pid)).resolve("io"), "write_bytes:");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readField(Path file, String name) {
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+                if (line.startsWith(name)) {
+                    return line.substring(name.length());
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            // プロセスが既に終了している、または読み取り権限がない
+        }
+        return null;
+    }
+
+    private void appendMetrics(String outcome, Usage usage) {
+        String row = String.join(",",
+                LocalDateTime.now().format(TIMESTAMP),
+                jobId,
+                kind,
+                outcome,
+                String.format(Locale.ROOT, "%.1f", usage.wallSeconds()),
+                String.format(Locale.ROOT, "%.2f", usage.cpuSeconds()),
+                String.format(Locale.ROOT, "%.2f", usage.averageCores()),
+                String.valueOf(usage.peakRssBytes()),
+                String.valueOf(usage.bytesWritten()),
+                String.valueOf(usage.processes()));
+        try {
+            Files.createDirectories(METRICS_FILE.getParent());
+            boolean fresh = !Files.exists(METRICS_FILE);
+            try (Writer writer = Files.newBufferedWriter(METRICS_FILE, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                if (fresh) {
+                    writer.write(METRICS_HEADER);
+                    writer.write('\n');
+                }
+                writer.write(row);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            AppLogger.logError("[JobResourceMonitor] メトリクスの書き込みに失敗しました: " + METRICS_FILE, e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+/**
+ * ミリ秒単位の待ち時間を記録するHDR形式のヒストグラム。128ミリ秒未満は1ミリ秒刻み、それ以上は2倍ごとの区間を
+ * 64等分した区間に数え、値の大きさによらず相対誤差を約1.6%以内に保つ。件数のみを持つため、記録数が増えても大きさは変わらない。
+ * スレッドセーフではない。呼び出し元で同期する。
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int LINEAR_LIMIT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = LINEAR_LIMIT >> 1;
+    // 記録できる最大値(約24日)。超えた値はこの値として数える
+    private static final long MAX_VALUE = (1L << 31) - 1;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+
+    void record(long millis) {
+        long value = Math.min(MAX_VALUE, Math.max(0, millis));
+        counts[indexOf(value)]++;
+        total++;
+        max = Math.max(max, value);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    /**
+     * 指定した百分位の値を返す。該当する区間の上端を返すため、実際の値より最大で区間の幅だけ大きい。記録がなければ0。
+     *
+     * @param percentile 0〜100
+     */
+    long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValueOf(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * 件数のある区間のみを「区間番号:件数」のカンマ区切りで表す。{@link #parse(String)} で復元できる。
+     */
+    String encode() {
+        StringJoiner joiner = new StringJoiner(",");
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                joiner.add(i + ":" + counts[i]);
+            }
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * {@link #encode()} の結果から復元する。読めない項目は無視する。
+     */
+    static LatencyHistogram parse(String encoded) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        if (encoded == null || encoded.isBlank()) {
+            return histogram;
+        }
+        for (String entry : encoded.split(",")) {
+            int colon = entry.indexOf(':');
+            try {
+                int index = Integer.parseInt(entry.substring(0, colon).trim());
+                long count = Long.parseLong(entry.substring(colon + 1).trim());
+                if (index < 0 || index >= BUCKETS || count <= 0) {
+                    continue;
+                }
+                histogram.counts[index] += count;
+                histogram.total += count;
+                histogram.max = Math.max(histogram.max, highestValueOf(index));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ignored) {
+                // 壊れた項目は読み飛ばす
+            }
+        }
+        return histogram;
+    }
+
+    void clear() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        max = 0;
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        // value >> shift が [HALF, LINEAR_LIMIT) に収まるよう右へずらす
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return LINEAR_LIMIT + (shift - 1) * HALF + (int) ((value >> shift) - HALF);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int offset = index - LINEAR_LIMIT;
+        int shift = offset / HALF + 1;
+        long sub = offset % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
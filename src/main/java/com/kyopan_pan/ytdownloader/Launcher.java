@@ -1,9 +1,51 @@
 package com.kyopan_pan.ytdownloader;
 
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.control.Alert;
+import javafx.scene.control.TextArea;
+
+import java.io.IOException;
 
 public class Launcher {
     public static void main(String[] args) {
+        // 既に起動していれば、JavaFXを立ち上げずにURLを渡して終了する
+        try {
+            if (SingleInstance.forwardToRunning(args)) {
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Another instance holds the lock but did not accept the URLs: " + e.getMessage());
+            showForwardFailure(args, e);
+            return;
+        }
         Application.launch(HelloApplication.class, args);
     }
+
+    /**
+     * 起動中のアプリへURLを渡せなかったことを知らせる。URLは失われないよう、コピーできる形で表示する。
+     */
+    private static void showForwardFailure(String[] args, IOException cause) {
+        try {
+            Platform.startup(() -> {
+                Alert alert = new Alert(Alert.AlertType.ERROR);
+                alert.setTitle("YT Downloader");
+                alert.setHeaderText("起動中のアプリへURLを渡せませんでした");
+                alert.setContentText("起動中のアプリが応答しませんでした (" + cause.getMessage() + ")。"
+                        + "アプリを終了してから、もう一度開いてください。");
+                if (args.length > 0) {
+                    TextArea urls = new TextArea(String.join("\n", args));
+                    urls.setEditable(false);
+                    urls.setWrapText(true);
+                    alert.getDialogPane().setExpandableContent(urls);
+                    alert.getDialogPane().setExpanded(true);
+                }
+                alert.showAndWait();
+                Platform.exit();
+            });
+        } catch (RuntimeException e) {
+            // 画面を表示できない環境では標準エラーへの出力のみ
+            System.err.println("Unable to show the error dialog: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,199 @@
+package com.kyopan_pan.ytdownloader;
+
+import javafx.application.Platform;
+
+import java.io.File;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * ダウンロード済みファイル名の検索用インデックス。正規化したファイル名の2文字組(バイグラム)からファイルへの転置表を持つ。
+ * 日本語のタイトルでも分かち書きなしで部分一致を引けるよう、単語ではなく文字の組で索引する。
+ * ファイルの追加・削除は差分だけを反映し、検索は専用スレッドで行って結果をFXスレッドへ返す。
+ */
+final class LibraryIndex {
+
+    private static final int GRAM = 2;
+
+    private final Map<File, String> names = new HashMap<>();
+    private final Map<String, Set<File>> postings = new HashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final ExecutorService searcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "library-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 現在のファイル一覧との差分を検索用スレッドで反映する。後に投入した検索は反映後のインデックスを使う。
+     */
+    void syncAsync(Collection<File> files) {
+        List<File> snapshot = List.copyOf(files);
+        searcher.execute(() -> sync(snapshot));
+    }
+
+    /**
+     * 増えたファイルだけを検索用スレッドで追加する。一覧全体を写さずに済むよう、差分が分かっている場合はこちらを使う。
+     */
+    void addAsync(Collection<File> files) {
+        List<File> added = List.copyOf(files);
+        searcher.execute(() -> added.forEach(this::add));
+    }
+
+    /**
+     * 消えたファイルだけを検索用スレッドで取り除く。
+     */
+    void removeAsync(Collection<File> files) {
+        List<File> removed = List.copyOf(files);
+        searcher.execute(() -> removed.forEach(this::remove));
+    }
+
+    /**
+     * 現在のファイル一覧に合わせて、増えたファイルを追加し消えたファイルを取り除く。
+     */
+    synchronized void sync(Collection<File> files) {
+        Set<File> current = new HashSet<>(files);
+        List<File> removed = new ArrayList<>();
+        for (File file : names.keySet()) {
+            if (!current.contains(file)) {
+                removed.add(file);
+            }
+        }
+        removed.forEach(this::remove);
+        for (File file : current) {
+            if (!names.containsKey(file)) {
+                add(file);
+            }
+        }
+    }
+
+    synchronized void add(File file) {
+        String name = normalize(file.getName());
+        if (names.putIfAbsent(file, name) != null) {
+            return;
+        }
+        for (String gram : grams(name)) {
+            postings.computeIfAbsent(gram, key -> new HashSet<>()).add(file);
+        }
+    }
+
+    synchronized void remove(File file) {
+        String name = names.remove(file);
+        if (name == null) {
+            return;
+        }
+        for (String gram : grams(name)) {
+            Set<File> posting = postings.get(gram);
+            if (posting != null) {
+                posting.remove(file);
+                if (posting.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * 検索を専用スレッドで実行し、結果をFXスレッドで渡す。後から別の検索が始まった場合、古い結果は捨てる。
+     * 空白で区切った語はすべてを含むもの(AND)を返す。
+     */
+    void searchAsync(String query, Consumer<Set<File>> onResult) {
+        long ticket = generation.incrementAndGet();
+        searcher.execute(() -> {
+            if (ticket != generation.get()) {
+                return;
+            }
+            Set<File> result = search(query);
+            Platform.runLater(() -> {
+                if (ticket == generation.get()) {
+                    onResult.accept(result);
+                }
+            });
+        });
+    }
+
+    /**
+     * 進行中の検索結果を無効にする。検索語が空になり全件表示へ戻す場合に使う。
+     */
+    void cancelSearch() {
+        generation.incrementAndGet();
+    }
+
+    synchronized Set<File> search(String query) {
+        List<String> terms = new ArrayList<>();
+        for (String term : normalize(query).split("\\s+")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        Set<File> result = null;
+        for (String term : terms) {
+            result = matchTerm(term, result);
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return result == null ? new HashSet<>(names.keySet()) : result;
+    }
+
+    private Set<File> matchTerm(String term, Set<File> within) {
+        Collection<File> candidates;
+        if (term.length() < GRAM) {
+            candidates = within != null ? within : names.keySet();
+        } else {
+            // 含まれない組が1つでもあれば一致なし。候補は最も短い転置リストに限る
+            List<Set<File>> lists = new ArrayList<>();
+            for (String gram : grams(term)) {
+                Set<File> posting = postings.get(gram);
+                if (posting == null) {
+                    return new HashSet<>();
+                }
+                lists.add(posting);
+            }
+            lists.sort(Comparator.comparingInt(Set::size));
+            candidates = within != null && within.size() < lists.getFirst().size() ? within : lists.getFirst();
+        }
+        Set<File> matched = new HashSet<>();
+        for (File file : candidates) {
+            if (within != null && !within.contains(file)) {
+                continue;
+            }
+            // 候補は1つの組を含むだけなので、最後に部分文字列で確かめる
+            String name = names.get(file);
+            if (name != null && name.contains(term)) {
+                matched.add(file);
+            }
+        }
+        return matched;
+    }
+
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+
+    /**
+     * 全角英数字や大文字小文字の違いで検索漏れが出ないよう、NFKCで正規化して小文字にそろえる。
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+    }
+}
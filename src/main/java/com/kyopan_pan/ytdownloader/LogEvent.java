@@ -0,0 +1,99 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1件のログを、文字列にする前の材料のまま保持する。
+ * 時刻は {@link System#nanoTime()} のみを記録し、メッセージのテンプレートへの引数の埋め込みや時刻の整形は
+ * 書き出し時({@link #render()})まで行わない。
+ *
+ * @param source   `[yt-dlp]` などの出所。nullの場合はメッセージ先頭の `[...]` を出所とみなす
+ * @param jobId    ダウンロードジョブの識別子。ジョブに属さないログはnull
+ * @param template `{}` を引数で置き換えるメッセージ
+ */
+record LogEvent(AppLogger.Level level, long nanoTime, String source, String jobId, String template, Object[] args,
+                Throwable error) {
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    // nanoTimeを時刻へ戻すための基準点
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    private static final long ORIGIN_MILLIS = System.currentTimeMillis();
+
+    /**
+     * 出所を返す。明示されていない場合はメッセージ先頭の `[...]` から求める。
+     */
+    String resolvedSource() {
+        if (source != null) {
+            return source;
+        }
+        if (template != null && template.startsWith("[")) {
+            int end = template.indexOf(']');
+            if (end > 1) {
+                return template.substring(1, end);
+            }
+        }
+        return "";
+    }
+
+    String message() {
+        if (template == null) {
+            return "";
+        }
+        if (args == null || args.length == 0) {
+            return template;
+        }
+        StringBuilder builder = new StringBuilder(template.length() + 16 * args.length);
+        int argIndex = 0;
+        int from = 0;
+        int at;
+        while ((at = template.indexOf("{}", from)) >= 0 && argIndex < args.length) {
+            builder.append(template, from, at).append(args[argIndex++]);
+            from = at + 2;
+        }
+        builder.append(template, from, template.length());
+        return builder.toString();
+    }
+
+    /**
+     * 「[時刻] [出所] [ジョブ] 本文」の行へ整形する。出所を明示していない場合は本文先頭の `[...]` がそのまま出所の位置に来る。
+     * 例外を伴う場合はスタックトレースを続く行として返す。
+     */
+    List<String> render() {
+        long millis = ORIGIN_MILLIS + (nanoTime - ORIGIN_NANOS) / 1_000_000;
+        String time = LocalTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).format(TIME_FORMAT);
+        StringBuilder head = new StringBuilder(64).append('[').append(time).append("] ");
+        if (source != null) {
+            head.append('[').append(source).append("] ");
+        }
+        if (jobId != null) {
+            head.append('[').append(jobId).append("] ");
+        }
+        head.append(message());
+
+        List<String> lines = new ArrayList<>();
+        if (error != null) {
+            if (template == null || template.isBlank()) {
+                head.append("想定外の例外");
+            }
+            head.append(" (").append(error.getClass().getSimpleName()).append(')');
+            String errorMessage = error.getMessage();
+            if (errorMessage != null && !errorMessage.isBlank()) {
+                head.append(": ").append(errorMessage);
+            }
+            lines.add(head.toString());
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            trace.toString().lines().forEach(lines::add);
+        } else {
+            lines.add(head.toString());
+        }
+        return lines;
+    }
+}
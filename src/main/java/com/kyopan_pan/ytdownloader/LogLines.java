@@ -0,0 +1,196 @@
+package com.kyopan_pan.ytdownloader;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableListBase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * {@link LogStore} をListViewへ見せるための読み取り専用リスト。要素は行番号だけを持ち、文字列は表示されるセルの分だけストアから取り出す。
+ * ストアへの追記は即座には反映せず、{@link #refresh()} を呼んだ時点でまとめて1回の変更として通知する。
+ * 正規表現や出所で絞り込む場合は、既存の行の走査を専用スレッドで行い、以降の追記分だけをFXスレッドで判定する。
+ */
+final class LogLines extends ObservableListBase<String> {
+
+    private final LogStore store;
+    private final ExecutorService scanner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "log-filter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 絞り込みなしの場合に表示する行番号の範囲 [windowFirst, windowEnd)
+    private long windowFirst;
+    private long windowEnd;
+    // 絞り込みありの場合に一致した行番号
+    private Pattern pattern;
+    private int sourceId = -1;
+    private long[] matches = new long[0];
+    private int matchCount;
+    private long scannedUpTo;
+    // 走査スレッドから古い走査の打ち切りを判定するため volatile にする
+    private volatile long generation;
+    private boolean scanning;
+
+    LogLines(LogStore store) {
+        this.store = store;
+        this.windowFirst = store.firstLine();
+        this.windowEnd = store.endLine();
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        long number = isFiltered() ? matches[index] : windowFirst + index;
+        String line = store.line(number);
+        return line == null ? "" : line;
+    }
+
+    @Override
+    public int size() {
+        return isFiltered() ? matchCount : (int) (windowEnd - windowFirst);
+    }
+
+    private boolean isFiltered() {
+        return pattern != null || sourceId >= 0;
+    }
+
+    /**
+     * 前回以降の追記と古い行の破棄を反映し、末尾に増えた行数を返す。FXスレッドから定期的に呼び出す。
+     */
+    int refresh() {
+        long first = store.firstLine();
+        long end = store.endLine();
+        int added = 0;
+        beginChange();
+        if (!isFiltered()) {
+            if (first > windowFirst) {
+                long dropped = Math.min(first, windowEnd) - windowFirst;
+                nextRemove(0, Collections.nCopies((int) dropped, ""));
+                windowFirst = first;
+                windowEnd = Math.max(windowEnd, first);
+            }
+            if (end > windowEnd) {
+                added = (int) (end - windowEnd);
+                int from = size();
+                windowEnd = end;
+                nextAdd(from, from + added);
+            }
+        } else if (!scanning) {
+            int dropped = 0;
+            while (dropped < matchCount && matches[dropped] < first) {
+                dropped++;
+            }
+            if (dropped > 0) {
+                System.arraycopy(matches, dropped, matches, 0, matchCount - dropped);
+                matchCount -= dropped;
+                nextRemove(0, Collections.nCopies(dropped, ""));
+            }
+            int from = matchCount;
+            for (long number = Math.max(scannedUpTo, first); number < end; number++) {
+                if (accepts(number)) {
+                    addMatch(number);
+                }
+            }
+            scannedUpTo = end;
+            added = matchCount - from;
+            if (added > 0) {
+                nextAdd(from, matchCount);
+            }
+        }
+        endChange();
+        return added;
+    }
+
+    /**
+     * 絞り込み条件を変更する。どちらも未指定(null / 負の値)なら全行を表示する。
+     * 絞り込みありの場合は、走査が終わるまで一覧を空にしておく。
+     */
+    void setFilter(Pattern newPattern, int newSourceId) {
+        long scanGeneration = ++generation;
+        replaceContents(() -> {
+            pattern = newPattern;
+            sourceId = newSourceId;
+            matches = new long[0];
+            matchCount = 0;
+            windowFirst = store.firstLine();
+            windowEnd = store.endLine();
+        });
+        scanning = isFiltered();
+        if (!scanning) {
+            return;
+        }
+        long first = store.firstLine();
+        long end = store.endLine();
+        scanner.execute(() -> {
+            long[] found = new long[1024];
+            int count = 0;
+            for (long number = first; number < end; number++) {
+                if (scanGeneration != generation) {
+                    return;
+                }
+                if (accepts(number, newPattern, newSourceId)) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = number;
+                }
+            }
+            long[] result = found;
+            int resultCount = count;
+            Platform.runLater(() -> {
+                if (scanGeneration != generation) {
+                    return;
+                }
+                scanning = false;
+                replaceContents(() -> {
+                    matches = result;
+                    matchCount = resultCount;
+                    scannedUpTo = end;
+                });
+                refresh();
+            });
+        });
+    }
+
+    private void replaceContents(Runnable update) {
+        beginChange();
+        int oldSize = size();
+        if (oldSize > 0) {
+            nextRemove(0, Collections.nCopies(oldSize, ""));
+        }
+        update.run();
+        if (size() > 0) {
+            nextAdd(0, size());
+        }
+        endChange();
+    }
+
+    private boolean accepts(long number) {
+        return accepts(number, pattern, sourceId);
+    }
+
+    private boolean accepts(long number, Pattern pattern, int sourceId) {
+        if (sourceId >= 0 && store.source(number) != sourceId) {
+            return false;
+        }
+        if (pattern == null) {
+            return true;
+        }
+        String line = store.line(number);
+        return line != null && pattern.matcher(line).find();
+    }
+
+    private void addMatch(long number) {
+        if (matchCount == matches.length) {
+            matches = Arrays.copyOf(matches, Math.max(1024, matchCount * 2));
+        }
+        matches[matchCount++] = number;
+    }
+}
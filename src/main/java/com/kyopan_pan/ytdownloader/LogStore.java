@@ -0,0 +1,185 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ログ行をUTF-8のまま固定長のセグメントへ詰めて保持するストア。1行ごとのオブジェクトを持たないため、行数が増えてもヒープを圧迫しない。
+ * 1行あたりの負担は本文のバイト数+5バイト(位置と出所)で、100バイト前後の行なら1MBのセグメントに約1万行が入る。
+ * 既定の上限(128セグメント)で約120万行を保持し、設定ファイルの `log.maxMegabytes` で変えられる。
+ * 行には通し番号を振り、上限を超えた分は最も古いセグメントごと捨てる(配列のずらしは発生しない)。
+ * 各行の出所(`yt-dlp` など)は小さな番号に置き換えて行と一緒に保持し、出所での絞り込みを文字列の解析なしで行えるようにする。
+ */
+final class LogStore {
+
+    // 出所のない行
+    static final int NO_SOURCE = 0;
+
+    private static final int SEGMENT_BYTES = 1024 * 1024;
+    static final int DEFAULT_MAX_SEGMENTS = 128;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<String> sourceNames = new ArrayList<>(List.of(""));
+    private final Map<String, Integer> sourceIds = new HashMap<>();
+    private long firstLine;
+    private long endLine;
+    private int maxSegments = DEFAULT_MAX_SEGMENTS;
+
+    /**
+     * 1行を追記し、その通し番号を返す。
+     *
+     * @param source 出所の名前。出所がない場合は空文字
+     */
+    synchronized long append(String line, String source) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        Segment tail = segments.isEmpty() ? null : segments.getLast();
+        if (tail == null || !tail.fits(bytes.length)) {
+            tail = new Segment(endLine, Math.max(SEGMENT_BYTES, bytes.length));
+            segments.add(tail);
+            trim();
+        }
+        tail.add(bytes, sourceId(source));
+        return endLine++;
+    }
+
+    /**
+     * 保持するセグメント数(1セグメント=1MB)の上限を変える。既に上限を超えていれば古い分をすぐに捨てる。
+     */
+    synchronized void setMaxSegments(int segments) {
+        maxSegments = Math.max(1, segments);
+        trim();
+    }
+
+    synchronized int maxSegments() {
+        return maxSegments;
+    }
+
+    private void trim() {
+        while (segments.size() > maxSegments) {
+            segments.removeFirst();
+            firstLine = segments.getFirst().firstLine;
+        }
+    }
+
+    /**
+     * 保持している最も古い行の番号。
+     */
+    synchronized long firstLine() {
+        return firstLine;
+    }
+
+    /**
+     * 次に追記される行の番号(保持範囲の終端、この番号自体は含まない)。
+     */
+    synchronized long endLine() {
+        return endLine;
+    }
+
+    /**
+     * 指定番号の行を返す。既に捨てられた行や未追記の番号の場合はnull。
+     */
+    synchronized String line(long number) {
+        Segment segment = segmentOf(number);
+        return segment == null ? null : segment.line((int) (number - segment.firstLine));
+    }
+
+    synchronized int source(long number) {
+        Segment segment = segmentOf(number);
+        return segment == null ? NO_SOURCE : segment.sources[(int) (number - segment.firstLine)];
+    }
+
+    /**
+     * これまでに現れた出所の一覧。添字が {@link #source(long)} の番号に対応する。
+     */
+    synchronized List<String> sources() {
+        return List.copyOf(sourceNames);
+    }
+
+    synchronized int sourceIdOf(String name) {
+        return sourceIds.getOrDefault(name, -1);
+    }
+
+    /**
+     * 保持している行をすべて捨てる。通し番号は振り直さない。
+     */
+    synchronized void clear() {
+        segments.clear();
+        firstLine = endLine;
+    }
+
+    private Segment segmentOf(long number) {
+        if (number < firstLine || number >= endLine) {
+            return null;
+        }
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).firstLine <= number) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return segments.get(low);
+    }
+
+    /**
+     * 出所の名前を番号にする。出所の種類は少ないため番号は1バイトに収める。
+     */
+    private int sourceId(String name) {
+        if (name == null || name.isEmpty()) {
+            return NO_SOURCE;
+        }
+        Integer id = sourceIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (sourceNames.size() > Byte.MAX_VALUE) {
+            return NO_SOURCE;
+        }
+        sourceNames.add(name);
+        sourceIds.put(name, sourceNames.size() - 1);
+        return sourceNames.size() - 1;
+    }
+
+    private static final class Segment {
+        private final long firstLine;
+        private final byte[] data;
+        private int used;
+        private int[] offsets = new int[1024];
+        private byte[] sources = new byte[1024];
+        private int count;
+
+        private Segment(long firstLine, int capacity) {
+            this.firstLine = firstLine;
+            this.data = new byte[capacity];
+        }
+
+        private boolean fits(int length) {
+            return used + length <= data.length;
+        }
+
+        private void add(byte[] bytes, int source) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                sources = Arrays.copyOf(sources, count * 2);
+            }
+            System.arraycopy(bytes, 0, data, used, bytes.length);
+            offsets[count] = used;
+            sources[count] = (byte) source;
+            used += bytes.length;
+            count++;
+        }
+
+        private String line(int index) {
+            int start = offsets[index];
+            int end = index + 1 < count ? offsets[index + 1] : used;
+            return new String(data, start, end - start, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.kyopan_pan.ytdownloader;
+
+import javafx.application.Platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * 一覧の各ファイルの長さ・解像度・コーデックを {@link Mp4Inspector} で読み、ファイルごとに更新日時と大きさを添えて保持する。
+ * 読み取りと更新日時・大きさの確認は専用の1スレッドで行い、結果をFXスレッドへ返す。FXスレッドからの参照はファイルの状態を確認しない。
+ */
+final class MediaInfoCache {
+
+    private final Map<File, Cached> cache = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "media-info-reader");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * 1件分の検証結果。
+     */
+    record Result(File file, Mp4Inspector.Info info, String error) {
+    }
+
+    private record Cached(long modified, long length, Mp4Inspector.Info info) {
+
+        boolean matches(File file) {
+            return modified == file.lastModified() && length == file.length();
+        }
+    }
+
+    Mp4Inspector.Info getCached(File file) {
+        Cached cached = cache.get(file);
+        return cached != null ? cached.info() : null;
+    }
+
+    /**
+     * 読み取りを要求し、完了時にFXスレッドで {@code onLoaded} を呼ぶ。保持しているものとファイルの状態が同じ場合、
+     * 対応していない形式や読めないファイルでは呼ばない。セルの再利用時は戻り値を取り消す。
+     */
+    Future<?> request(File file, Consumer<Mp4Inspector.Info> onLoaded) {
+        return executor.submit(() -> {
+            Cached cached = cache.get(file);
+            if (cached != null && cached.matches(file)) {
+                return;
+            }
+            Mp4Inspector.Info info = load(file);
+            if (info != null && !Thread.currentThread().isInterrupted()) {
+                Platform.runLater(() -> onLoaded.accept(info));
+            }
+        });
+    }
+
+    /**
+     * 全ファイルを検証する。呼び出したスレッドで実行する。
+     */
+    List<Result> verifyAll(Collection<File> files) {
+        List<Result> results = new ArrayList<>();
+        for (File file : files) {
+            if (!Mp4Inspector.isSupported(file.toPath())) {
+                continue;
+            }
+            try {
+                long modified = file.lastModified();
+                long length = file.length();
+                Mp4Inspector.Info info = Mp4Inspector.inspect(file.toPath());
+                cache.put(file, new Cached(modified, length, info));
+                results.add(new Result(file, info, null));
+            } catch (IOException e) {
+                results.add(new Result(file, null, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    private Mp4Inspector.Info load(File file) {
+        Path path = file.toPath();
+        if (!Mp4Inspector.isSupported(path)) {
+            return null;
+        }
+        try {
+            long modified = file.lastModified();
+            long length = file.length();
+            Mp4Inspector.Info info = Mp4Inspector.inspect(path);
+            cache.put(file, new Cached(modified, length, info));
+            return info;
+        } catch (IOException e) {
+            AppLogger.logError("[MediaInfoCache] ファイル情報の読み取りに失敗しました: " + file.getName(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * MP4(ISO-BMFF)のボックス構造を読み、長さ・解像度・コーデックを取り出して構造を検証する。ffprobeのようにプロセスを起動しない。
+ * 最上位のボックスは見出し(8〜16バイト)だけを読んで飛ばし、`mdat` の中身は読まない。`moov` のみをメモリへ写像して
+ * `mvhd`・`trak`(`tkhd`・`hdlr`・`stsd`)をたどる。
+ */
+final class Mp4Inspector {
+
+    static final Set<String> EXTENSIONS = Set.of("mp4", "m4a", "m4v", "mov");
+    // 写像する moov の上限。通常は数MB以下
+    private static final long MAX_MOOV_BYTES = 64L * 1024 * 1024;
+    private static final Set<String> CONTAINERS = Set.of("trak", "mdia", "minf", "stbl");
+    // 先頭に置かれ得る最上位のボックス。QuickTime形式(.mov)は ftyp を持たないことがある
+    private static final Set<String> LEADING_TYPES = Set.of("ftyp", "styp", "moov", "mdat", "free", "skip", "wide", "pdin");
+
+    private Mp4Inspector() {
+    }
+
+    /**
+     * @param durationSeconds 長さ(秒)。`mvhd` がなければ0
+     * @param width           最初の映像トラックの表示幅。映像がなければ0
+     * @param videoCodec      最初の映像トラックのサンプル形式(avc1、hvc1、av01など)。なければnull
+     * @param audioCodec      最初の音声トラックのサンプル形式(mp4a、Opusなど)。なければnull
+     * @param faststart       `moov` が `mdat` より前にある(`+faststart` 済み)
+     * @param problems        構造上の問題。空なら再生に必要な構造がそろっている
+     */
+    record Info(double durationSeconds, int width, int height, String videoCodec, String audioCodec, boolean faststart,
+                List<String> problems) {
+
+        boolean valid() {
+            return problems.isEmpty();
+        }
+
+        /**
+         * 一覧の行に添える短い表記(例: "3:25 · 1920×1080 · avc1/mp4a")。
+         */
+        String brief() {
+            List<String> parts = new ArrayList<>();
+            if (durationSeconds > 0) {
+                long total = Math.round(durationSeconds);
+                parts.add(total >= 3600
+                        ? String.format("%d:%02d:%02d", total / 3600, total / 60 % 60, total % 60)
+                        : String.format("%d:%02d", total / 60, total % 60));
+            }
+            if (width > 0 && height > 0) {
+                parts.add(width + "×" + height);
+            }
+            String codecs = videoCodec != null && audioCodec != null ? videoCodec + "/" + audioCodec
+                    : videoCodec != null ? videoCodec : audioCodec;
+            if (codecs != null) {
+                parts.add(codecs);
+            }
+            if (!valid()) {
+                parts.add("破損の可能性");
+            }
+            return String.join(" · ", parts);
+        }
+    }
+
+    static boolean isSupported(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    static Info inspect(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<String> problems = new ArrayList<>();
+            long moovOffset = -1;
+            long moovSize = 0;
+            long mdatOffset = -1;
+            boolean first = true;
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(16);
+            while (position + 8 <= size) {
+                header.clear().limit(16);
+                readFully(channel, header, position, Math.min(16, size - position));
+                long boxSize = Integer.toUnsignedLong(header.getInt(0));
+                String type = fourCc(header, 4);
+                int headerBytes = 8;
+                if (boxSize == 1) {
+                    if (header.limit() < 16) {
+                        problems.add("ボックスの見出しが途中で切れています: " + type);
+                        break;
+                    }
+                    boxSize = header.getLong(8);
+                    headerBytes = 16;
+                } else if (boxSize == 0) {
+                    boxSize = size - position;
+                }
+                if (boxSize < headerBytes) {
+                    problems.add("ボックスの大きさが不正です: " + type + " (" + boxSize + " bytes)");
+                    break;
+                }
+                if (first && !LEADING_TYPES.contains(type)) {
+                    problems.add("MP4の形式ではありません (先頭: " + type.strip() + ")");
+                    break;
+                }
+                first = false;
+                // 64ビットの大きさは壊れたファイルでは桁あふれするほど大きいことがあるため、足し算ではなく残りと比べる
+                if (boxSize > size - position) {
+                    problems.add("ファイルが途中で終わっています: " + type + " に " + (boxSize - (size - position)) + " bytes 不足");
+                    break;
+                }
+                if ("moov".equals(type) && moovOffset < 0) {
+                    moovOffset = position + headerBytes;
+                    moovSize = boxSize - headerBytes;
+                } else if ("mdat".equals(type) && mdatOffset < 0) {
+                    mdatOffset = position;
+                }
+                position += boxSize;
+            }
+            if (position < size && problems.isEmpty() && size - position >= 8) {
+                problems.add("末尾に解釈できないデータがあります");
+            }
+            if (moovOffset < 0) {
+                problems.add("moov がありません");
+                return new Info(0, 0, 0, null, null, false, List.copyOf(problems));
+            }
+            if (moovSize > MAX_MOOV_BYTES) {
+                problems.add("moov が大きすぎます: " + moovSize + " bytes");
+                return new Info(0, 0, 0, null, null, false, List.copyOf(problems));
+            }
+            MappedByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY, moovOffset, moovSize);
+            Builder builder = new Builder();
+            try {
+                walk(moov, 0, (int) moovSize, builder, null);
+            } catch (IndexOutOfBoundsException e) {
+                problems.add("moov の内容が不正です");
+            }
+            if (builder.tracks == 0) {
+                problems.add("トラックがありません");
+            }
+            boolean faststart = mdatOffset < 0 || moovOffset < mdatOffset;
+            return new Info(builder.duration, builder.width, builder.height, builder.videoCodec, builder.audioCodec,
+                    faststart, List.copyOf(problems));
+        }
+    }
+
+    /**
+     * moov 内の1階層分のボックスをたどる。trak の中で見つけた tkhd・hdlr・stsd はそのトラックの値として集め、trak の終わりで種別ごとに振り分ける。
+     */
+    private static void walk(ByteBuffer buffer, int start, int end, Builder builder, Track track) {
+        int position = start;
+        while (position + 8 <= end) {
+            long boxSize = Integer.toUnsignedLong(buffer.getInt(position));
+            String type = fourCc(buffer, position + 4);
+            int headerBytes = 8;
+            if (boxSize == 1 && position + 16 <= end) {
+                boxSize = buffer.getLong(position + 8);
+                headerBytes = 16;
+            } else if (boxSize == 0) {
+                boxSize = end - position;
+            }
+            if (boxSize < headerBytes || boxSize > end - position) {
+                return;
+            }
+            int body = position + headerBytes;
+            int boxEnd = (int) (position + boxSize);
+            switch (type) {
+                case "mvhd" -> readMvhd(buffer, body, builder);
+                case "trak" -> {
+                    Track child = new Track();
+                    walk(buffer, body, boxEnd, builder, child);
+                    builder.addTrack(child);
+                }
+                case "tkhd" -> {
+                    if (track != null) {
+                        readTkhd(buffer, body, boxEnd, track);
+                    }
+                }
+                case "hdlr" -> {
+                    if (track != null && body + 12 <= boxEnd) {
+                        track.handler = fourCc(buffer, body + 8);
+                    }
+                }
+                case "stsd" -> {
+                    // version/flags(4) + 件数(4) の後に最初のサンプル記述(大きさ4 + 形式4)
+                    if (track != null && body + 16 <= boxEnd) {
+                        track.codec = fourCc(buffer, body + 12).trim();
+                    }
+                }
+                default -> {
+                    if (CONTAINERS.contains(type)) {
+                        walk(buffer, body, boxEnd, builder, track);
+                    }
+                }
+            }
+            position = boxEnd;
+        }
+    }
+
+    private static void readMvhd(ByteBuffer buffer, int body, Builder builder) {
+        int version = buffer.get(body) & 0xff;
+        long timescale;
+        long duration;
+        if (version == 1) {
+            timescale = Integer.toUnsignedLong(buffer.getInt(body + 20));
+            duration = buffer.getLong(body + 24);
+        } else {
+            timescale = Integer.toUnsignedLong(buffer.getInt(body + 12));
+            duration = Integer.toUnsignedLong(buffer.getInt(body + 16));
+        }
+        if (timescale > 0 && duration >= 0) {
+            builder.duration = (double) duration / timescale;
+        }
+    }
+
+    private static void readTkhd(ByteBuffer buffer, int body, int end, Track track) {
+        // 幅と高さは16.16の固定小数点で、ボックスの末尾8バイトにある
+        if (end - 8 < body) {
+            return;
+        }
+        track.width = buffer.getInt(end - 8) >>> 16;
+        track.height = buffer.getInt(end - 4) >>> 16;
+    }
+
+    private static String fourCc(ByteBuffer buffer, int offset) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, long length) throws IOException {
+        buffer.limit((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    private static final class Track {
+        private String handler;
+        private String codec;
+        private int width;
+        private int height;
+    }
+
+    private static final class Builder {
+        private double duration;
+        private int width;
+        private int height;
+        private String videoCodec;
+        private String audioCodec;
+        private int tracks;
+
+        private void addTrack(Track track) {
+            tracks++;
+            if ("vide".equals(track.handler) && videoCodec == null) {
+                videoCodec = track.codec;
+                width = track.width;
+                height = track.height;
+            } else if ("soun".equals(track.handler) && audioCodec == null) {
+                audioCodec = track.codec;
+            }
+        }
+    }
+}
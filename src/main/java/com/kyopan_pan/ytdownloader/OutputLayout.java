@@ -0,0 +1,204 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 保存先の中のフォルダ分け。ファイルが数万件になると1つのフォルダの操作(特にNAS上の一覧取得)が遅くなるため、
+ * 投稿者・年月・ハッシュのいずれかで下位フォルダへ振り分ける。
+ * yt-dlpが名前を決める出力は出力テンプレートで、アプリが名前を決める出力(AnimeThemesと直接のURL)は {@link #target} で
+ * 同じ規則の場所を求める。一覧は切り替え前の構成のファイルも拾えるよう、構成によらず2階層下まで探す。
+ */
+enum OutputLayout {
+    FLAT("フォルダ分けなし", ""),
+    UPLOADER("投稿者ごと", "%(uploader,channel|unknown)s/"),
+    // 年月はyt-dlpの実行時刻ではなくジョブを受け付けた時刻から決める(一時停止から再開しても同じフォルダに書くため)
+    MONTH("年/月ごと", null),
+    // 動画IDは偏りがないため先頭2文字で分ける。IDを持たない出力はファイル名のCRC32の下位8ビットを使う
+    HASH("ハッシュ(2文字)", "%(id.:2)s/");
+
+    // 保存先の直下から数えたフォルダの深さの上限(年/月の2階層)
+    private static final int MAX_SHARD_DEPTH = 2;
+    private static final int SCAN_THREADS = 8;
+    private static final ExecutorService SCANNER = Executors.newFixedThreadPool(SCAN_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "library-scan");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String label;
+    private final String templatePrefix;
+
+    OutputLayout(String label, String templatePrefix) {
+        this.label = label;
+        this.templatePrefix = templatePrefix;
+    }
+
+    String label() {
+        return label;
+    }
+
+    static OutputLayout fromName(String name) {
+        for (OutputLayout layout : values()) {
+            if (layout.name().equalsIgnoreCase(name == null ? "" : name.trim())) {
+                return layout;
+            }
+        }
+        return FLAT;
+    }
+
+    /**
+     * yt-dlpの出力テンプレート(例: "root/%(uploader,channel|unknown)s/%(title)s.%(ext)s")。
+     * 年月ごとの構成では {@code timeMillis} の年月のフォルダを使う。
+     */
+    String ytDlpTemplate(Path root, long timeMillis) {
+        String prefix = this == MONTH ? monthShard(timeMillis) + "/" : templatePrefix;
+        return root + "/" + prefix + "%(title)s.%(ext)s";
+    }
+
+    /**
+     * アプリが名前を決める出力の保存先。投稿者の分からない出力は {@code uploader} を投稿者として扱う。
+     * フォルダは作らない。
+     */
+    Path target(Path root, String fileName, String uploader, long timeMillis) {
+        return switch (this) {
+            case FLAT -> root.resolve(fileName);
+            case UPLOADER -> root.resolve(sanitize(uploader)).resolve(fileName);
+            case MONTH -> root.resolve(monthShard(timeMillis)).resolve(fileName);
+            case HASH -> root.resolve(hashShard(fileName)).resolve(fileName);
+        };
+    }
+
+    private static String monthShard(long timeMillis) {
+        LocalDate date = Instant.ofEpochMilli(timeMillis).atZone(ZoneId.systemDefault()).toLocalDate();
+        return date.getYear() + "/" + String.format("%02d", date.getMonthValue());
+    }
+
+    /**
+     * 保存先の完成したファイルと途中ファイルを探す。隠しファイルと隠しフォルダ(作業・退避用)は除く。
+     * 直下のフォルダごとに並行して走査する。
+     */
+    static List<Path> scan(Path root) throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<Callable<List<Path>>> shards = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(root)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                if (isHidden(entry)) {
+                    continue;
+                }
+                if (Files.isDirectory(entry)) {
+                    shards.add(() -> walkShard(entry));
+                } else if (Files.isRegularFile(entry)) {
+                    files.add(entry);
+                }
+            }
+        }
+        try {
+            for (Future<List<Path>> shard : SCANNER.invokeAll(shards)) {
+                files.addAll(shard.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("保存先の走査が中断されました", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+        return files;
+    }
+
+    /**
+     * 移行の結果。{@code unresolved} は振り分け先を決められなかったファイル(投稿者ごとの構成では元の投稿者が分からない)、
+     * {@code conflicts} は移動先に同名のファイルが既にあったファイル。
+     */
+    record MigrationResult(int moved, int unresolved, int conflicts, int failed) {
+    }
+
+    /**
+     * 保存先の直下にあるファイルをこの構成の場所へ移動する。年月はファイルの更新日時、ハッシュはファイル名から求める。
+     * 同じボリューム内の移動のため、ファイルの中身は読み書きしない。
+     */
+    MigrationResult migrate(Path root) throws IOException {
+        int moved = 0;
+        int unresolved = 0;
+        int conflicts = 0;
+        int failed = 0;
+        List<Path> candidates;
+        try (Stream<Path> entries = Files.list(root)) {
+            candidates = entries.filter(Files::isRegularFile)
+                    .filter(path -> !isHidden(path))
+                    .filter(path -> !DownloadExecutor.isPartialFile(path))
+                    .toList();
+        }
+        for (Path file : candidates) {
+            if (this == FLAT || this == UPLOADER) {
+                unresolved++;
+                continue;
+            }
+            Path destination = target(root, file.getFileName().toString(), null, file.toFile().lastModified());
+            if (Files.exists(destination)) {
+                conflicts++;
+                continue;
+            }
+            try {
+                Files.createDirectories(destination.getParent());
+                Files.move(file, destination);
+                moved++;
+            } catch (IOException e) {
+                AppLogger.logError("[OutputLayout] 移動に失敗しました: " + file, e);
+                failed++;
+            }
+        }
+        AppLogger.log("[OutputLayout] " + label + " への移行: 移動 " + moved + " 件 / 振り分け不可 " + unresolved
+                + " 件 / 同名あり " + conflicts + " 件 / 失敗 " + failed + " 件");
+        return new MigrationResult(moved, unresolved, conflicts, failed);
+    }
+
+    private static List<Path> walkShard(Path shard) throws IOException {
+        try (Stream<Path> walk = Files.walk(shard, MAX_SHARD_DEPTH)) {
+            return walk.filter(path -> !isHidden(path) && Files.isRegularFile(path))
+                    .filter(path -> !hasHiddenParent(shard, path))
+                    .toList();
+        }
+    }
+
+    private static boolean hasHiddenParent(Path shard, Path path) {
+        for (Path part : shard.relativize(path.getParent())) {
+            if (isHidden(part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHidden(Path path) {
+        return path.getFileName().toString().startsWith(".");
+    }
+
+    private static String hashShard(String fileName) {
+        CRC32 crc = new CRC32();
+        crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+        return String.format("%02x", crc.getValue() & 0xff);
+    }
+
+    private static String sanitize(String name) {
+        String sanitized = name == null ? "" : name.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+        while (sanitized.startsWith(".")) {
+            sanitized = sanitized.substring(1);
+        }
+        return sanitized.isEmpty() ? "unknown" : sanitized;
+    }
+}
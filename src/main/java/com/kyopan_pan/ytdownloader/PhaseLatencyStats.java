@@ -0,0 +1,176 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ダウンロードの各段階に到達するまでの時間(ジョブの受付から)を段階ごとのヒストグラムに集計し、
+ * 起動をまたいで `phase-latency.properties` に保存する。yt-dlpの更新などで体感の応答性が落ちたときに、
+ * どの段階で遅くなったかをp50/p95/p99で比べられるようにする。
+ * 複数URLのジョブでは、各段階に最初に到達した時刻(最初の1件)を記録する。
+ */
+final class PhaseLatencyStats {
+
+    private static final Path STATS_FILE = Paths.get(DownloadConfig.APP_DATA_DIR, "phase-latency.properties");
+    private static final PhaseLatencyStats SHARED = new PhaseLatencyStats(STATS_FILE);
+
+    enum Phase {
+        PROCESS_SPAWNED("プロセス起動"),
+        EXTRACTION_DONE("情報取得完了"),
+        FIRST_PROGRESS("最初の進捗"),
+        DOWNLOAD_DONE("ダウンロード完了"),
+        POSTPROCESS_DONE("結合・変換完了"),
+        FILE_VISIBLE("一覧に表示");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        String label() {
+            return label;
+        }
+    }
+
+    /**
+     * 1段階分の集計結果(ミリ秒)。
+     */
+    record Summary(Phase phase, long count, long p50, long p95, long p99, long max) {
+    }
+
+    private final Path file;
+    private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+    private boolean loaded;
+
+    PhaseLatencyStats(Path file) {
+        this.file = file;
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new LatencyHistogram());
+        }
+    }
+
+    static PhaseLatencyStats shared() {
+        return SHARED;
+    }
+
+    /**
+     * 1つのジョブの段階の時刻を記録する。受付時刻は生成時。段階ごとに最初の到達のみを残す。
+     */
+    final class Job {
+        private final String jobId;
+        private final long enqueuedNanos = System.nanoTime();
+        private final Map<Phase, Long> reached = new EnumMap<>(Phase.class);
+        private boolean finished;
+
+        private Job(String jobId) {
+            this.jobId = jobId;
+        }
+
+        synchronized void mark(Phase phase) {
+            if (finished || reached.containsKey(phase)) {
+                return;
+            }
+            // サイズ調査などの補助プロセスの終了をダウンロード完了と取り違えないよう、進捗の開始後のみ受け付ける
+            if (phase == Phase.DOWNLOAD_DONE && !reached.containsKey(Phase.FIRST_PROGRESS)) {
+                return;
+            }
+            reached.put(phase, System.nanoTime() - enqueuedNanos);
+        }
+
+        /**
+         * 到達した段階を集計へ加えて保存する。停止や一時停止で終わったジョブは途中までの時間が参考にならないため記録しない。
+         */
+        void finish(boolean record) {
+            Map<Phase, Long> snapshot;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                snapshot = new EnumMap<>(reached);
+            }
+            if (!record || snapshot.isEmpty()) {
+                return;
+            }
+            StringBuilder line = new StringBuilder();
+            snapshot.forEach((phase, nanos) -> line.append(line.isEmpty() ? "" : " / ")
+                    .append(phase.label()).append(" ").append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms"));
+            AppLogger.event(AppLogger.Level.INFO, "PhaseLatencyStats", jobId, "段階ごとの所要時間: {}", line);
+            add(snapshot);
+        }
+    }
+
+    Job startJob(String jobId) {
+        return new Job(jobId);
+    }
+
+    synchronized List<Summary> summaries() {
+        ensureLoaded();
+        List<Summary> summaries = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = histograms.get(phase);
+            summaries.add(new Summary(phase, histogram.count(), histogram.percentile(50), histogram.percentile(95),
+                    histogram.percentile(99), histogram.max()));
+        }
+        return summaries;
+    }
+
+    synchronized void reset() {
+        ensureLoaded();
+        histograms.values().forEach(LatencyHistogram::clear);
+        save();
+    }
+
+    private synchronized void add(Map<Phase, Long> latencies) {
+        ensureLoaded();
+        latencies.forEach((phase, nanos) -> histograms.get(phase).record(TimeUnit.NANOSECONDS.toMillis(nanos)));
+        save();
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!Files.exists(file)) {
+            return;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        } catch (IOException e) {
+            AppLogger.logError("[PhaseLatencyStats] 集計の読み込みに失敗しました: " + file, e);
+            return;
+        }
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, LatencyHistogram.parse(props.getProperty(phase.name())));
+        }
+    }
+
+    private void save() {
+        Properties props = new Properties();
+        histograms.forEach((phase, histogram) -> props.setProperty(phase.name(), histogram.encode()));
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                props.store(out, "YtDownloader phase latency histograms (bucket:count)");
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            AppLogger.logError("[PhaseLatencyStats] 集計の保存に失敗しました: " + file, e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 再エンコードなどCPUを使う後処理を、ダウンロードとは別の有界な実行器で行う段。
+ * CPUコア数を全体の予算とし、各ffmpegの `-threads` をそこから割り当てるため、同時に変換が走ってもコアを奪い合わない。
+ * ダウンロード側は後処理を投入した時点で次のジョブへ進めるので、通信と変換が重なって進む。
+ */
+final class PostProcessingStage {
+
+    // x264がスレッドを増やしても伸びにくくなる下限。これ未満には分割しない
+    private static final int MIN_THREADS = 2;
+
+    private final int cores;
+    private final Semaphore coreBudget;
+    private final AtomicInteger demand = new AtomicInteger();
+    private final ExecutorService executor;
+
+    PostProcessingStage() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    PostProcessingStage(int cores) {
+        this.cores = Math.max(MIN_THREADS, cores);
+        this.coreBudget = new Semaphore(this.cores, true);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, this.cores / MIN_THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "post-processing");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AppLogger.log("[PostProcessingStage] CPUコア予算=" + this.cores + ", 同時変換数上限=" + Math.max(1, this.cores / MIN_THREADS));
+    }
+
+    /**
+     * 入力ファイルをH.264/AACのMP4へ変換する処理を投入する。成功時は入力ファイルを削除する。
+     */
+    CompletableFuture<Boolean> transcodeToMp4(String label, Path input, Path output, ProcessLauncher launcher) {
+        demand.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> {
+            try (CoreLease lease = acquireCountedCores()) {
+                return runTranscode(label, input, output, lease.threads(), launcher);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }, executor);
+    }
+
+    /**
+     * CPU予算からスレッド数を確保する。順番待ちの変換が多いほど1件あたりの割り当ては小さくなる。
+     * ダウンロードと同時に変換するパイプラインなど、この段の実行器を使わない処理もこれで予算を共有する。
+     */
+    CoreLease acquireCores() throws InterruptedException {
+        demand.incrementAndGet();
+        return acquireCountedCores();
+    }
+
+    /**
+     * 需要数へ計上済みの呼び出し元がスレッドを確保する。確保できずに中断された場合は計上を取り消す。
+     */
+    private CoreLease acquireCountedCores() throws InterruptedException {
+        int threads = Math.max(MIN_THREADS, Math.min(cores, cores / Math.max(1, demand.get())));
+        try {
+            coreBudget.acquire(threads);
+        } catch (InterruptedException e) {
+            demand.decrementAndGet();
+            throw e;
+        }
+        return new CoreLease(threads);
+    }
+
+    private boolean runTranscode(String label, Path input, Path output, int threads, ProcessLauncher launcher) {
+        Path partial = output.resolveSibling(output.getFileName() + ".part");
+        List<String> command = List.of(
+                DownloadConfig.getFfmpegPath(),
+                "-hide_banner",
+                "-loglevel", "error",
+                "-i", input.toString(),
+                "-c:v", "libx264",
+                "-preset", "veryfast",
+                "-c:a", "aac",
+                "-b:a", "192k",
+                "-threads", String.valueOf(threads),
+                "-movflags", "+faststart",
+                "-f", "mp4",
+                "-y",
+                partial.toString()
+        );
+        long start = System.nanoTime();
+        AppLogger.log("[PostProcessingStage] " + label + " の変換を開始 (threads=" + threads + "): " + input.getFileName());
+        Process process = null;
+        try {
+            process = launcher.start(command);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // -loglevel error で起動しているため、出力はすべてエラーとして残す
+                    AppLogger.event(AppLogger.Level.WARN, "ffmpeg", label, line);
+                }
+            }
+            int exitCode = process.waitFor();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            AppLogger.log("[PostProcessingStage] " + label + " の変換が終了。exit=" + exitCode + " / " + millis + " ms");
+            if (exitCode != 0) {
+                Files.deleteIfExists(partial);
+                return false;
+            }
+            moveIntoPlace(partial, output);
+            Files.deleteIfExists(input);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (IOException e) {
+            AppLogger.logError("[PostProcessingStage] " + label + " の変換に失敗しました", e);
+            return false;
+        } finally {
+            if (process != null) {
+                launcher.finished(process);
+            }
+        }
+    }
+
+    private void moveIntoPlace(Path source, Path destination) throws IOException {
+        try {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    final class CoreLease implements AutoCloseable {
+        private final int threads;
+        private boolean released;
+
+        private CoreLease(int threads) {
+            this.threads = threads;
+        }
+
+        int threads() {
+            return threads;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            coreBudget.release(threads);
+            demand.decrementAndGet();
+        }
+    }
+}
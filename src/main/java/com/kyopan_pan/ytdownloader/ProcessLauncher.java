@@ -0,0 +1,15 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 子プロセスの起動と終了をDownloadExecutorへ委ねるための窓口。
+ * 起動したプロセスはキャンセル時にまとめて停止できるよう登録され、終了時に登録解除される。
+ */
+interface ProcessLauncher {
+
+    Process start(List<String> command) throws IOException;
+
+    void finished(Process process);
+}
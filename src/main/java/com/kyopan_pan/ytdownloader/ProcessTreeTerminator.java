@@ -0,0 +1,93 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 子プロセスを、yt-dlpが結合や変換のために起動したffmpegなどの子孫も含めて終了させる。
+ * まず全体へ終了要求(SIGTERM)を送り、猶予内に終わらなければ強制終了(SIGKILL)する。
+ * 猶予と強制終了後の待ち時間はどちらも上限があるため、終了処理全体にかかる時間も上限を超えない。
+ */
+final class ProcessTreeTerminator {
+
+    // 強制終了後、OSがプロセスを回収するまで待つ上限
+    static final long FORCE_WAIT_MILLIS = 2000;
+
+    private ProcessTreeTerminator() {
+    }
+
+    /**
+     * @param processes     終了させたプロセスの数(子孫を含む)
+     * @param forced        猶予内に終わらず強制終了したプロセスの数
+     * @param survivors     強制終了後も残っていたプロセスの数。通常は0
+     * @param elapsedMillis 終了処理にかかった時間
+     */
+    record Report(int processes, int forced, int survivors, long elapsedMillis) {
+    }
+
+    static Report terminate(Collection<Process> roots, long graceMillis) {
+        return terminateHandles(roots.stream().map(Process::toHandle).toList(), graceMillis);
+    }
+
+    /**
+     * 終了処理を専用スレッドで行う。帯域の割り当て変更による再起動など、呼び出し元を待たせたくない場合に使う。
+     */
+    static CompletableFuture<Report> terminateAsync(Process root, long graceMillis) {
+        CompletableFuture<Report> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> result.complete(terminate(List.of(root), graceMillis)), "process-terminator");
+        thread.setDaemon(true);
+        thread.start();
+        return result;
+    }
+
+    static Report terminateHandles(Collection<ProcessHandle> roots, long graceMillis) {
+        long start = System.nanoTime();
+        // 親が先に終わると子孫をたどれなくなるため、終了要求の前に木全体を集めておく
+        Set<ProcessHandle> tree = collectTree(roots);
+        if (tree.isEmpty()) {
+            return new Report(0, 0, 0, 0);
+        }
+        tree.forEach(ProcessHandle::destroy);
+        awaitExit(tree, graceMillis);
+
+        // 猶予中に生まれた子孫も含めて、残っているものを強制終了する
+        Set<ProcessHandle> remaining = collectTree(tree);
+        remaining.forEach(ProcessHandle::destroyForcibly);
+        awaitExit(remaining, FORCE_WAIT_MILLIS);
+
+        int survivors = (int) remaining.stream().filter(ProcessHandle::isAlive).count();
+        Set<ProcessHandle> all = new LinkedHashSet<>(tree);
+        all.addAll(remaining);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new Report(all.size(), remaining.size(), survivors, elapsed);
+    }
+
+    private static Set<ProcessHandle> collectTree(Collection<ProcessHandle> roots) {
+        Set<ProcessHandle> tree = new LinkedHashSet<>();
+        for (ProcessHandle root : roots) {
+            if (!root.isAlive()) {
+                continue;
+            }
+            root.descendants().filter(ProcessHandle::isAlive).forEach(tree::add);
+            tree.add(root);
+        }
+        return tree;
+    }
+
+    private static void awaitExit(Set<ProcessHandle> handles, long timeoutMillis) {
+        CompletableFuture<?>[] exits = handles.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(exits).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignored) {
+            // 残っているものは呼び出し元が強制終了する
+        }
+    }
+}
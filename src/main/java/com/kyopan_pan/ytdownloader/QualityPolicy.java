@@ -0,0 +1,182 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 過去のジョブの実測スループットからホストごとの帯域を見積もり、利用者の上限(解像度・ビットレート・ファイルサイズ)と
+ * 1本あたりの目標時間に収まるフォーマットの指定をyt-dlpの引数として組み立てる。
+ * 見積もりは成功したジョブの「増えたファイルの合計サイズ ÷ 所要時間」の指数移動平均で、情報取得や結合の時間も含む実効値。
+ * 起動後の最初の問い合わせで直近の履歴から作り、以降はジョブの終了ごとに更新する。
+ * 上限も目標時間もなければ、通常モードは `-S vcodec:h264,res,acodec:m4a`、互換モードは720p以下、AnimeThemesは `bv+ba/b` を返す。
+ */
+final class QualityPolicy {
+
+    private static final String ANIME_THEMES_FORMAT = "bv+ba/b";
+    private static final int COMPAT_MAX_HEIGHT = 720;
+    // 新しいジョブの重み。0.3なら直近の5件ほどで見積もりがほぼ入れ替わる
+    private static final double SMOOTHING = 0.3;
+    // スキップや極端に短いジョブは帯域の目安にならないため除く
+    private static final long MIN_SAMPLE_BYTES = 1_000_000;
+    private static final long MIN_SAMPLE_MILLIS = 1000;
+    private static final long SEED_WINDOW_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final String ALL_HOSTS = "*";
+    private static final QualityPolicy SHARED = new QualityPolicy(DownloadHistory.shared());
+
+    /**
+     * 1つのジョブに適用する指定。
+     *
+     * @param host                   見積もりに使ったホスト
+     * @param estimateBytesPerSecond 帯域の見積もり。履歴がなければ0
+     * @param sizeLimitBytes         1本あたりのファイルサイズの目安。上限と「見積もり×目標時間」の小さい方。0なら指定なし
+     * @param maxHeight              解像度の上限。0なら無制限
+     * @param maxBitrateKbps         ビットレートの上限。0なら無制限
+     */
+    record Plan(String host, double estimateBytesPerSecond, long sizeLimitBytes, int maxHeight, long maxBitrateKbps) {
+
+        boolean constrained() {
+            return sizeLimitBytes > 0 || maxHeight > 0 || maxBitrateKbps > 0;
+        }
+
+        /**
+         * 通常モード(H.264優先)。サイズの目安は並べ替えの先頭に置き、目安に収まる中で最も大きいものを選ばせる。
+         * 解像度とビットレートの上限は絞り込みで指定し、該当がなければ並べ替えだけで選ぶ。
+         */
+        List<String> standardArgs() {
+            List<String> args = new ArrayList<>();
+            StringBuilder sort = new StringBuilder("vcodec:h264,");
+            if (sizeLimitBytes > 0) {
+                sort.append("size:").append(sizeToken()).append(',');
+            }
+            sort.append(maxHeight > 0 ? "res:" + maxHeight : "res").append(",acodec:m4a");
+            args.addAll(List.of("-S", sort.toString()));
+            String filter = filter(maxHeight);
+            if (!filter.isEmpty()) {
+                args.addAll(List.of("-f", "bv*" + filter + "+ba/b" + filter + "/bv*+ba/b"));
+            }
+            return args;
+        }
+
+        /**
+         * 互換モード。解像度は720pと上限の小さい方に絞る。
+         */
+        List<String> compatArgs() {
+            int height = maxHeight > 0 ? Math.min(COMPAT_MAX_HEIGHT, maxHeight) : COMPAT_MAX_HEIGHT;
+            String filter = "[height<=" + height + "]" + bitrateFilter();
+            List<String> args = new ArrayList<>(List.of("-f", "bv*" + filter + "+ba/b" + filter));
+            if (sizeLimitBytes > 0) {
+                args.addAll(List.of("-S", "size:" + sizeToken()));
+            }
+            return args;
+        }
+
+        List<String> animeThemesArgs() {
+            String filter = filter(maxHeight);
+            List<String> args = new ArrayList<>(List.of("-f", filter.isEmpty()
+                    ? ANIME_THEMES_FORMAT
+                    : "bv" + filter + "+ba/b" + filter + "/" + ANIME_THEMES_FORMAT));
+            if (sizeLimitBytes > 0) {
+                args.addAll(List.of("-S", "size:" + sizeToken()));
+            }
+            return args;
+        }
+
+        String describe() {
+            return String.format("ホスト=%s, 帯域の見積もり=%s, サイズの目安=%s, 解像度上限=%s, ビットレート上限=%s",
+                    host,
+                    estimateBytesPerSecond > 0 ? String.format("%.2f MB/s", estimateBytesPerSecond / 1_000_000) : "履歴なし",
+                    sizeLimitBytes > 0 ? sizeToken() + "iB" : "なし",
+                    maxHeight > 0 ? maxHeight + "p" : "なし",
+                    maxBitrateKbps > 0 ? maxBitrateKbps + " kbps" : "なし");
+        }
+
+        private String filter(int height) {
+            return (height > 0 ? "[height<=?" + height + "]" : "") + bitrateFilter();
+        }
+
+        private String bitrateFilter() {
+            return maxBitrateKbps > 0 ? "[tbr<=?" + maxBitrateKbps + "]" : "";
+        }
+
+        // yt-dlpの並べ替えでは M は 1024^2 として解釈される
+        private String sizeToken() {
+            return Math.max(1, sizeLimitBytes / (1024 * 1024)) + "M";
+        }
+    }
+
+    private final DownloadHistory history;
+    private final Map<String, Double> estimates = new HashMap<>();
+    private boolean seeded;
+
+    QualityPolicy(DownloadHistory history) {
+        this.history = history;
+    }
+
+    static QualityPolicy shared() {
+        return SHARED;
+    }
+
+    /**
+     * 現在の設定と見積もりから、URL群に適用する指定を求める。初回は履歴を読むため、FXスレッドからは呼ばない。
+     */
+    Plan plan(List<String> urls) {
+        String host = DownloadHistory.hostOf(urls);
+        double estimate = estimate(host);
+        long limit = DownloadConfig.getRateLimitBytesPerSecond();
+        if (limit > 0) {
+            estimate = estimate > 0 ? Math.min(estimate, limit) : limit;
+        }
+        long sizeLimit = DownloadConfig.getMaxFileSizeBytes();
+        long targetSeconds = DownloadConfig.getTargetSecondsPerVideo();
+        if (targetSeconds > 0 && estimate > 0) {
+            long budget = (long) (estimate * targetSeconds);
+            sizeLimit = sizeLimit > 0 ? Math.min(sizeLimit, budget) : budget;
+        }
+        return new Plan(host, estimate, sizeLimit, DownloadConfig.getMaxVideoHeight(), DownloadConfig.getMaxBitrateKbps());
+    }
+
+    /**
+     * 終了したジョブを見積もりへ反映する。履歴へ追記する前に呼ぶ(初回の読み込みで同じジョブを二重に数えないため)。
+     */
+    synchronized void observe(DownloadHistory.Entry entry) {
+        ensureSeeded();
+        update(entry);
+    }
+
+    synchronized double estimate(String host) {
+        ensureSeeded();
+        Double value = estimates.get(host);
+        if (value == null) {
+            value = estimates.get(ALL_HOSTS);
+        }
+        return value == null ? 0 : value;
+    }
+
+    private void update(DownloadHistory.Entry entry) {
+        if (entry.outcome() != DownloadHistory.Outcome.SUCCESS || entry.bytes() < MIN_SAMPLE_BYTES
+                || entry.durationMillis() < MIN_SAMPLE_MILLIS) {
+            return;
+        }
+        double sample = entry.bytesPerSecond();
+        estimates.merge(ALL_HOSTS, sample, (old, value) -> old + SMOOTHING * (value - old));
+        if (!"mixed".equals(entry.host()) && !"unknown".equals(entry.host())) {
+            estimates.merge(entry.host(), sample, (old, value) -> old + SMOOTHING * (value - old));
+        }
+    }
+
+    private void ensureSeeded() {
+        if (seeded) {
+            return;
+        }
+        seeded = true;
+        try {
+            history.entriesSince(System.currentTimeMillis() - SEED_WINDOW_MILLIS).forEach(this::update);
+        } catch (IOException e) {
+            AppLogger.logError("[QualityPolicy] 帯域の見積もりに使う履歴を読めませんでした", e);
+        }
+    }
+}
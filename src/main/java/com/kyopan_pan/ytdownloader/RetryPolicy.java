@@ -0,0 +1,164 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * yt-dlp/ffmpegの失敗を、出力と終了コードから「一時的」「混雑による制限」「形式なし」「恒久的」に分類し、
+ * 分類ごとの方針で再試行するかどうかと待ち時間を決める。
+ * 待ち時間は指数的に伸ばしたうえで揺らぎを加え(同時に失敗したジョブが一斉にやり直さないようにする)、
+ * 再試行の回数は分類ごとの上限に加えてジョブ全体の予算からも差し引く。
+ */
+final class RetryPolicy {
+
+    // 分類の判定は上から順に行う(「Unable to download webpage: HTTP Error 404」は恒久的な失敗とみなす)
+    private static final Pattern THROTTLED = Pattern.compile(
+            "(?i)HTTP Error 429|Too Many Requests|rate[- ]?limit|confirm you.?re not a bot|try again later");
+    private static final Pattern PERMANENT = Pattern.compile(
+            "(?i)Video unavailable|Private video|has been removed|not available in your country|Unsupported URL"
+                    + "|HTTP Error 40[14]|HTTP Error 410|members[- ]only|confirm your age|account .*terminated"
+                    + "|is not a valid URL|copyright");
+    private static final Pattern FORMAT_UNAVAILABLE = Pattern.compile(
+            "(?i)Requested format is not available|No video formats found|does not pass filter");
+    private static final int MAX_LOGGED_LINES = 20;
+
+    enum FailureKind {
+        TRANSIENT("一時的な失敗", 4, 2_000, 60_000),
+        THROTTLED("混雑による制限", 3, 30_000, 600_000),
+        // 形式の切り替え(互換モード)で対処するため、同じ条件での再試行はしない
+        FORMAT_UNAVAILABLE("形式なし", 0, 0, 0),
+        PERMANENT("恒久的な失敗", 0, 0, 0);
+
+        private final String label;
+        private final int maxRetries;
+        private final long baseMillis;
+        private final long capMillis;
+
+        FailureKind(String label, int maxRetries, long baseMillis, long capMillis) {
+            this.label = label;
+            this.maxRetries = maxRetries;
+            this.baseMillis = baseMillis;
+            this.capMillis = capMillis;
+        }
+
+        String label() {
+            return label;
+        }
+    }
+
+    private final int initialBudget;
+    private int budget;
+
+    /**
+     * @param budget ジョブ全体で許す再試行の回数
+     */
+    RetryPolicy(int budget) {
+        this.initialBudget = Math.max(0, budget);
+        this.budget = initialBudget;
+    }
+
+    /**
+     * URLの件数に応じたジョブ全体の予算。1件ごとに1回と、数件分の余裕を見込む。
+     */
+    static int budgetFor(int urls) {
+        return 4 + Math.max(0, urls);
+    }
+
+    /**
+     * 再試行してよければ待ち時間(ミリ秒)を返し、予算を1回分消費する。再試行しない場合は-1。
+     *
+     * @param retries この対象をこれまでに再試行した回数
+     */
+    synchronized long nextDelay(FailureKind kind, int retries) {
+        if (retries >= kind.maxRetries || budget <= 0) {
+            return -1;
+        }
+        budget--;
+        long ceiling = Math.min(kind.capMillis, kind.baseMillis << Math.min(retries, 20));
+        // 半分を固定、残り半分を乱数にする(待ち時間が極端に短くならない揺らぎ)
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    synchronized int remainingBudget() {
+        return budget;
+    }
+
+    /**
+     * これまでに行った(待ち時間を返した)再試行の回数。
+     */
+    synchronized int used() {
+        return initialBudget - budget;
+    }
+
+    static FailureKind classify(List<String> lines) {
+        FailureKind found = null;
+        for (String line : lines) {
+            FailureKind kind = classifyLine(line);
+            if (kind != null && (found == null || kind.ordinal() > found.ordinal())) {
+                found = kind;
+            }
+        }
+        // 手掛かりがない失敗は一時的なものとみなし、回数の上限の範囲でやり直す
+        return found != null ? found : FailureKind.TRANSIENT;
+    }
+
+    /**
+     * アプリ内の通信(分割ダウンロードや中継)で発生した例外を分類する。
+     */
+    static FailureKind classify(IOException error) {
+        String message = String.valueOf(error.getMessage());
+        if (message.contains("HTTP 429")) {
+            return FailureKind.THROTTLED;
+        }
+        return error instanceof SegmentedDownloader.FatalResponseException ? FailureKind.PERMANENT : FailureKind.TRANSIENT;
+    }
+
+    private static FailureKind classifyLine(String line) {
+        if (THROTTLED.matcher(line).find()) {
+            return FailureKind.THROTTLED;
+        }
+        if (PERMANENT.matcher(line).find()) {
+            return FailureKind.PERMANENT;
+        }
+        if (FORMAT_UNAVAILABLE.matcher(line).find()) {
+            return FailureKind.FORMAT_UNAVAILABLE;
+        }
+        return null;
+    }
+
+    /**
+     * 1回の実行で出力されたエラーと警告の行、およびアプリ内の通信の例外を分類用に保持する。
+     */
+    static final class FailureLog implements Consumer<String> {
+        private final Deque<String> lines = new ArrayDeque<>();
+        private IOException error;
+
+        @Override
+        public synchronized void accept(String line) {
+            if (!line.startsWith("ERROR") && !line.startsWith("WARNING")) {
+                return;
+            }
+            if (lines.size() == MAX_LOGGED_LINES) {
+                lines.removeFirst();
+            }
+            lines.addLast(line);
+        }
+
+        synchronized void record(IOException error) {
+            this.error = error;
+        }
+
+        synchronized FailureKind classify() {
+            if (error != null) {
+                return RetryPolicy.classify(error);
+            }
+            return RetryPolicy.classify(new ArrayList<>(lines));
+        }
+    }
+}
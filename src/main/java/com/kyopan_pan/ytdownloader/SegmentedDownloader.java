@@ -0,0 +1,681 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 静的なメディアファイル(AnimeThemesの `.webm` など)を、yt-dlpを介さずに範囲リクエストで分割して並行ダウンロードする。
+ * 接続ごとに速度を絞る配信元でも、複数の接続で合計の速度を上げられる。
+ * <ul>
+ *     <li>書き込みは事前に確保した `.part` ファイルへの位置指定書き込みで行い、完了後に本来の名前へ移動する</li>
+ *     <li>接続数は2本から始め、実測スループットが伸びる間だけ増やす。終わった接続は残りの最も大きい区間を半分引き取る</li>
+ *     <li>各区間の進み具合は `.ytdl` ファイルへ定期的に保存し、失敗後の再実行では未取得の部分だけを取り直す</li>
+ *     <li>完了時に区間が全体を隙間なく覆っていることとファイル長を検証する</li>
+ * </ul>
+ * 範囲リクエストに対応していない配信元では1本の接続でそのまま取得する。
+ */
+final class SegmentedDownloader {
+
+    private static final Set<String> MEDIA_EXTENSIONS = Set.of("webm", "mp4", "m4a", "mkv", "mov", "mp3", "ogg", "opus", "flac", "wav");
+    private static final Pattern CONTENT_RANGE_TOTAL = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final int MAX_CONNECTIONS = 8;
+    // これより小さい残りは分割しない
+    private static final long MIN_SPLIT_BYTES = 2L * 1024 * 1024;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    // 進みのないまま連続してこの回数失敗した区間は諦める
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BASE_MILLIS = 500;
+    private static final long TICK_MILLIS = 500;
+    private static final long SCALE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    // 接続を1本増やしてスループットがこの割合以上伸びた場合のみ、さらに増やす
+    private static final double SCALE_UP_GAIN = 1.1;
+    private static final long STALL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final AtomicInteger THREAD_SEQUENCE = new AtomicInteger();
+    // HTTP/2では複数のリクエストが1本の接続に多重化され、接続ごとの速度制限を回避できないためHTTP/1.1に固定する
+    static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(15))
+            .build();
+
+    private final String jobId;
+
+    SegmentedDownloader(String jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * @param uri       リダイレクト後の取得先
+     * @param length    ファイル長。不明な場合は-1
+     * @param ranges    範囲リクエストに対応しているか
+     * @param validator ETagまたはLast-Modified。途中再開時にファイルが差し替わっていないことの確認に使う
+     */
+    record Probe(URI uri, long length, boolean ranges, String validator) {
+    }
+
+    interface Listener {
+        void onProgress(long received, long total, double bytesPerSecond);
+    }
+
+    /**
+     * URLのパスがメディアファイルの拡張子で終わっていれば、yt-dlpを使わずに直接取得できるとみなす。
+     */
+    static boolean isDirectMediaUrl(String url) {
+        try {
+            String path = URI.create(url.trim()).getPath();
+            if (path == null) {
+                return false;
+            }
+            int dot = path.lastIndexOf('.');
+            return dot > path.lastIndexOf('/') && MEDIA_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * URLの末尾からファイル名を作る。
+     */
+    static String fileNameFor(URI uri) {
+        String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+        String last = URLDecoder.decode(path.substring(path.lastIndexOf('/') + 1), StandardCharsets.UTF_8);
+        String sanitized = last.replaceAll("[\\\\/:*?\"<>|]", "_").trim();
+        return sanitized.isBlank() || sanitized.startsWith(".") ? "download" + sanitized : sanitized;
+    }
+
+    static Path partFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    static Path stateFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".ytdl");
+    }
+
+    /**
+     * 先頭1バイトだけを要求し、ファイル長と範囲リクエストへの対応を調べる。
+     */
+    Probe probe(String url) throws IOException, InterruptedException {
+        HttpRequest request = request(URI.create(url.trim())).header("Range", "bytes=0-0").build();
+        HttpResponse<InputStream> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        // 範囲指定を無視された場合に本文全体を読まないよう、すぐに閉じる
+        response.body().close();
+        int status = response.statusCode();
+        String validator = response.headers().firstValue("ETag")
+                .filter(tag -> !tag.startsWith("W/"))
+                .or(() -> response.headers().firstValue("Last-Modified"))
+                .orElse(null);
+        if (status == 206) {
+            Matcher matcher = CONTENT_RANGE_TOTAL.matcher(response.headers().firstValue("Content-Range").orElse(""));
+            long length = matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+            return new Probe(response.uri(), length, length > 0, validator);
+        }
+        if (status == 200) {
+            long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            return new Probe(response.uri(), length, false, validator);
+        }
+        throw new IOException("HTTP " + status + ": " + url);
+    }
+
+    /**
+     * 取得してtargetへ保存する。失敗した場合、範囲リクエストで取得した途中までの内容は次回の再開用に残す。
+     *
+     * @param limit     全接続の合計の速度上限(bytes/s、0は無制限)。取得中に変わってもよい
+     * @param cancelled trueを返すと取得を打ち切り、{@link InterruptedIOException} を投げる
+     */
+    void download(Probe probe, Path target, LongSupplier limit, BooleanSupplier cancelled, Listener listener)
+            throws IOException, InterruptedException {
+        if (!probe.ranges()) {
+            log("範囲リクエストに未対応のため1接続で取得します: {}", probe.uri());
+            downloadSingle(probe, target, limit, cancelled, listener);
+            return;
+        }
+        Path part = partFile(target);
+        Path state = stateFile(target);
+        List<Segment> segments = loadState(state, part, probe);
+        if (segments == null) {
+            segments = new ArrayList<>(List.of(new Segment(0, 0, probe.length())));
+        } else {
+            log("前回の続きから再開します: {}", target.getFileName());
+        }
+        try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+            if (file.length() != probe.length()) {
+                file.setLength(probe.length());
+            }
+            Transfer transfer = new Transfer(probe, file.getChannel(), segments, state, limit, cancelled, listener);
+            transfer.run();
+        }
+        verify(segments, part, probe.length());
+        move(part, target);
+        Files.deleteIfExists(state);
+    }
+
+    private void downloadSingle(Probe probe, Path target, LongSupplier limit, BooleanSupplier cancelled, Listener listener)
+            throws IOException, InterruptedException {
+        Path part = partFile(target);
+        Files.deleteIfExists(stateFile(target));
+        HttpResponse<InputStream> response = CLIENT.send(request(probe.uri()).build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("HTTP " + response.statusCode() + ": " + probe.uri());
+        }
+        Pacer pacer = new Pacer(limit);
+        long received = 0;
+        long windowStart = System.nanoTime();
+        long windowBytes = 0;
+        try (InputStream in = response.body(); FileChannel channel = FileChannel.open(part,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] buffer = new byte[BUFFER_BYTES];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                if (cancelled.getAsBoolean()) {
+                    throw new InterruptedIOException("取得を中断しました");
+                }
+                writeFully(channel, buffer, read, received);
+                received += read;
+                windowBytes += read;
+                pacer.pace(read);
+                long now = System.nanoTime();
+                if (now - windowStart >= TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS)) {
+                    listener.onProgress(received, probe.length(), windowBytes * 1e9 / (now - windowStart));
+                    windowStart = now;
+                    windowBytes = 0;
+                }
+            }
+        }
+        if (probe.length() >= 0 && received != probe.length()) {
+            throw new EOFException("受信したサイズが一致しません (" + received + " / " + probe.length() + " bytes)");
+        }
+        move(part, target);
+    }
+
+    static HttpRequest.Builder request(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(30))
+                .header("User-Agent", "YtDownloader")
+                .GET();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(buffer, 0, length);
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    /**
+     * 区間が0からファイル長までを隙間も重なりもなく覆い、すべて取得済みであることを確かめる。
+     */
+    private static void verify(List<Segment> segments, Path part, long length) throws IOException {
+        List<Segment> sorted = new ArrayList<>(segments);
+        sorted.sort(Comparator.comparingLong(segment -> segment.start));
+        long covered = 0;
+        for (Segment segment : sorted) {
+            if (segment.start != covered || segment.position != segment.end) {
+                throw new IOException("取得できていない区間があります (" + covered + " bytes目以降)");
+            }
+            covered = segment.end;
+        }
+        if (covered != length || Files.size(part) != length) {
+            throw new IOException("ファイル長が一致しません (" + Files.size(part) + " / " + length + " bytes)");
+        }
+    }
+
+    private static void move(Path part, Path target) throws IOException {
+        try {
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 前回保存した区間の進み具合を読む。ファイル長と検証子が一致しない場合は最初から取り直すためnullを返す。
+     * 形式は1行目が「ファイル長 検証子」、以降が「開始 取得済み位置 終了」。
+     */
+    private static List<Segment> loadState(Path state, Path part, Probe probe) {
+        if (probe.validator() == null || !Files.isRegularFile(state) || !Files.isRegularFile(part)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(state, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.getFirst().equals(probe.length() + " " + probe.validator())
+                    || Files.size(part) != probe.length()) {
+                return null;
+            }
+            List<Segment> segments = new ArrayList<>();
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.trim().split(" ");
+                segments.add(new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+            return segments.isEmpty() ? null : segments;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void log(String template, Object arg) {
+        AppLogger.event(AppLogger.Level.INFO, "SegmentedDownloader", jobId, template, arg);
+    }
+
+    private void log(String template, Object arg1, Object arg2) {
+        AppLogger.event(AppLogger.Level.INFO, "SegmentedDownloader", jobId, template, arg1, arg2);
+    }
+
+    /**
+     * ファイルの一部分。[start, end) のうち [start, position) が取得済み。
+     * endは他の接続への分割で縮むことがあるため、positionとendの更新は {@link Transfer} のロック下で行う。
+     */
+    private static final class Segment {
+        private final long start;
+        private long position;
+        private long end;
+        // 読み込み中の接続だけを停滞時に割り込めるよう、読み込み中かどうかを記録する
+        private Thread reader;
+        private long lastProgressNanos = System.nanoTime();
+
+        private Segment(long start, long position, long end) {
+            this.start = start;
+            this.position = position;
+            this.end = end;
+        }
+
+        private long remaining() {
+            return end - position;
+        }
+    }
+
+    /**
+     * 合計の速度を上限以下に保つため、受信したバイト数に応じて送信時刻を割り当て、先行した分だけ待つ。
+     */
+    static final class Pacer {
+        private final LongSupplier limit;
+        private long nextNanos;
+
+        Pacer(LongSupplier limit) {
+            this.limit = limit;
+        }
+
+        void pace(int bytes) throws InterruptedIOException {
+            long bytesPerSecond = limit.getAsLong();
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                nextNanos = Math.max(nextNanos, now) + bytes * 1_000_000_000L / bytesPerSecond;
+                waitNanos = nextNanos - now;
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("取得を中断しました");
+                }
+            }
+        }
+    }
+
+    /**
+     * 1回の分割ダウンロード。呼び出したスレッドが接続数の調整と進捗の通知を行い、各接続は専用スレッドで動く。
+     */
+    private final class Transfer {
+        private final Probe probe;
+        private final FileChannel channel;
+        private final List<Segment> segments;
+        private final Path state;
+        private final BooleanSupplier cancelled;
+        private final Listener listener;
+        private final Pacer pacer;
+        private final AtomicLong received = new AtomicLong();
+        private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "segment-download-" + THREAD_SEQUENCE.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final List<Future<?>> running = new ArrayList<>();
+        private volatile boolean aborted;
+        private volatile IOException failure;
+
+        private Transfer(Probe probe, FileChannel channel, List<Segment> segments, Path state, LongSupplier limit,
+                         BooleanSupplier cancelled, Listener listener) {
+            this.probe = probe;
+            this.channel = channel;
+            this.segments = segments;
+            this.state = state;
+            this.cancelled = cancelled;
+            this.listener = listener;
+            this.pacer = new Pacer(limit);
+            segments.forEach(segment -> received.addAndGet(segment.position - segment.start));
+        }
+
+        private void run() throws IOException, InterruptedException {
+            synchronized (this) {
+                segments.stream().filter(segment -> segment.remaining() > 0).forEach(this::startWorker);
+                for (int i = running.size(); i < INITIAL_CONNECTIONS; i++) {
+                    Segment split = splitLargest();
+                    if (split == null) {
+                        break;
+                    }
+                    startWorker(split);
+                }
+            }
+            long windowStart = System.nanoTime();
+            long windowBytes = received.get();
+            long tickStart = windowStart;
+            long tickBytes = windowBytes;
+            double previousRate = 0;
+            boolean scaling = true;
+            try {
+                while (!allDone()) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    if (cancelled.getAsBoolean()) {
+                        throw new InterruptedIOException("取得を中断しました");
+                    }
+                    TimeUnit.MILLISECONDS.sleep(TICK_MILLIS);
+                    long now = System.nanoTime();
+                    long bytes = received.get();
+                    listener.onProgress(bytes, probe.length(), (bytes - tickBytes) * 1e9 / (now - tickStart));
+                    tickStart = now;
+                    tickBytes = bytes;
+                    interruptStalledReaders(now);
+                    if (now - windowStart < SCALE_WINDOW_NANOS) {
+                        continue;
+                    }
+                    double rate = (bytes - windowBytes) * 1e9 / (now - windowStart);
+                    windowStart = now;
+                    windowBytes = bytes;
+                    saveState();
+                    if (scaling) {
+                        scaling = scaleUp(rate, previousRate);
+                        previousRate = rate;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            } finally {
+                aborted = true;
+                interruptReaders();
+                workers.shutdown();
+                awaitWorkers();
+                saveState();
+            }
+        }
+
+        /**
+         * 前回接続を増やしてから十分に伸びていれば、もう1本増やす。これ以上増やさない場合はfalseを返す。
+         */
+        private boolean scaleUp(double rate, double previousRate) {
+            if (previousRate > 0 && rate < previousRate * SCALE_UP_GAIN) {
+                log("接続数を{}本に固定します ({})", activeConnections(), BandwidthGovernor.formatRate((long) rate));
+                return false;
+            }
+            synchronized (this) {
+                if (activeConnections() >= MAX_CONNECTIONS) {
+                    return false;
+                }
+                Segment split = splitLargest();
+                if (split == null) {
+                    return false;
+                }
+                startWorker(split);
+            }
+            return true;
+        }
+
+        private synchronized int activeConnections() {
+            return (int) running.stream().filter(future -> !future.isDone()).count();
+        }
+
+        private synchronized boolean allDone() {
+            return segments.stream().allMatch(segment -> segment.remaining() == 0)
+                    && running.stream().allMatch(Future::isDone);
+        }
+
+        private void startWorker(Segment segment) {
+            running.add(workers.submit(() -> work(segment)));
+        }
+
+        /**
+         * 残りの最も大きい区間の後半を新しい区間として切り出す。分割できるものがなければnull。
+         */
+        private synchronized Segment splitLargest() {
+            Segment largest = segments.stream().max(Comparator.comparingLong(Segment::remaining)).orElse(null);
+            if (largest == null || largest.remaining() < 2 * MIN_SPLIT_BYTES) {
+                return null;
+            }
+            long middle = largest.position + largest.remaining() / 2;
+            Segment tail = new Segment(middle, middle, largest.end);
+            largest.end = middle;
+            segments.add(tail);
+            return tail;
+        }
+
+        private void work(Segment first) {
+            Segment segment = first;
+            try {
+                while (segment != null && !aborted) {
+                    fetch(segment);
+                    segment = aborted ? null : splitLargest();
+                }
+            } catch (IOException e) {
+                if (!aborted && failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        private void fetch(Segment segment) throws IOException {
+            int failures = 0;
+            byte[] buffer = new byte[BUFFER_BYTES];
+            while (!aborted) {
+                long from;
+                long to;
+                synchronized (this) {
+                    if (segment.remaining() == 0) {
+                        return;
+                    }
+                    from = segment.position;
+                    to = segment.end - 1;
+                }
+                long before = from;
+                try {
+                    transfer(segment, from, to, buffer);
+                } catch (FatalResponseException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (aborted) {
+                        return;
+                    }
+                    long progressed;
+                    synchronized (this) {
+                        progressed = segment.position - before;
+                    }
+                    failures = progressed > 0 ? 1 : failures + 1;
+                    if (failures >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    log("区間の取得に失敗したため再試行します ({}): {}", segment.position, e.getMessage());
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(RETRY_BASE_MILLIS << (failures - 1));
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void transfer(Segment segment, long from, long to, byte[] buffer) throws IOException {
+            HttpRequest.Builder builder = request(probe.uri()).header("Range", "bytes=" + from + "-" + to);
+            if (probe.validator() != null) {
+                // 途中でファイルが差し替わっていれば206ではなく200が返る
+                builder.header("If-Range", probe.validator());
+            }
+            HttpResponse<InputStream> response;
+            beginBlocking(segment);
+            try {
+                response = CLIENT.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("取得を中断しました");
+            } finally {
+                endBlocking(segment);
+            }
+            try (InputStream in = response.body()) {
+                int status = response.statusCode();
+                if (status != 206) {
+                    if (status == 429 || status >= 500) {
+                        throw new IOException("HTTP " + status);
+                    }
+                    throw new FatalResponseException("範囲リクエストが拒否されました (HTTP " + status + ")");
+                }
+                while (true) {
+                    int read = read(segment, in, buffer);
+                    if (read < 0) {
+                        throw new EOFException("区間の途中で接続が閉じられました");
+                    }
+                    long position;
+                    int length;
+                    synchronized (this) {
+                        // 分割で区間が縮んでいれば、新しい終端を越える分は書かない(その先は別の接続が取得する)
+                        length = (int) Math.min(read, segment.remaining());
+                        position = segment.position;
+                    }
+                    writeFully(channel, buffer, length, position);
+                    boolean finished;
+                    synchronized (this) {
+                        segment.position += length;
+                        segment.lastProgressNanos = System.nanoTime();
+                        finished = segment.remaining() == 0;
+                    }
+                    received.addAndGet(length);
+                    if (finished) {
+                        return;
+                    }
+                    pacer.pace(length);
+                }
+            }
+        }
+
+        private int read(Segment segment, InputStream in, byte[] buffer) throws IOException {
+            beginBlocking(segment);
+            try {
+                return in.read(buffer);
+            } finally {
+                endBlocking(segment);
+            }
+        }
+
+        /**
+         * 通信で待っている間であることを記録する。割り込みは通信待ちの間にしか行わないため、ファイルへの書き込み
+         * (割り込まれるとチャネルが閉じられる)が割り込みの影響を受けることはない。
+         */
+        private synchronized void beginBlocking(Segment segment) throws InterruptedIOException {
+            if (aborted) {
+                throw new InterruptedIOException("取得を中断しました");
+            }
+            segment.reader = Thread.currentThread();
+        }
+
+        private synchronized void endBlocking(Segment segment) {
+            segment.reader = null;
+            // 通信を終えた直後に届いた割り込みを書き込みへ持ち越さない
+            Thread.interrupted();
+        }
+
+        private synchronized void interruptStalledReaders(long now) {
+            for (Segment segment : segments) {
+                if (segment.reader != null && now - segment.lastProgressNanos > STALL_NANOS) {
+                    log("{} bytes目から{}秒以上進まないため接続をやり直します", segment.position, TimeUnit.NANOSECONDS.toSeconds(STALL_NANOS));
+                    segment.lastProgressNanos = now;
+                    segment.reader.interrupt();
+                }
+            }
+        }
+
+        private synchronized void interruptReaders() {
+            segments.stream().filter(segment -> segment.reader != null).forEach(segment -> segment.reader.interrupt());
+        }
+
+        private void awaitWorkers() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (workers.awaitTermination(5, TimeUnit.SECONDS)) {
+                        break;
+                    }
+                    interruptReaders();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void saveState() {
+            if (probe.validator() == null) {
+                return;
+            }
+            StringBuilder builder = new StringBuilder();
+            builder.append(probe.length()).append(' ').append(probe.validator()).append('\n');
+            synchronized (this) {
+                for (Segment segment : segments) {
+                    builder.append(segment.start).append(' ').append(segment.position).append(' ').append(segment.end).append('\n');
+                }
+            }
+            try {
+                Files.writeString(state, builder.toString(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                log("再開用の情報を保存できませんでした: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 再試行しても結果が変わらない応答(範囲指定の拒否やファイルの差し替え)。
+     */
+    static final class FatalResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FatalResponseException(String message) {
+            super(message);
+        }
+    }
+}
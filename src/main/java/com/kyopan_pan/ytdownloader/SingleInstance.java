@@ -0,0 +1,180 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * アプリを1つだけ起動させる。`APP_DATA_DIR` の `instance.lock` をロックできた起動が本体となり、ロックの直後から `instance.sock` で待ち受ける。
+ * 画面の準備ができる前に受け取った内容は溜めておき、{@link #listen(Consumer)} で受け取り先が決まった時点で渡す。
+ * 2つ目以降の起動はJavaFXを立ち上げずに、引数のURLを本体へ送って終了する(URLがなければ本体のウィンドウを前面に出すだけ)。
+ * 送る内容はUTF-8の1行1URLで、送信側が書き込みを閉じると本体は受け付けた行数を "OK 件数" で返す。
+ */
+final class SingleInstance {
+
+    private static final Path LOCK_FILE = Paths.get(DownloadConfig.APP_DATA_DIR, "instance.lock");
+    private static final Path SOCKET_FILE = Paths.get(DownloadConfig.APP_DATA_DIR, "instance.sock");
+    private static final int MAX_MESSAGE_BYTES = 256 * 1024;
+    // 本体が起動直後でまだ待ち受けていない場合に備えて、接続を再試行する
+    private static final int CONNECT_ATTEMPTS = 20;
+    private static final long CONNECT_RETRY_MILLIS = 100;
+
+    // 本体である間はロックを保持し続ける(閉じると解放される)
+    private static FileChannel lockChannel;
+    private static FileLock lock;
+    // 受け取り先が決まるまでに届いた内容。SingleInstance.class で排他する
+    private static final List<String> pending = new ArrayList<>();
+    private static Consumer<String> handler;
+
+    private SingleInstance() {
+    }
+
+    /**
+     * ロックを取得できれば本体として待ち受けを始め、falseを返す。既に本体があれば引数を送り、trueを返す(呼び出し元は起動せずに終了する)。
+     * ロックファイルを扱えない環境では単独起動の制御を行わずにfalseを返す。
+     *
+     * @throws IOException 本体があるのに引数を受け付けなかった場合(本体が待ち受けを開始できなかったなど)
+     */
+    static boolean forwardToRunning(String[] args) throws IOException {
+        try {
+            Files.createDirectories(LOCK_FILE.getParent());
+            FileChannel channel = FileChannel.open(LOCK_FILE, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock acquired = channel.tryLock();
+            if (acquired != null) {
+                lockChannel = channel;
+                lock = acquired;
+                // 画面を組み立てている間に起動された場合も受け取れるよう、JavaFXの起動を待たずに待ち受ける
+                bind();
+                return false;
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Single-instance lock unavailable; starting normally. reason=" + e.getMessage());
+            return false;
+        }
+        String message = String.join("\n", args);
+        try {
+            String reply = send(message);
+            System.out.println("Forwarded to the running instance: " + reply);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("送信中に中断されました", e);
+        }
+        return true;
+    }
+
+    /**
+     * 受け取った内容(URLを改行で区切った文字列。空なら前面に出す要求)を渡す先を設定する。それまでに届いていた内容は順に渡す。
+     * 以降は待ち受け用のスレッドで {@code handler} を呼ぶ。本体でなければ何もしない。
+     */
+    static void listen(Consumer<String> handler) {
+        if (lock == null) {
+            return;
+        }
+        // 溜めた分と新しく届いた分の順序が入れ替わらないよう、排他したまま渡す
+        synchronized (SingleInstance.class) {
+            SingleInstance.handler = handler;
+            pending.forEach(handler);
+            pending.clear();
+        }
+    }
+
+    private static void bind() {
+        ServerSocketChannel server;
+        try {
+            // ロックを持っているため、残っているソケットファイルは前回の本体のもの
+            Files.deleteIfExists(SOCKET_FILE);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(SOCKET_FILE));
+        } catch (IOException e) {
+            AppLogger.logError("[SingleInstance] 待ち受けを開始できませんでした: " + SOCKET_FILE, e);
+            return;
+        }
+        Thread thread = new Thread(() -> acceptLoop(server), "single-instance-listener");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                Files.deleteIfExists(SOCKET_FILE);
+            } catch (IOException ignored) {
+                // 次の本体が起動時に削除する
+            }
+        }, "single-instance-cleanup"));
+    }
+
+    private static void acceptLoop(ServerSocketChannel server) {
+        while (server.isOpen()) {
+            try (SocketChannel client = server.accept()) {
+                String message = readAll(client).strip();
+                long count = message.lines().filter(line -> !line.isBlank()).count();
+                AppLogger.event(AppLogger.Level.INFO, "SingleInstance", null, "別の起動からURLを受け取りました ({} 件)", count);
+                deliver(message);
+                write(client, "OK " + count + "\n");
+            } catch (IOException e) {
+                if (!server.isOpen()) {
+                    return;
+                }
+                AppLogger.logError("[SingleInstance] 別の起動からの受信に失敗しました", e);
+            }
+        }
+    }
+
+    private static synchronized void deliver(String message) {
+        if (handler == null) {
+            pending.add(message);
+        } else {
+            handler.accept(message);
+        }
+    }
+
+    private static String send(String message) throws IOException, InterruptedException {
+        IOException last = null;
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+            try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET_FILE))) {
+                write(channel, message);
+                channel.shutdownOutput();
+                return readAll(channel).strip();
+            } catch (IOException e) {
+                last = e;
+                Thread.sleep(CONNECT_RETRY_MILLIS);
+            }
+        }
+        throw last;
+    }
+
+    private static void write(SocketChannel channel, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readAll(SocketChannel channel) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            bytes.write(buffer.array(), 0, buffer.limit());
+            buffer.clear();
+            if (bytes.size() > MAX_MESSAGE_BYTES) {
+                throw new IOException("受信した内容が大きすぎます");
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
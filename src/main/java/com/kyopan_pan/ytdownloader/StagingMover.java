@@ -0,0 +1,214 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * 作業用のローカルフォルダ(ステージング)で完成したファイルを、保存先(NASなど遅い場所)へ移す。
+ * 別のボリュームへは `transferTo` で保存先の隠しファイルへ写し、大きさを確かめてから同じフォルダ内で名前を変えるため、
+ * 保存先の一覧には完成したファイルだけが現れる。保存先を飽和させないよう、同時に移すのは {@code maxConcurrentMoves} 件まで。
+ * 移せなかったファイルはステージングに残し、次の走査で再び移す。
+ * 保存先に同じ名前・同じ大きさのファイルが既にあれば、ステージングでは見えなかった取得済みのファイルとみなして移さずに削除する。
+ */
+final class StagingMover {
+
+    private static final String TEMP_PREFIX = ".moving-";
+    // transferTo の1回あたりの量。OSによっては一度に2GB程度までしか転送しない
+    private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+
+    private final ExecutorService movers;
+    private final ExecutorService scanner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "staging-scan");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile BiConsumer<Path, Path> movedListener;
+    private volatile Predicate<Path> inProgress = path -> false;
+
+    StagingMover(int maxConcurrentMoves) {
+        movers = Executors.newFixedThreadPool(Math.max(1, maxConcurrentMoves), runnable -> {
+            Thread thread = new Thread(runnable, "staging-mover");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * 移し終えたファイルの元のパスと保存先のパスを受け取る。移動用のスレッドで呼ぶ。
+     */
+    void setMovedListener(BiConsumer<Path, Path> listener) {
+        this.movedListener = listener;
+    }
+
+    /**
+     * 書き込み中のため移してはいけないファイルを判定する。途中ファイルの名前にならない出力(パイプで直接書き込むものなど)に使う。
+     */
+    void setInProgressFilter(Predicate<Path> inProgress) {
+        this.inProgress = inProgress;
+    }
+
+    /**
+     * ステージングの完成したファイルを探し、移動を予約する。ステージングを使っていなければ何もしない。
+     * 走査(NASでなくても件数に比例して時間がかかる)は専用のスレッドで行う。
+     */
+    void sweep() {
+        scanner.execute(() -> sweep(false));
+    }
+
+    /**
+     * 前回の終了時にステージングに残ったファイルを移す。MP4の構造が壊れているもの(変換の途中で終了したもの)は移さない。
+     */
+    void sweepLeftovers() {
+        scanner.execute(() -> sweep(true));
+    }
+
+    private void sweep(boolean verify) {
+        String staging = DownloadConfig.getStagingDir();
+        if (staging == null) {
+            return;
+        }
+        Path stagingRoot = Paths.get(staging);
+        Path finalRoot = Paths.get(DownloadConfig.getDownloadDir());
+        List<Path> files;
+        try {
+            if (!Files.isDirectory(stagingRoot)) {
+                return;
+            }
+            Predicate<Path> busy = inProgress;
+            files = OutputLayout.scan(stagingRoot).stream()
+                    .filter(path -> !DownloadExecutor.isPartialFile(path) && !busy.test(path))
+                    .toList();
+        } catch (IOException e) {
+            AppLogger.logError("[StagingMover] ステージングを走査できません: " + stagingRoot, e);
+            return;
+        }
+        for (Path file : files) {
+            if (verify && !looksComplete(file)) {
+                AppLogger.log("[StagingMover] 構造が壊れているため保存先へ移しません: " + file);
+                continue;
+            }
+            if (inFlight.add(file)) {
+                movers.execute(() -> {
+                    try {
+                        move(file, finalRoot.resolve(stagingRoot.relativize(file)));
+                    } finally {
+                        inFlight.remove(file);
+                    }
+                });
+            }
+        }
+    }
+
+    private void move(Path source, Path requested) {
+        long start = System.nanoTime();
+        Path target = null;
+        try {
+            Files.createDirectories(requested.getParent());
+            long size = Files.size(source);
+            if (Files.exists(requested) && Files.size(requested) == size) {
+                AppLogger.event(AppLogger.Level.WARN, "StagingMover", null,
+                        "保存先に同じ名前・大きさのファイルがあるため移さずに削除します: {}", requested);
+                Files.delete(source);
+                notifyMoved(source, requested);
+                return;
+            }
+            target = uniqueTarget(requested);
+            if (!target.equals(requested)) {
+                AppLogger.event(AppLogger.Level.WARN, "StagingMover", null,
+                        "保存先に大きさの異なる同名のファイルがあるため、別の名前で保存します: {}", target);
+            }
+            if (Files.getFileStore(source).equals(Files.getFileStore(target.getParent()))) {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                copyAndRename(source, target, size);
+                Files.delete(source);
+            }
+            AppLogger.event(AppLogger.Level.INFO, "StagingMover", null, "保存先へ移しました: {} ({} ms)", target,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            notifyMoved(source, target);
+        } catch (IOException | RuntimeException e) {
+            AppLogger.logError("[StagingMover] 保存先へ移せませんでした。次の走査で再試行します: " + source
+                    + (target != null ? " -> " + target : ""), e);
+        }
+    }
+
+    private void notifyMoved(Path source, Path target) {
+        BiConsumer<Path, Path> listener = movedListener;
+        if (listener != null) {
+            listener.accept(source, target);
+        }
+    }
+
+    /**
+     * 保存先の隠しファイルへ写し、大きさが一致したら最終的な名前へ変える。更新日時は元のファイルに合わせる(一覧の並び順のため)。
+     */
+    private static void copyAndRename(Path source, Path target, long size) throws IOException {
+        Path temp = target.resolveSibling(TEMP_PREFIX + target.getFileName());
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                while (position < size) {
+                    long transferred = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+                out.force(true);
+            }
+            long copied = Files.size(temp);
+            if (copied != size) {
+                throw new IOException("移動先の大きさが一致しません (" + copied + " / " + size + " bytes)");
+            }
+            Files.setLastModifiedTime(temp, Files.getLastModifiedTime(source));
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Path uniqueTarget(Path requested) {
+        String name = requested.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        Path target = requested;
+        for (int i = 1; Files.exists(target); i++) {
+            target = requested.resolveSibling(base + " (" + i + ")" + extension);
+        }
+        return target;
+    }
+
+    private static boolean looksComplete(Path file) {
+        if (!Mp4Inspector.isSupported(file)) {
+            return true;
+        }
+        try {
+            return Mp4Inspector.inspect(file).valid();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * HTTPで取得した動画をffmpegの標準入力へ流し込む中継。yt-dlpの標準出力をそのままつなぐ場合と違い、
+ * 受信バイト数から正確な進捗を出せ、帯域の上限を取得中に変えられ、通信が途切れてもffmpegを起動し直さずに
+ * 範囲リクエストで続きから再開できる。
+ * ffmpegの読み込みが追いつかない間はパイプへの書き込みが止まり、その間は次の受信も行わない(受信側のバッファは増えない)。
+ */
+final class StreamRelay {
+
+    private static final int BUFFER_BYTES = 256 * 1024;
+    // 進みのないまま連続してこの回数失敗したら諦める
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BASE_MILLIS = 500;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final String jobId;
+    // 受信用の配列は再試行をまたいで使い回す
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+
+    StreamRelay(String jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * sinkへの書き込みに失敗した(ffmpegが終了した)ことを表す。通信の失敗と違い再試行しない。
+     */
+    static final class SinkClosedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private SinkClosedException(IOException cause) {
+            super("ffmpegへの書き込みに失敗しました: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * uriの内容をすべてsinkへ書き込み、書き込んだバイト数を返す。sinkは閉じない。
+     *
+     * @param limit     速度上限(bytes/s、0は無制限)。取得中に変わってもよい
+     * @param cancelled trueを返すと中継を打ち切り、{@link InterruptedIOException} を投げる
+     */
+    long relay(URI uri, OutputStream sink, LongSupplier limit, BooleanSupplier cancelled, SegmentedDownloader.Listener listener)
+            throws IOException {
+        SegmentedDownloader.Pacer pacer = new SegmentedDownloader.Pacer(limit);
+        long written = 0;
+        long total = -1;
+        String validator = null;
+        int failures = 0;
+        long windowStart = System.nanoTime();
+        long windowBytes = 0;
+        while (true) {
+            long before = written;
+            try {
+                HttpResponse<InputStream> response = send(uri, written, validator);
+                try (InputStream in = response.body()) {
+                    if (written == 0) {
+                        if (response.statusCode() != 200) {
+                            throw failure(response.statusCode());
+                        }
+                        total = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                        validator = response.headers().firstValue("ETag")
+                                .filter(tag -> !tag.startsWith("W/"))
+                                .or(() -> response.headers().firstValue("Last-Modified"))
+                                .orElse(null);
+                    } else if (response.statusCode() != 206) {
+                        // 範囲指定が無視されたか、ファイルが差し替わった。先頭から送り直すとffmpegへの入力が壊れる
+                        throw new SegmentedDownloader.FatalResponseException("途中からの再開に対応していない応答です (HTTP " + response.statusCode() + ")");
+                    }
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        if (cancelled.getAsBoolean()) {
+                            throw new InterruptedIOException("中継を中断しました");
+                        }
+                        try {
+                            sink.write(buffer, 0, read);
+                        } catch (IOException e) {
+                            throw new SinkClosedException(e);
+                        }
+                        written += read;
+                        windowBytes += read;
+                        pacer.pace(read);
+                        long now = System.nanoTime();
+                        if (now - windowStart >= REPORT_INTERVAL_NANOS) {
+                            listener.onProgress(written, total, windowBytes * 1e9 / (now - windowStart));
+                            windowStart = now;
+                            windowBytes = 0;
+                        }
+                    }
+                }
+                if (total < 0 || written == total) {
+                    flush(sink);
+                    listener.onProgress(written, total, 0);
+                    return written;
+                }
+                throw new EOFException("受信が途中で終わりました (" + written + " / " + total + " bytes)");
+            } catch (SinkClosedException | InterruptedIOException | SegmentedDownloader.FatalResponseException e) {
+                throw e;
+            } catch (IOException e) {
+                if (cancelled.getAsBoolean()) {
+                    throw new InterruptedIOException("中継を中断しました");
+                }
+                // 検証子がなければ差し替えを検出できないため、途中からの再開はしない
+                if (written > 0 && (validator == null || total < 0)) {
+                    throw e;
+                }
+                failures = written > before ? 1 : failures + 1;
+                if (failures >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                AppLogger.event(AppLogger.Level.INFO, "StreamRelay", jobId, "通信が途切れたため {} bytes目から再開します: {}", written, e.getMessage());
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RETRY_BASE_MILLIS << (failures - 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("中継を中断しました");
+                }
+            }
+        }
+    }
+
+    private static HttpResponse<InputStream> send(URI uri, long from, String validator) throws IOException {
+        HttpRequest.Builder builder = SegmentedDownloader.request(uri);
+        if (from > 0) {
+            builder.header("Range", "bytes=" + from + "-").header("If-Range", validator);
+        }
+        try {
+            return SegmentedDownloader.CLIENT.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("中継を中断しました");
+        }
+    }
+
+    /**
+     * 混雑やサーバー側の一時的な失敗のみ再試行の対象にする。
+     */
+    private static IOException failure(int status) {
+        if (status == 429 || status >= 500) {
+            return new IOException("HTTP " + status);
+        }
+        return new SegmentedDownloader.FatalResponseException("HTTP " + status);
+    }
+
+    private static void flush(OutputStream sink) throws SinkClosedException {
+        try {
+            sink.flush();
+        } catch (IOException e) {
+            throw new SinkClosedException(e);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.kyopan_pan.ytdownloader;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * ダウンロード一覧のサムネイルを、表示中のセルから要求された分だけ生成・保持する。
+ * 抽出はffmpegを使う小さな有界プールで行い、結果は「パス+更新日時」をキーに APP_DATA_DIR 配下のディスクキャッシュへ保存する。
+ * デコード済みの画像はメモリ量で上限を決めたLRUにファイルごとに保持し、項目数が増えてもメモリ使用量が一定に収まるようにする。
+ * FXスレッドからの参照はメモリ上の表だけを見て、更新日時の確認(NASでは遅い)は読み込み用のスレッドで行う。
+ * ディスクキャッシュは合計の大きさに上限を設け、起動時と一定数の生成ごとに最も古く使われたものから削除する。
+ */
+final class ThumbnailCache {
+
+    // セルに表示する大きさ。HiDPIでもぼやけないよう、デコードは2倍の解像度で行う
+    static final double DISPLAY_WIDTH = 64;
+    static final double DISPLAY_HEIGHT = 36;
+    private static final int DECODE_WIDTH = 128;
+    private static final int DECODE_HEIGHT = 72;
+    private static final long MEMORY_BUDGET_BYTES = 24L * 1024 * 1024;
+    private static final long DISK_BUDGET_BYTES = 128L * 1024 * 1024;
+    // 上限を超えたら、この割合まで減らす(生成のたびに削除が走らないよう余裕を持たせる)
+    private static final double DISK_PRUNE_TARGET = 0.8;
+    private static final int PRUNE_EVERY_EXTRACTIONS = 256;
+    private static final int WORKERS = 2;
+    private static final long FFMPEG_TIMEOUT_SECONDS = 20;
+    // 冒頭の黒画面を避けるため少し先のフレームを使う。短い動画では先頭に切り替える
+    private static final String SEEK_SECONDS = "3";
+
+    private final Path cacheDir = Paths.get(DownloadConfig.APP_DATA_DIR, "thumbnails");
+    private final Map<File, Cached> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<String> failed = Collections.synchronizedSet(new HashSet<>());
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger extractions = new AtomicInteger();
+    private long memoryBytes;
+
+    private record Cached(long modified, Image image) {
+    }
+
+    ThumbnailCache() {
+        executor = new ThreadPoolExecutor(WORKERS, WORKERS, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "thumbnail-loader");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.execute(this::pruneDiskCache);
+    }
+
+    /**
+     * メモリ上にあるサムネイルを即座に返す。ファイルの状態は確認しない(FXスレッド向け)。無ければnull。
+     */
+    Image getCached(File file) {
+        synchronized (memory) {
+            Cached cached = memory.get(file);
+            return cached != null ? cached.image() : null;
+        }
+    }
+
+    /**
+     * サムネイルの読み込みを要求する。読み込み用のスレッドで更新日時を確かめ、メモリ上のものと同じであれば何もしない。
+     * 新しく読み込んだ場合は完了時にFXスレッドで {@code onLoaded} を呼ぶ。
+     * セルが別の項目に再利用されたりスクロールで画面外に出た場合は、戻り値の {@link Request#cancel()} で取り消す。
+     */
+    Request request(File file, Consumer<Image> onLoaded) {
+        Request request = new Request();
+        request.future = executor.submit(() -> {
+            if (request.cancelled) {
+                return;
+            }
+            long modified = file.lastModified();
+            synchronized (memory) {
+                Cached cached = memory.get(file);
+                if (cached != null && cached.modified() == modified) {
+                    return;
+                }
+            }
+            String key = keyOf(file, modified);
+            if (failed.contains(key)) {
+                return;
+            }
+            Image image = load(file, modified, key);
+            if (image != null && !request.cancelled) {
+                Platform.runLater(() -> {
+                    if (!request.cancelled) {
+                        onLoaded.accept(image);
+                    }
+                });
+            }
+        });
+        return request;
+    }
+
+    private Image load(File file, long modified, String key) {
+        Path thumbnail = cacheDir.resolve(key + ".jpg");
+        if (!Files.exists(thumbnail) && !new File(DownloadConfig.getFfmpegPath()).canExecute()) {
+            // 初回起動でffmpegの準備が終わる前。失敗として記録せず、次の表示時に再度試す
+            return null;
+        }
+        try {
+            if (Files.exists(thumbnail)) {
+                // 削除の順番を決めるため、使ったことを更新日時で記録する
+                Files.setLastModifiedTime(thumbnail, FileTime.fromMillis(System.currentTimeMillis()));
+            } else if (!extract(file, thumbnail)) {
+                failed.add(key);
+                return null;
+            } else if (extractions.incrementAndGet() % PRUNE_EVERY_EXTRACTIONS == 0) {
+                executor.execute(this::pruneDiskCache);
+            }
+            Image image = new Image(thumbnail.toUri().toString(), DECODE_WIDTH, DECODE_HEIGHT, true, true, false);
+            if (image.isError()) {
+                Files.deleteIfExists(thumbnail);
+                failed.add(key);
+                return null;
+            }
+            remember(file, modified, image);
+            return image;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IOException e) {
+            AppLogger.logError("[ThumbnailCache] サムネイルの生成に失敗しました: " + file.getName(), e);
+            failed.add(key);
+            return null;
+        }
+    }
+
+    private boolean extract(File file, Path thumbnail) throws IOException, InterruptedException {
+        Files.createDirectories(cacheDir);
+        Path partial = thumbnail.resolveSibling(thumbnail.getFileName() + ".part.jpg");
+        try {
+            if (!runFfmpeg(file, partial, SEEK_SECONDS) && !runFfmpeg(file, partial, "0")) {
+                return false;
+            }
+            try {
+                Files.move(partial, thumbnail, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial, thumbnail, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    private boolean runFfmpeg(File file, Path output, String seek) throws IOException, InterruptedException {
+        List<String> command = List.of(
+                DownloadConfig.getFfmpegPath(),
+                "-hide_banner",
+                "-loglevel", "error",
+                "-ss", seek,
+                "-i", file.getAbsolutePath(),
+                "-frames:v", "1",
+                "-vf", "scale=" + DECODE_WIDTH * 2 + ":-2",
+                "-q:v", "5",
+                "-threads", "1",
+                "-y",
+                output.toString()
+        );
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            if (!process.waitFor(FFMPEG_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                AppLogger.log("[ThumbnailCache] サムネイル生成がタイムアウトしました: " + file.getName());
+                return false;
+            }
+            return process.exitValue() == 0 && Files.size(output) > 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            // 取り消し(割り込み)やタイムアウトの場合もffmpegを残さない
+            process.destroyForcibly();
+        }
+    }
+
+    private void remember(File file, long modified, Image image) {
+        long bytes = imageBytes(image);
+        synchronized (memory) {
+            Cached previous = memory.put(file, new Cached(modified, image));
+            memoryBytes += bytes - (previous != null ? imageBytes(previous.image()) : 0);
+            Iterator<Map.Entry<File, Cached>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > MEMORY_BUDGET_BYTES && eldest.hasNext()) {
+                memoryBytes -= imageBytes(eldest.next().getValue().image());
+                eldest.remove();
+            }
+        }
+    }
+
+    private static long imageBytes(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+
+    /**
+     * ディスクキャッシュが上限を超えていれば、最後に使われた日時の古いものから削除する。
+     */
+    private void pruneDiskCache() {
+        if (!Files.isDirectory(cacheDir)) {
+            return;
+        }
+        record Entry(Path path, long size, long used) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    entries.add(new Entry(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    total += attributes.size();
+                }
+            }
+        } catch (IOException e) {
+            AppLogger.logError("[ThumbnailCache] サムネイルのキャッシュを確認できませんでした: " + cacheDir, e);
+            return;
+        }
+        if (total <= DISK_BUDGET_BYTES) {
+            return;
+        }
+        entries.sort(Comparator.comparingLong(Entry::used));
+        long target = (long) (DISK_BUDGET_BYTES * DISK_PRUNE_TARGET);
+        int deleted = 0;
+        for (Entry entry : entries) {
+            if (total <= target) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(entry.path());
+                total -= entry.size();
+                deleted++;
+            } catch (IOException e) {
+                AppLogger.logError("[ThumbnailCache] 古いサムネイルを削除できませんでした: " + entry.path(), e);
+            }
+        }
+        AppLogger.log("[ThumbnailCache] 古いサムネイルを " + deleted + " 件削除しました (残り " + DiskSpaceGuard.formatBytes(total) + ")");
+    }
+
+    private static String keyOf(File file, long modified) {
+        String source = file.getAbsolutePath() + "|" + modified;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(source.hashCode());
+        }
+    }
+
+    final class Request {
+        private volatile boolean cancelled;
+        private volatile Future<?> future;
+
+        /**
+         * 未着手なら待ち行列から外し、実行中ならffmpegを止める。
+         */
+        void cancel() {
+            cancelled = true;
+            Future<?> current = future;
+            if (current != null) {
+                current.cancel(true);
+                executor.remove((Runnable) current);
+            }
+        }
+    }
+}
@@ -19,11 +19,32 @@ public final class UserSettings {
     private double windowWidth;
     private double windowHeight;
     private String downloadDirectory;
+    private long rateLimitBytesPerSecond;
+    private boolean skipArchived;
+    private boolean verboseLogging;
+    private int maxVideoHeight;
+    private long maxBitrateKbps;
+    private long maxFileSizeBytes;
+    private long targetSecondsPerVideo;
+    private OutputLayout outputLayout;
+    private String stagingDirectory;
 
-    private UserSettings(double windowWidth, double windowHeight, String downloadDirectory) {
+    private UserSettings(double windowWidth, double windowHeight, String downloadDirectory, long rateLimitBytesPerSecond,
+                         boolean skipArchived, boolean verboseLogging, int maxVideoHeight, long maxBitrateKbps,
+                         long maxFileSizeBytes, long targetSecondsPerVideo, OutputLayout outputLayout,
+                         String stagingDirectory) {
         this.windowWidth = windowWidth;
         this.windowHeight = windowHeight;
         this.downloadDirectory = downloadDirectory;
+        this.rateLimitBytesPerSecond = rateLimitBytesPerSecond;
+        this.skipArchived = skipArchived;
+        this.verboseLogging = verboseLogging;
+        this.maxVideoHeight = maxVideoHeight;
+        this.maxBitrateKbps = maxBitrateKbps;
+        this.maxFileSizeBytes = maxFileSizeBytes;
+        this.targetSecondsPerVideo = targetSecondsPerVideo;
+        this.outputLayout = outputLayout;
+        this.stagingDirectory = stagingDirectory;
     }
 
     public static UserSettings load() {
@@ -39,8 +60,38 @@ public final class UserSettings {
         double width = parseDimension(props.getProperty("window.width"), DEFAULT_WIDTH, MIN_WIDTH);
         double height = parseDimension(props.getProperty("window.height"), DEFAULT_HEIGHT, MIN_HEIGHT);
         String dir = normalizeDir(props.getProperty("download.dir", DownloadConfig.getDefaultDownloadDir()));
+        long rateLimit = parseLong(props.getProperty("download.rateLimit"), 0);
         DownloadConfig.setDownloadDir(dir);
-        return new UserSettings(width, height, dir);
+        boolean skipArchived = Boolean.parseBoolean(props.getProperty("download.skipArchived", "true"));
+        DownloadConfig.setRateLimitBytesPerSecond(rateLimit);
+        DownloadConfig.setArchiveEnabled(skipArchived);
+        // 設定画面には出さず、必要な場合だけ設定ファイルで調整する
+        DownloadConfig.setTerminationGraceMillis(parseLong(props.getProperty("process.terminationGraceMillis"),
+                DownloadConfig.getTerminationGraceMillis()));
+        DownloadConfig.setStreamRelayEnabled(Boolean.parseBoolean(props.getProperty("pipeline.streamRelay",
+                String.valueOf(DownloadConfig.isStreamRelayEnabled()))));
+        boolean verboseLogging = Boolean.parseBoolean(props.getProperty("log.verbose", "false"));
+        AppLogger.setVerbose(verboseLogging);
+        // 設定画面には出さず、必要な場合だけ設定ファイルで調整する
+        AppLogger.setMaxMegabytes((int) Math.min(Integer.MAX_VALUE, parseLong(props.getProperty("log.maxMegabytes"),
+                LogStore.DEFAULT_MAX_SEGMENTS)));
+        int maxHeight = (int) Math.min(Integer.MAX_VALUE, parseLong(props.getProperty("quality.maxHeight"), 0));
+        long maxBitrate = parseLong(props.getProperty("quality.maxBitrateKbps"), 0);
+        long maxFileSize = parseLong(props.getProperty("quality.maxFileSize"), 0);
+        long targetSeconds = parseLong(props.getProperty("quality.targetSeconds"), 0);
+        DownloadConfig.setMaxVideoHeight(maxHeight);
+        DownloadConfig.setMaxBitrateKbps(maxBitrate);
+        DownloadConfig.setMaxFileSizeBytes(maxFileSize);
+        DownloadConfig.setTargetSecondsPerVideo(targetSeconds);
+        OutputLayout layout = OutputLayout.fromName(props.getProperty("download.layout"));
+        DownloadConfig.setOutputLayout(layout);
+        String stagingDir = props.getProperty("download.stagingDir", "").trim();
+        DownloadConfig.setStagingDir(stagingDir);
+        // 設定画面には出さず、必要な場合だけ設定ファイルで調整する
+        DownloadConfig.setMaxConcurrentMoves((int) Math.min(Integer.MAX_VALUE, parseLong(
+                props.getProperty("staging.maxConcurrentMoves"), DownloadConfig.getMaxConcurrentMoves())));
+        return new UserSettings(width, height, dir, rateLimit, skipArchived, verboseLogging, maxHeight, maxBitrate,
+                maxFileSize, targetSeconds, layout, stagingDir);
     }
 
     public void save() {
@@ -48,6 +99,19 @@ public final class UserSettings {
         props.setProperty("window.width", String.valueOf(windowWidth));
         props.setProperty("window.height", String.valueOf(windowHeight));
         props.setProperty("download.dir", downloadDirectory);
+        props.setProperty("download.rateLimit", String.valueOf(rateLimitBytesPerSecond));
+        props.setProperty("download.skipArchived", String.valueOf(skipArchived));
+        props.setProperty("download.layout", outputLayout.name());
+        props.setProperty("download.stagingDir", stagingDirectory);
+        props.setProperty("staging.maxConcurrentMoves", String.valueOf(DownloadConfig.getMaxConcurrentMoves()));
+        props.setProperty("log.verbose", String.valueOf(verboseLogging));
+        props.setProperty("log.maxMegabytes", String.valueOf(AppLogger.getMaxMegabytes()));
+        props.setProperty("quality.maxHeight", String.valueOf(maxVideoHeight));
+        props.setProperty("quality.maxBitrateKbps", String.valueOf(maxBitrateKbps));
+        props.setProperty("quality.maxFileSize", String.valueOf(maxFileSizeBytes));
+        props.setProperty("quality.targetSeconds", String.valueOf(targetSecondsPerVideo));
+        props.setProperty("process.terminationGraceMillis", String.valueOf(DownloadConfig.getTerminationGraceMillis()));
+        props.setProperty("pipeline.streamRelay", String.valueOf(DownloadConfig.isStreamRelayEnabled()));
 
         Path file = settingsFile();
         try {
@@ -85,6 +149,91 @@ public final class UserSettings {
         DownloadConfig.setDownloadDir(this.downloadDirectory);
     }
 
+    public long getRateLimitBytesPerSecond() {
+        return rateLimitBytesPerSecond;
+    }
+
+    public void setRateLimitBytesPerSecond(long rateLimitBytesPerSecond) {
+        this.rateLimitBytesPerSecond = Math.max(0, rateLimitBytesPerSecond);
+        DownloadConfig.setRateLimitBytesPerSecond(this.rateLimitBytesPerSecond);
+    }
+
+    public boolean isSkipArchived() {
+        return skipArchived;
+    }
+
+    public void setSkipArchived(boolean skipArchived) {
+        this.skipArchived = skipArchived;
+        DownloadConfig.setArchiveEnabled(skipArchived);
+    }
+
+    public boolean isVerboseLogging() {
+        return verboseLogging;
+    }
+
+    public void setVerboseLogging(boolean verboseLogging) {
+        this.verboseLogging = verboseLogging;
+        AppLogger.setVerbose(verboseLogging);
+    }
+
+    public int getMaxVideoHeight() {
+        return maxVideoHeight;
+    }
+
+    public void setMaxVideoHeight(int maxVideoHeight) {
+        this.maxVideoHeight = Math.max(0, maxVideoHeight);
+        DownloadConfig.setMaxVideoHeight(this.maxVideoHeight);
+    }
+
+    public long getMaxBitrateKbps() {
+        return maxBitrateKbps;
+    }
+
+    public void setMaxBitrateKbps(long maxBitrateKbps) {
+        this.maxBitrateKbps = Math.max(0, maxBitrateKbps);
+        DownloadConfig.setMaxBitrateKbps(this.maxBitrateKbps);
+    }
+
+    public long getMaxFileSizeBytes() {
+        return maxFileSizeBytes;
+    }
+
+    public void setMaxFileSizeBytes(long maxFileSizeBytes) {
+        this.maxFileSizeBytes = Math.max(0, maxFileSizeBytes);
+        DownloadConfig.setMaxFileSizeBytes(this.maxFileSizeBytes);
+    }
+
+    public long getTargetSecondsPerVideo() {
+        return targetSecondsPerVideo;
+    }
+
+    public void setTargetSecondsPerVideo(long targetSecondsPerVideo) {
+        this.targetSecondsPerVideo = Math.max(0, targetSecondsPerVideo);
+        DownloadConfig.setTargetSecondsPerVideo(this.targetSecondsPerVideo);
+    }
+
+    OutputLayout getOutputLayout() {
+        return outputLayout;
+    }
+
+    void setOutputLayout(OutputLayout outputLayout) {
+        this.outputLayout = outputLayout == null ? OutputLayout.FLAT : outputLayout;
+        DownloadConfig.setOutputLayout(this.outputLayout);
+    }
+
+    /**
+     * ステージングのフォルダ。空文字なら使わない。
+     */
+    public String getStagingDirectory() {
+        return stagingDirectory;
+    }
+
+    public void setStagingDirectory(String stagingDirectory) {
+        this.stagingDirectory = stagingDirectory == null || stagingDirectory.isBlank()
+                ? "" : Paths.get(stagingDirectory.trim()).toAbsolutePath().toString();
+        DownloadConfig.setStagingDir(this.stagingDirectory);
+    }
+
     private static Path settingsFile() {
         return Paths.get(DownloadConfig.APP_DATA_DIR, SETTINGS_FILE_NAME);
     }
@@ -101,6 +250,17 @@ public final class UserSettings {
         }
     }
 
+    private static long parseLong(String raw, long fallback) {
+        if (raw == null || raw.isBlank()) {
+            return fallback;
+        }
+        try {
+            return Math.max(0, Long.parseLong(raw.trim()));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
     private static String normalizeDir(String dir) {
         if (dir == null || dir.isBlank()) {
             return DownloadConfig.getDefaultDownloadDir();
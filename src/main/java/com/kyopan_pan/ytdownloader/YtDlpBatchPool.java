@@ -0,0 +1,453 @@
+package com.kyopan_pan.ytdownloader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 複数URLを1つのyt-dlpプロセスへ `--batch-file -` でまとめて渡し、Pythonの起動と抽出器読み込みのコストを償却するワーカープール。
+ * yt-dlpはバッチファイルをEOFまで読み切ってから処理を始めるため、ワーカーはURLの束ごとに1プロセスを起動し、
+ * 出力に埋め込んだマーカー行からURL単位の開始・進捗・完了を振り分ける。
+ * 実行中に割り込んだ優先URL({@link #submitUrgent(String)})は、通常のURLを処理中のプロセスを1つ止めてでも先に1件単独で処理する。
+ * 止めたプロセスの未完了分は帯域の再割り当てと同じく先頭へ戻し、yt-dlpが.partから再開する。
+ */
+final class YtDlpBatchPool {
+
+    static final int DEFAULT_WORKERS = 2;
+    // 1プロセスで処理するURLの上限。これを超えたら新しいプロセスに入れ替える
+    private static final int MAX_URLS_PER_PROCESS = 25;
+    // この時間出力が途絶えたワーカーは不調とみなして停止し、未着手のURLを別プロセスへ回す
+    private static final long STALL_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final long HEALTH_CHECK_INTERVAL_SECONDS = 5;
+
+    private static final String BEGIN_MARKER = "[ytd-begin]";
+    private static final String PROGRESS_MARKER = "[ytd-progress]";
+    private static final String DONE_MARKER = "[ytd-done]";
+    private static final Pattern PERCENT_PATTERN = Pattern.compile("(\\d{1,3}(?:\\.\\d+)?)%");
+
+    private final int workers;
+    private final BandwidthGovernor bandwidthGovernor;
+    private final ExecutorService executor;
+    private final AtomicInteger processCounter = new AtomicInteger();
+    // 実行中の run() の待ち行列。優先URLの割り込みに使う
+    private volatile RunQueue activeQueue;
+
+    YtDlpBatchPool(int workers, BandwidthGovernor bandwidthGovernor) {
+        this.workers = Math.max(1, workers);
+        this.bandwidthGovernor = bandwidthGovernor;
+        this.executor = Executors.newFixedThreadPool(this.workers, runnable -> {
+            Thread thread = new Thread(runnable, "yt-dlp-batch-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    interface ProcessHooks extends ProcessLauncher {
+        /**
+         * プロセス起動前に呼ばれ、束の処理に必要な空き容量を予約する。容量が空くまでブロックしうる。
+         * 束がボリュームに収まらない場合は {@link IOException} で失敗させる。
+         */
+        DiskSpaceGuard.Reservation admit(List<String> chunk) throws IOException, InterruptedException;
+    }
+
+    interface Listener {
+        void onBegin(String url);
+
+        void onProgress(String url, double percent);
+
+        /**
+         * @param filepath yt-dlpが最終的に書き出したファイル
+         */
+        void onDone(String url, String filepath);
+
+        void onLog(String workerLabel, String line);
+
+        /**
+         * yt-dlpのエラー行を、原因と推定したURLとともに通知する。失敗の分類に使う。
+         */
+        void onError(String url, String line);
+    }
+
+    /**
+     * 指定URLをワーカーに分配してダウンロードし、完了マーカーを確認できたURLの集合を返す。
+     *
+     * @param options 出力テンプレートやフォーマット指定などURL以外のyt-dlp引数
+     */
+    Set<String> run(List<String> urls, List<String> options, ProcessHooks hooks, Listener listener, BooleanSupplier cancelled)
+            throws InterruptedException {
+        Set<String> completed = ConcurrentHashMap.newKeySet();
+        int activeWorkers = Math.max(1, Math.min(workers, new LinkedHashSet<>(urls).size()));
+        RunQueue queue = new RunQueue(urls, activeWorkers);
+        activeQueue = queue;
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < activeWorkers; i++) {
+            futures.add(executor.submit(() -> {
+                try {
+                    workLoop(queue, completed, options, hooks, listener, cancelled);
+                } finally {
+                    queue.workerExited();
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            AppLogger.logError("[YtDlpBatchPool] ワーカーが異常終了しました", e.getCause());
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw e;
+        } finally {
+            queue.close();
+            activeQueue = null;
+        }
+        return completed;
+    }
+
+    /**
+     * 実行中の run() へ優先URLを割り込ませる。すべてのワーカーが通常のURLを処理中であれば、そのうち1つのプロセスを止めて空ける。
+     * 実行中の run() がない、または終わりかけで受け付けられない場合はfalse。受け付けたURLの結果は実行中の run() の戻り値に含まれる。
+     */
+    boolean submitUrgent(String url) {
+        RunQueue queue = activeQueue;
+        if (queue == null || !queue.offerUrgent(url)) {
+            return false;
+        }
+        AppLogger.log("[YtDlpBatchPool] 優先URLを受け付けました: " + url);
+        queue.preemptIfSaturated();
+        return true;
+    }
+
+    private void workLoop(RunQueue queue, Set<String> completed, List<String> options,
+                          ProcessHooks hooks, Listener listener, BooleanSupplier cancelled) throws IOException, InterruptedException {
+        while (!cancelled.getAsBoolean()) {
+            List<String> chunk = queue.take();
+            if (chunk.isEmpty()) {
+                return;
+            }
+            BatchOutcome outcome = runProcess(queue, chunk, options, hooks, listener, cancelled);
+            completed.addAll(outcome.done());
+            if (outcome.stalled() || outcome.restarted()) {
+                // 健全性チェックで停止したプロセスの未着手分は、新しいプロセスで再処理する。
+                // 帯域の再割り当てで止めた場合は、途中のURLも.partから再開させる
+                for (int i = chunk.size() - 1; i >= 0; i--) {
+                    String url = chunk.get(i);
+                    boolean retry = outcome.restarted()
+                            ? !outcome.done().contains(url)
+                            : !outcome.started().contains(url);
+                    if (retry) {
+                        queue.requeue(url);
+                    }
+                }
+            }
+        }
+    }
+
+    private BatchOutcome runProcess(RunQueue queue, List<String> chunk, List<String> options, ProcessHooks hooks, Listener listener,
+                                    BooleanSupplier cancelled) throws IOException, InterruptedException {
+        String label = "yt-dlp#" + processCounter.incrementAndGet();
+        DiskSpaceGuard.Reservation reservation = hooks.admit(chunk);
+        // 割り込んだ優先URLのプロセスには、並行する通常のURLのプロセスより多くの帯域を配分する
+        DownloadExecutor.JobPriority priority = queue.isUrgent(chunk) ? DownloadExecutor.JobPriority.HIGH : DownloadExecutor.JobPriority.LOW;
+        try (BandwidthGovernor.Lease lease = bandwidthGovernor.acquire(label, priority.bandwidthWeight(), true)) {
+            return runProcess(queue, label, chunk, options, lease, hooks, listener, cancelled);
+        } finally {
+            reservation.close();
+        }
+    }
+
+    private BatchOutcome runProcess(RunQueue queue, String label, List<String> chunk, List<String> options, BandwidthGovernor.Lease lease,
+                                    ProcessHooks hooks, Listener listener, BooleanSupplier cancelled) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(DownloadConfig.getYtDlpPath());
+        command.addAll(DownloadExecutor.rateLimitArgs(lease.limitForStart()));
+        command.addAll(options);
+        command.addAll(List.of(
+                "--ignore-errors",
+                "--newline",
+                "--progress",
+                "--no-simulate",
+                "--progress-template", "download:" + PROGRESS_MARKER + " %(info.original_url)s %(progress._percent_str)s %(progress.speed)s",
+                "--print", "before_dl:" + BEGIN_MARKER + " %(original_url)s",
+                "--print", "after_move:" + DONE_MARKER + " %(original_url)s %(filepath)s",
+                "--batch-file", "-"
+        ));
+
+        Set<String> started = ConcurrentHashMap.newKeySet();
+        Set<String> done = ConcurrentHashMap.newKeySet();
+        AtomicLong lastActivity = new AtomicLong(System.nanoTime());
+
+        AppLogger.log("[YtDlpBatchPool] " + label + " を起動 (URL " + chunk.size() + "件)");
+        Process process = hooks.start(command);
+        AtomicBoolean restarted = new AtomicBoolean();
+        Runnable restart = () -> {
+            restarted.set(true);
+            ProcessTreeTerminator.terminateAsync(process, DownloadConfig.getTerminationGraceMillis());
+        };
+        lease.setRestartHandler(restart);
+        queue.started(label, chunk, restart);
+        try {
+            Thread reader = new Thread(() -> readOutput(process, label, chunk, started, done, lastActivity, listener, lease));
+            reader.setDaemon(true);
+            reader.start();
+
+            try (Writer writer = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)) {
+                for (String url : chunk) {
+                    writer.write(url);
+                    writer.write('\n');
+                }
+            } catch (IOException e) {
+                AppLogger.log("[YtDlpBatchPool] " + label + " へのURL送信に失敗: " + e.getMessage());
+            }
+
+            boolean stalled = false;
+            while (!process.waitFor(HEALTH_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS)) {
+                if (cancelled.getAsBoolean()) {
+                    break;
+                }
+                long idle = System.nanoTime() - lastActivity.get();
+                if (idle > STALL_TIMEOUT_NANOS) {
+                    AppLogger.log("[YtDlpBatchPool] " + label + " の出力が" + TimeUnit.NANOSECONDS.toSeconds(idle) + "秒途絶えたため再起動します。");
+                    stalled = true;
+                    // 応答のないプロセスには終了要求を送っても無駄なため、子孫ごと即座に強制終了する
+                    ProcessTreeTerminator.terminate(List.of(process), 0);
+                    break;
+                }
+            }
+            reader.join(TimeUnit.SECONDS.toMillis(HEALTH_CHECK_INTERVAL_SECONDS));
+            int exitCode = process.isAlive() ? -1 : process.exitValue();
+            AppLogger.log("[YtDlpBatchPool] " + label + " 終了。exit=" + exitCode + " / 完了 " + done.size() + "/" + chunk.size());
+            return new BatchOutcome(Set.copyOf(started), Set.copyOf(done), stalled, restarted.get() && exitCode != 0);
+        } finally {
+            queue.finished(label);
+            lease.setRestartHandler(null);
+            hooks.finished(process);
+        }
+    }
+
+    private void readOutput(Process process, String label, List<String> chunk, Set<String> started, Set<String> done,
+                            AtomicLong lastActivity, Listener listener, BandwidthGovernor.Lease lease) {
+        String current = null;
+        Set<String> failedBeforeStart = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lastActivity.set(System.nanoTime());
+                if (line.startsWith(BEGIN_MARKER)) {
+                    current = resolveBegin(line.substring(BEGIN_MARKER.length()).trim(), chunk, started);
+                    if (current != null && started.add(current)) {
+                        listener.onBegin(current);
+                    }
+                } else if (line.startsWith(PROGRESS_MARKER)) {
+                    String rest = line.substring(PROGRESS_MARKER.length()).trim();
+                    int space = rest.indexOf(' ');
+                    String url = resolveUrl(space > 0 ? rest.substring(0, space) : rest, current, chunk);
+                    Matcher matcher = PERCENT_PATTERN.matcher(rest);
+                    if (url != null && matcher.find()) {
+                        listener.onProgress(url, Double.parseDouble(matcher.group(1)));
+                    }
+                    reportSpeed(rest, lease);
+                } else if (line.startsWith(DONE_MARKER)) {
+                    // URLは空白を含まないため、最初の空白以降をファイルパスとして扱う
+                    String rest = line.substring(DONE_MARKER.length()).trim();
+                    int space = rest.indexOf(' ');
+                    String url = resolveUrl(space > 0 ? rest.substring(0, space) : rest, current, chunk);
+                    String filepath = space > 0 ? rest.substring(space + 1) : null;
+                    if (url != null && done.add(url)) {
+                        listener.onDone(url, filepath);
+                    }
+                } else {
+                    if (line.startsWith("ERROR")) {
+                        String url = attributeError(line, current, chunk, started, done, failedBeforeStart);
+                        if (url != null) {
+                            listener.onError(url, line);
+                        }
+                    }
+                    listener.onLog(label, line);
+                }
+            }
+        } catch (IOException e) {
+            AppLogger.logError("[YtDlpBatchPool] " + label + " の出力読み取りで例外が発生しました", e);
+        }
+    }
+
+    private void reportSpeed(String progressFields, BandwidthGovernor.Lease lease) {
+        // 末尾のフィールドは %(progress.speed)s (bytes/s、不明時はNA/None)
+        String speed = progressFields.substring(progressFields.lastIndexOf(' ') + 1);
+        try {
+            lease.reportThroughput(Double.parseDouble(speed));
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    /**
+     * yt-dlpが報告したURLを投入したURLに対応付ける。正規化などで一致しない場合は直前に開始したURLとみなす。
+     */
+    private String resolveUrl(String reported, String current, List<String> chunk) {
+        return chunk.contains(reported) ? reported : current;
+    }
+
+    /**
+     * エラー行を投入したURLに対応付ける。行に動画IDが含まれていればそのURL、なければ処理中のURLとみなす。
+     * 処理中のURLがない場合は、開始前の情報取得で失敗した未開始の先頭URLとみなす。
+     */
+    private String attributeError(String line, String current, List<String> chunk, Set<String> started, Set<String> done,
+                                  Set<String> failedBeforeStart) {
+        for (String url : chunk) {
+            String key = DownloadArchive.canonicalKey(url);
+            if (key != null && line.contains(key.substring(key.indexOf(' ') + 1))) {
+                return url;
+            }
+        }
+        if (current != null && !done.contains(current)) {
+            return current;
+        }
+        for (String url : chunk) {
+            if (!started.contains(url) && !done.contains(url) && !failedBeforeStart.contains(url)) {
+                failedBeforeStart.add(url);
+                return url;
+            }
+        }
+        return null;
+    }
+
+    private String resolveBegin(String reported, List<String> chunk, Set<String> started) {
+        if (chunk.contains(reported)) {
+            return reported;
+        }
+        // yt-dlpは投入順に処理するため、未開始の先頭URLとみなす
+        for (String url : chunk) {
+            if (!started.contains(url)) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 1回の run() の待ち行列。優先URLは通常のURLより先に、1件ずつ単独のプロセスで処理する。
+     */
+    private static final class RunQueue {
+        private final Deque<String> urgent = new ArrayDeque<>();
+        private final Deque<String> pending;
+        private final Set<String> urgentUrls = new HashSet<>();
+        // 実行中のプロセス(ラベル→束と停止処理)
+        private final Map<String, Running> running = new LinkedHashMap<>();
+        private final int workers;
+        private int liveWorkers;
+        private boolean closed;
+
+        private RunQueue(List<String> urls, int workers) {
+            this.pending = new ArrayDeque<>(new LinkedHashSet<>(urls));
+            this.workers = workers;
+            this.liveWorkers = workers;
+        }
+
+        private record Running(List<String> chunk, Runnable preempt) {
+        }
+
+        private synchronized List<String> take() {
+            if (!urgent.isEmpty()) {
+                return List.of(urgent.pollFirst());
+            }
+            // ワーカー間で偏らないよう、残りを均等に分けた量だけ取り出す
+            int share = Math.max(1, (pending.size() + workers - 1) / workers);
+            int size = Math.min(MAX_URLS_PER_PROCESS, share);
+            List<String> chunk = new ArrayList<>(size);
+            String url;
+            while (chunk.size() < size && (url = pending.pollFirst()) != null) {
+                chunk.add(url);
+            }
+            return chunk;
+        }
+
+        private synchronized boolean isUrgent(List<String> chunk) {
+            return chunk.stream().anyMatch(urgentUrls::contains);
+        }
+
+        private synchronized void requeue(String url) {
+            (urgentUrls.contains(url) ? urgent : pending).addFirst(url);
+        }
+
+        private synchronized boolean offerUrgent(String url) {
+            if (closed || liveWorkers == 0) {
+                return false;
+            }
+            urgentUrls.add(url);
+            urgent.addLast(url);
+            return true;
+        }
+
+        /**
+         * 空いているワーカーがなく、優先URLを処理中のプロセスもなければ、通常のURLを処理中のプロセスを1つ止める。
+         */
+        private void preemptIfSaturated() {
+            Running victim = null;
+            synchronized (this) {
+                if (running.size() < liveWorkers) {
+                    return;
+                }
+                for (Running candidate : running.values()) {
+                    if (isUrgent(candidate.chunk())) {
+                        return;
+                    }
+                    victim = candidate;
+                }
+            }
+            if (victim != null) {
+                AppLogger.log("[YtDlpBatchPool] 優先URLのため、処理中のプロセスを中断します (未完了分は後で再開)");
+                victim.preempt().run();
+            }
+        }
+
+        private synchronized void started(String label, List<String> chunk, Runnable preempt) {
+            running.put(label, new Running(chunk, preempt));
+        }
+
+        private synchronized void finished(String label) {
+            running.remove(label);
+        }
+
+        private synchronized void workerExited() {
+            liveWorkers--;
+        }
+
+        private synchronized void close() {
+            closed = true;
+        }
+    }
+
+    private record BatchOutcome(Set<String> started, Set<String> done, boolean stalled, boolean restarted) {
+    }
+}
@@ -1,6 +1,7 @@
 module com.kyopan_pan.ytdownloader {
     requires javafx.controls;
     requires javafx.fxml;
+    requires java.net.http;
     
     opens com.kyopan_pan.ytdownloader to javafx.fxml;
     exports com.kyopan_pan.ytdownloader;
@@ -0,0 +1,89 @@
+package com.kyopan_pan.ytdownloader;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BandwidthGovernorTest {
+
+    private static final long MB = 1_000_000;
+
+    @Test
+    void slowJobKeepsItsDemandBoundLimitAfterRestart() {
+        AtomicLong budget = new AtomicLong(10 * MB);
+        BandwidthGovernor governor = new BandwidthGovernor(budget::get);
+        BandwidthGovernor.Lease lease = governor.acquire("job", 1.0, false);
+
+        assertEquals(10 * MB, lease.limitForStart());
+        // 回線が3MB/sで頭打ち
+        lease.reportThroughput(3 * MB);
+        governor.rebalance();
+        long bound = lease.assignedLimit();
+        assertEquals(3.6 * MB, bound, 1);
+
+        // 再起動後も同じ速度しか出ない。使用率は約0.83で、全体の取り分へ戻してはいけない
+        for (int round = 0; round < 5; round++) {
+            assertEquals(bound, lease.limitForStart());
+            governor.rebalance();
+            assertEquals(bound, lease.assignedLimit(), "再起動直後に割り当てが変わった");
+            lease.reportThroughput(3 * MB);
+            governor.rebalance();
+            assertEquals(bound, lease.assignedLimit(), 1, "round " + round);
+        }
+        lease.close();
+    }
+
+    @Test
+    void boundJobIsReleasedWhenItUsesItsLimitAgain() {
+        BandwidthGovernor governor = new BandwidthGovernor(() -> 10 * MB);
+        BandwidthGovernor.Lease lease = governor.acquire("job", 1.0, false);
+        lease.limitForStart();
+        lease.reportThroughput(3 * MB);
+        governor.rebalance();
+        assertTrue(lease.estimatedDemand() < 10 * MB);
+
+        lease.limitForStart();
+        lease.reportThroughput(3.5 * MB);
+        governor.rebalance();
+
+        assertEquals(Double.MAX_VALUE, lease.estimatedDemand());
+        // 割り当てを使い切っているため、予算との差は補正係数で埋められる
+        assertTrue(lease.assignedLimit() >= 10 * MB);
+        lease.close();
+    }
+
+    @Test
+    void minimumLimitIsChargedAgainstTheBudget() {
+        long budget = 200 * 1024;
+        BandwidthGovernor governor = new BandwidthGovernor(() -> budget);
+        BandwidthGovernor.Lease slow = governor.acquire("slow", 1.0, false);
+        BandwidthGovernor.Lease fast = governor.acquire("fast", 1.0, false);
+        slow.limitForStart();
+        fast.limitForStart();
+        // 需要は12KB/sだが、割り当ては下限の64KB/sへ切り上げられる
+        slow.reportThroughput(10 * 1024);
+        fast.reportThroughput(100 * 1024);
+        governor.rebalance();
+
+        assertEquals(64 * 1024, slow.assignedLimit());
+        assertEquals(budget - 64 * 1024, fast.assignedLimit());
+        slow.close();
+        fast.close();
+    }
+
+    @Test
+    void weightsSplitTheBudget() {
+        BandwidthGovernor governor = new BandwidthGovernor(() -> 9 * MB);
+        BandwidthGovernor.Lease single = governor.acquire("single", 2.0, false);
+        BandwidthGovernor.Lease batch = governor.acquire("batch", 1.0, false);
+
+        assertEquals(6 * MB, single.assignedLimit());
+        assertEquals(3 * MB, batch.assignedLimit());
+        batch.close();
+        assertEquals(9 * MB, single.assignedLimit());
+        single.close();
+    }
+}
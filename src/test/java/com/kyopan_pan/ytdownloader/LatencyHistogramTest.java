@@ -0,0 +1,129 @@
+package com.kyopan_pan.ytdownloader;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(0, histogram.percentile(99));
+    }
+
+    @Test
+    void valuesBelow128AreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 0; millis < 128; millis++) {
+            histogram.record(millis);
+        }
+        assertEquals(128, histogram.count());
+        assertEquals(63, histogram.percentile(50));
+        assertEquals(127, histogram.percentile(100));
+        assertEquals(0, histogram.percentile(0));
+    }
+
+    @Test
+    void largerValuesStayWithinRelativeError() {
+        Random random = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            long value = 128 + (long) (Math.pow(2, random.nextDouble() * 30));
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            // 上端より大きい値をもう1件入れ、最大値での切り詰めを避けて区間の上端を取り出す
+            histogram.record(Long.MAX_VALUE);
+            long upper = histogram.percentile(50);
+            assertTrue(upper >= value, value + " -> " + upper);
+            assertTrue(upper - value <= value / 64.0, value + " -> " + upper);
+        }
+    }
+
+    @Test
+    void bucketsAreContiguous() {
+        // 隣り合う値は同じ区間か次の区間に入り、上端は値とともに増える
+        long previousUpper = -1;
+        for (long value = 0; value < 1 << 16; value++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE);
+            long upper = histogram.percentile(50);
+            assertTrue(upper >= value);
+            assertTrue(upper >= previousUpper);
+            if (upper != previousUpper) {
+                assertEquals(previousUpper + 1, value, "区間の間に隙間があります");
+            }
+            previousUpper = upper;
+        }
+    }
+
+    @Test
+    void percentilesFollowTheDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 10L);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(10_000, histogram.max());
+        assertEquals(5000, histogram.percentile(50), 5000 / 64.0);
+        assertEquals(9500, histogram.percentile(95), 9500 / 64.0);
+        assertEquals(9900, histogram.percentile(99), 9900 / 64.0);
+        assertEquals(10_000, histogram.percentile(100));
+        assertTrue(histogram.percentile(50) <= histogram.percentile(95));
+        assertTrue(histogram.percentile(95) <= histogram.percentile(99));
+    }
+
+    @Test
+    void outOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(2, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals((1L << 31) - 1, histogram.max());
+        assertEquals((1L << 31) - 1, histogram.percentile(100));
+    }
+
+    @Test
+    void encodeAndParseRoundTrip() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(11);
+        for (int i = 0; i < 500; i++) {
+            histogram.record(random.nextInt(600_000));
+        }
+        LatencyHistogram restored = LatencyHistogram.parse(histogram.encode());
+        assertEquals(histogram.count(), restored.count());
+        assertEquals(histogram.encode(), restored.encode());
+        for (double percentile : new double[]{50, 90, 95}) {
+            assertEquals(histogram.percentile(percentile), restored.percentile(percentile));
+        }
+        // 最大値は区間の上端として復元される
+        assertTrue(restored.max() >= histogram.max());
+        assertTrue(restored.max() - histogram.max() <= histogram.max() / 64.0);
+    }
+
+    @Test
+    void parseSkipsBrokenEntries() {
+        LatencyHistogram histogram = LatencyHistogram.parse("3:2,x:1,5,-1:4,99999:1,7:0,10:1");
+        assertEquals(3, histogram.count());
+        assertEquals(3, histogram.percentile(50));
+        assertEquals(10, histogram.percentile(100));
+        assertEquals(0, LatencyHistogram.parse(null).count());
+        assertEquals(0, LatencyHistogram.parse(" ").count());
+    }
+
+    @Test
+    void clearResetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.clear();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+        assertEquals("", histogram.encode());
+    }
+}
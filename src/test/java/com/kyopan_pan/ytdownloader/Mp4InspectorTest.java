@@ -0,0 +1,157 @@
+package com.kyopan_pan.ytdownloader;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Mp4InspectorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void faststartFileReportsTracksAndDuration() throws IOException {
+        Path path = write("faststart.mp4", concat(box("ftyp", ftyp()), moov(), box("mdat", new byte[4096])));
+
+        Mp4Inspector.Info info = Mp4Inspector.inspect(path);
+
+        assertTrue(info.valid(), info.problems().toString());
+        assertEquals(205.5, info.durationSeconds(), 1e-9);
+        assertEquals(1920, info.width());
+        assertEquals(1080, info.height());
+        assertEquals("avc1", info.videoCodec());
+        assertEquals("mp4a", info.audioCodec());
+        assertTrue(info.faststart());
+        assertEquals("3:26 · 1920×1080 · avc1/mp4a", info.brief());
+    }
+
+    @Test
+    void moovAfterMdatIsValidButNotFaststart() throws IOException {
+        Path path = write("moov-last.mp4", concat(box("ftyp", ftyp()), box("mdat", new byte[4096]), moov()));
+
+        Mp4Inspector.Info info = Mp4Inspector.inspect(path);
+
+        assertTrue(info.valid(), info.problems().toString());
+        assertEquals(205.5, info.durationSeconds(), 1e-9);
+        assertEquals(1920, info.width());
+        assertEquals(1080, info.height());
+        assertEquals("avc1", info.videoCodec());
+        assertEquals("mp4a", info.audioCodec());
+        assertFalse(info.faststart());
+    }
+
+    @Test
+    void truncatedMdatIsReported() throws IOException {
+        byte[] complete = concat(box("ftyp", ftyp()), moov(), box("mdat", new byte[4096]));
+        // 書き込みが途中で止まり、mdat の宣言より短く終わったファイル
+        byte[] truncated = new byte[complete.length - 1000];
+        System.arraycopy(complete, 0, truncated, 0, truncated.length);
+        Path path = write("truncated.mp4", truncated);
+
+        Mp4Inspector.Info info = Mp4Inspector.inspect(path);
+
+        assertFalse(info.valid());
+        assertTrue(info.problems().stream().anyMatch(problem -> problem.startsWith("ファイルが途中で終わっています: mdat に 1000 bytes 不足")),
+                info.problems().toString());
+        // moov は読めているため、長さやコーデックは取り出せる
+        assertEquals("avc1", info.videoCodec());
+        assertTrue(info.brief().endsWith("破損の可能性"), info.brief());
+    }
+
+    @Test
+    void hugeLargeSizeIsReportedAsTruncated() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.writeBytes(box("ftyp", new byte[8]));
+        file.writeBytes(largeBox("mdat", Long.MAX_VALUE - 4, new byte[32]));
+        Path path = write("overflow.mp4", file.toByteArray());
+
+        Mp4Inspector.Info info = Mp4Inspector.inspect(path);
+
+        assertFalse(info.valid());
+        assertTrue(info.problems().stream().anyMatch(problem -> problem.startsWith("ファイルが途中で終わっています")),
+                info.problems().toString());
+    }
+
+    @Test
+    void hugeLargeSizeInsideMoovIsIgnored() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.writeBytes(box("ftyp", new byte[8]));
+        file.writeBytes(box("moov", largeBox("trak", Long.MAX_VALUE - 4, new byte[32])));
+        Path path = write("moov-overflow.mp4", file.toByteArray());
+
+        Mp4Inspector.Info info = Mp4Inspector.inspect(path);
+
+        assertFalse(info.valid());
+        assertTrue(info.problems().contains("トラックがありません"), info.problems().toString());
+    }
+
+    private Path write(String name, byte[] bytes) throws IOException {
+        Path path = dir.resolve(name);
+        Files.write(path, bytes);
+        return path;
+    }
+
+    private static byte[] ftyp() {
+        return ByteBuffer.allocate(12)
+                .put("isom".getBytes(StandardCharsets.ISO_8859_1))
+                .putInt(0x200)
+                .put("mp41".getBytes(StandardCharsets.ISO_8859_1))
+                .array();
+    }
+
+    /**
+     * 長さ205.5秒、1920×1080の avc1 映像と mp4a 音声の2トラックを持つ moov。
+     */
+    private static byte[] moov() {
+        // version 0: version/flags, 作成・更新日時, timescale, duration の後に固定長の残り
+        byte[] mvhd = ByteBuffer.allocate(100).putInt(0).putInt(0).putInt(0).putInt(1000).putInt(205_500).array();
+        return box("moov", concat(box("mvhd", mvhd),
+                track("vide", "avc1", 1920, 1080),
+                track("soun", "mp4a", 0, 0)));
+    }
+
+    private static byte[] track(String handler, String codec, int width, int height) {
+        // version 0 の tkhd は84バイトで、末尾8バイトが16.16固定小数点の幅と高さ
+        byte[] tkhd = ByteBuffer.allocate(84).putInt(76, width << 16).putInt(80, height << 16).array();
+        byte[] hdlr = ByteBuffer.allocate(25).putInt(0).putInt(0).put(handler.getBytes(StandardCharsets.ISO_8859_1)).array();
+        byte[] stsd = ByteBuffer.allocate(16).putInt(0).putInt(1).putInt(8).put(codec.getBytes(StandardCharsets.ISO_8859_1)).array();
+        return box("trak", concat(box("tkhd", tkhd),
+                box("mdia", concat(box("hdlr", hdlr),
+                        box("minf", box("stbl", box("stsd", stsd)))))));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] box(String type, byte[] body) {
+        return ByteBuffer.allocate(8 + body.length)
+                .putInt(8 + body.length)
+                .put(type.getBytes(StandardCharsets.ISO_8859_1))
+                .put(body)
+                .array();
+    }
+
+    private static byte[] largeBox(String type, long size, byte[] body) {
+        return ByteBuffer.allocate(16 + body.length)
+                .putInt(1)
+                .put(type.getBytes(StandardCharsets.ISO_8859_1))
+                .putLong(size)
+                .put(body)
+                .array();
+    }
+}
@@ -0,0 +1,206 @@
+package com.kyopan_pan.ytdownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedDownloaderTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final String ETAG = "\"v1\"";
+    // 2接続で始めても分割できる大きさ(分割の下限は残り4MB)
+    private static final int LENGTH = 6 * 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    private final byte[] data = new byte[LENGTH];
+    private final List<Long> rangeStarts = new CopyOnWriteArrayList<>();
+    private volatile boolean ranges = true;
+    private volatile int servedLength = LENGTH;
+    // 次の範囲リクエストを、この位置まで送ったところで切断する(-1は切断しない)
+    private volatile long dropAfterBytes = -1;
+    private final AtomicBoolean dropped = new AtomicBoolean();
+    private volatile long droppedFrom = -1;
+    private HttpServer server;
+    private String url;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        new Random(42).nextBytes(data);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/media/video.webm", this::serve);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/media/video.webm";
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void rangedDownloadReassemblesTheFile() throws Exception {
+        SegmentedDownloader downloader = new SegmentedDownloader("test");
+        SegmentedDownloader.Probe probe = downloader.probe(url);
+        assertTrue(probe.ranges());
+        assertEquals(LENGTH, probe.length());
+        assertEquals(ETAG, probe.validator());
+
+        Path target = dir.resolve("video.webm");
+        download(downloader, probe, target);
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(Files.exists(SegmentedDownloader.partFile(target)));
+        assertFalse(Files.exists(SegmentedDownloader.stateFile(target)));
+        // 先頭からの区間の他に、分割した後半の区間も要求している
+        assertTrue(rangeStarts.stream().filter(start -> start > 0).count() >= 1, rangeStarts.toString());
+    }
+
+    @Test
+    void droppedConnectionMidSegmentIsRetriedFromWhereItStopped() throws Exception {
+        SegmentedDownloader downloader = new SegmentedDownloader("test");
+        SegmentedDownloader.Probe probe = downloader.probe(url);
+        dropAfterBytes = 256 * 1024;
+
+        Path target = dir.resolve("video.webm");
+        download(downloader, probe, target);
+
+        assertTrue(dropped.get());
+        assertArrayEquals(data, Files.readAllBytes(target));
+        // 切断された区間は先頭からではなく、受信済みの位置から取り直す
+        long from = droppedFrom;
+        assertTrue(rangeStarts.stream().anyMatch(start -> start > from && start <= from + dropAfterBytes),
+                from + " " + rangeStarts);
+    }
+
+    @Test
+    void resumesOnlyTheMissingPartFromTheStateFile() throws Exception {
+        Path target = dir.resolve("video.webm");
+        int half = LENGTH / 2;
+        try (RandomAccessFile part = new RandomAccessFile(SegmentedDownloader.partFile(target).toFile(), "rw")) {
+            part.setLength(LENGTH);
+            part.write(data, 0, half);
+        }
+        Files.writeString(SegmentedDownloader.stateFile(target),
+                LENGTH + " " + ETAG + "\n0 " + half + " " + LENGTH + "\n", StandardCharsets.UTF_8);
+
+        SegmentedDownloader downloader = new SegmentedDownloader("test");
+        SegmentedDownloader.Probe probe = downloader.probe(url);
+        rangeStarts.clear();
+        download(downloader, probe, target);
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(Files.exists(SegmentedDownloader.stateFile(target)));
+        assertTrue(rangeStarts.stream().allMatch(start -> start >= half), rangeStarts.toString());
+    }
+
+    @Test
+    void stateFromAnotherVersionIsIgnored() throws Exception {
+        Path target = dir.resolve("video.webm");
+        try (RandomAccessFile part = new RandomAccessFile(SegmentedDownloader.partFile(target).toFile(), "rw")) {
+            part.setLength(LENGTH);
+        }
+        Files.writeString(SegmentedDownloader.stateFile(target),
+                LENGTH + " \"v0\"\n0 " + LENGTH + " " + LENGTH + "\n", StandardCharsets.UTF_8);
+
+        SegmentedDownloader downloader = new SegmentedDownloader("test");
+        download(downloader, downloader.probe(url), target);
+
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    @Test
+    void shortBodyWithoutRangesFailsLengthCheck() throws Exception {
+        ranges = false;
+        SegmentedDownloader downloader = new SegmentedDownloader("test");
+        SegmentedDownloader.Probe probe = downloader.probe(url);
+        assertFalse(probe.ranges());
+        assertEquals(LENGTH, probe.length());
+
+        servedLength = LENGTH - 1000;
+        Path target = dir.resolve("video.webm");
+        assertThrows(EOFException.class, () -> download(downloader, probe, target));
+        assertFalse(Files.exists(target));
+    }
+
+    @Test
+    void rangedFileShorterThanProbedLengthIsNotAccepted() throws Exception {
+        SegmentedDownloader downloader = new SegmentedDownloader("test");
+        // 確認時より1MB長いと誤って報告された場合、末尾の区間は取得できずに失敗しなければならない
+        SegmentedDownloader.Probe probe = new SegmentedDownloader.Probe(URI.create(url), LENGTH + 1024 * 1024, true, ETAG);
+
+        Path target = dir.resolve("video.webm");
+        assertThrows(IOException.class, () -> download(downloader, probe, target));
+        assertFalse(Files.exists(target));
+    }
+
+    private static void download(SegmentedDownloader downloader, SegmentedDownloader.Probe probe, Path target)
+            throws IOException, InterruptedException {
+        downloader.download(probe, target, () -> 0, () -> false, (received, total, bytesPerSecond) -> { });
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            Matcher matcher = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (!ranges || !matcher.matches() || (ifRange != null && !ifRange.equals(ETAG))) {
+                exchange.sendResponseHeaders(200, servedLength == LENGTH ? LENGTH : 0);
+                exchange.getResponseBody().write(data, 0, servedLength);
+                return;
+            }
+            long from = Long.parseLong(matcher.group(1));
+            long to = Long.parseLong(matcher.group(2));
+            if (from >= LENGTH) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + LENGTH);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            to = Math.min(to, LENGTH - 1);
+            rangeStarts.add(from);
+            int length = (int) (to - from + 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + LENGTH);
+            exchange.sendResponseHeaders(206, length);
+            OutputStream body = exchange.getResponseBody();
+            if (from > 0 && dropAfterBytes > 0 && dropAfterBytes < length && dropped.compareAndSet(false, true)) {
+                droppedFrom = from;
+                body.write(data, (int) from, (int) dropAfterBytes);
+                body.flush();
+                // 宣言した長さに届かないまま閉じると、サーバーは接続ごと切断する
+                return;
+            }
+            body.write(data, (int) from, length);
+        } catch (IOException e) {
+            // 切断や、クライアント側が途中で閉じた場合
+        }
+    }
+}